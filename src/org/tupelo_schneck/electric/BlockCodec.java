@@ -0,0 +1,384 @@
+/*
+This file is part of
+"it's electric": software for storing and viewing home energy monitoring data
+Copyright (C) 2009--2015 Robert R. Tupelo-Schneck <schneck@gmail.com>
+http://tupelo-schneck.org/its-electric
+
+"it's electric" is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+"it's electric" is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with "it's electric", as legal/COPYING-agpl.txt.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.tupelo_schneck.electric;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Encoding of a {@link SampleBlock} as the value of a database record.
+ * The first byte of every encoded block is the codec id, so a database can hold
+ * blocks written by different codecs; the database's codec only determines how new blocks are written.
+ */
+public abstract class BlockCodec {
+    /** Timestamps as runs of consecutive entries; values in the smallest fixed width that fits the block */
+    public static final BlockCodec PACKED = new PackedCodec();
+    /** Delta-of-delta timestamps; each value as a zig-zag varint difference from the previous value */
+    public static final BlockCodec DELTA = new DeltaCodec();
+    /** Delta-of-delta timestamps; each value as a varint of its XOR with the previous value */
+    public static final BlockCodec XOR = new XorCodec();
+
+    private static final BlockCodec[] CODECS = new BlockCodec[] { PACKED, DELTA, XOR };
+
+    /** Name accepted by --codec meaning one record per sample, no blocks */
+    public static final String NONE = "none";
+
+    // column header byte, after the width for PACKED
+    private static final int NO_VALUES = 0;
+    private static final int SOME_PRESENT = 1;
+    private static final int ALL_PRESENT = 0x80;
+
+    public final int id;
+    public final String name;
+
+    private BlockCodec(int id, String name) {
+        this.id = id;
+        this.name = name;
+    }
+
+    /** Returns null if no such codec */
+    public static BlockCodec forName(String name) {
+        for(BlockCodec codec : CODECS) {
+            if(codec.name.equals(name)) return codec;
+        }
+        return null;
+    }
+
+    static BlockCodec forId(int id) {
+        for(BlockCodec codec : CODECS) {
+            if(codec.id==id) return codec;
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    abstract void encode(SampleBlock block, ByteArrayOutputStream out);
+
+    abstract void decode(SampleBlock block, Input in);
+
+    static class Input {
+        final byte[] buf;
+        int pos;
+
+        Input(byte[] buf, int pos) {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        int readByte() {
+            return buf[pos++] & 0xFF;
+        }
+
+        int readVarint() {
+            int res = 0;
+            int shift = 0;
+            while(true) {
+                int b = buf[pos++];
+                res |= (b & 0x7F) << shift;
+                if((b & 0x80) == 0) return res;
+                shift += 7;
+            }
+        }
+
+        int readZigZag() {
+            int n = readVarint();
+            return (n >>> 1) ^ -(n & 1);
+        }
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, int value) {
+        while((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    static void writeZigZag(ByteArrayOutputStream out, int value) {
+        writeVarint(out, (value << 1) ^ (value >> 31));
+    }
+
+    // returns the header for the column: whether no, some, or all entries have values
+    private static int presence(SampleBlock block, int column) {
+        boolean any = false;
+        boolean all = true;
+        boolean[] present = block.present[column];
+        for(int i = 0; i < block.size; i++) {
+            if(present[i]) any = true;
+            else all = false;
+        }
+        if(!any) return NO_VALUES;
+        if(all) return ALL_PRESENT;
+        return SOME_PRESENT;
+    }
+
+    private static void writeBitmap(ByteArrayOutputStream out, boolean[] present, int size) {
+        for(int i = 0; i < size; i += 8) {
+            int bits = 0;
+            for(int j = 0; j < 8 && i + j < size; j++) {
+                if(present[i+j]) bits |= 1 << j;
+            }
+            out.write(bits);
+        }
+    }
+
+    private static void readPresence(Input in, int header, boolean[] present, int size) {
+        if(header==NO_VALUES) {
+            for(int i = 0; i < size; i++) present[i] = false;
+        }
+        else if(header==ALL_PRESENT) {
+            for(int i = 0; i < size; i++) present[i] = true;
+        }
+        else {
+            for(int i = 0; i < size; i += 8) {
+                int bits = in.readByte();
+                for(int j = 0; j < 8 && i + j < size; j++) {
+                    present[i+j] = (bits & (1 << j)) != 0;
+                }
+            }
+        }
+    }
+
+    // Format: number of entries; timestamps as runs of entries one step apart,
+    // each run a gap then a length; then for each column, a width byte
+    // (0 means no values; ALL_PRESENT flag means no presence bitmap),
+    // a presence bitmap, and the present values each in that many bytes.
+    private static class PackedCodec extends BlockCodec {
+        PackedCodec() {
+            super(1, "packed");
+        }
+
+        private static int widthOf(int i) {
+            if(i<=127 && i>=-128) return 1;
+            else if(i<=32767 && i>=-32768) return 2;
+            else if(i<=8388607 && i>=-8388608) return 3;
+            else return 4;
+        }
+
+        @Override
+        void encode(SampleBlock block, ByteArrayOutputStream out) {
+            int size = block.size;
+            int[] timestamps = block.timestamps;
+            int step = block.step;
+            writeVarint(out,size);
+            int i = 0;
+            int previous = block.blockStart - step;
+            while(i < size) {
+                int runStart = i;
+                while(i + 1 < size && timestamps[i+1] == timestamps[i] + step) i++;
+                writeVarint(out,timestamps[runStart] - previous - step);
+                writeVarint(out,i - runStart + 1);
+                previous = timestamps[i];
+                i++;
+            }
+            for(int c = 0; c < SampleBlock.NUM_COLUMNS; c++) {
+                int header = presence(block,c);
+                if(header==NO_VALUES) {
+                    out.write(0);
+                    continue;
+                }
+                boolean[] present = block.present[c];
+                int[] values = block.values[c];
+                int width = 0;
+                for(i = 0; i < size; i++) {
+                    if(present[i]) width = Math.max(width,widthOf(values[i]));
+                }
+                if(header==ALL_PRESENT) {
+                    out.write(width | ALL_PRESENT);
+                }
+                else {
+                    out.write(width);
+                    writeBitmap(out,present,size);
+                }
+                for(i = 0; i < size; i++) {
+                    if(!present[i]) continue;
+                    int v = values[i];
+                    for(int b = width - 1; b >= 0; b--) {
+                        out.write((v >> (8*b)) & 0xFF);
+                    }
+                }
+            }
+        }
+
+        @Override
+        void decode(SampleBlock block, Input in) {
+            int n = in.readVarint();
+            block.size = 0;
+            block.ensureCapacity(n);
+            int[] timestamps = block.timestamps;
+            int step = block.step;
+            int previous = block.blockStart - step;
+            int i = 0;
+            while(i < n) {
+                int timestamp = previous + step + in.readVarint();
+                int runLength = in.readVarint();
+                for(int j = 0; j < runLength; j++) {
+                    timestamps[i++] = timestamp + j * step;
+                }
+                previous = timestamp + (runLength - 1) * step;
+            }
+            block.size = n;
+            for(int c = 0; c < SampleBlock.NUM_COLUMNS; c++) {
+                int width = in.readByte();
+                boolean[] present = block.present[c];
+                int[] values = block.values[c];
+                int header = width==0 ? NO_VALUES : (width & ALL_PRESENT)!=0 ? ALL_PRESENT : SOME_PRESENT;
+                width &= ~ALL_PRESENT;
+                readPresence(in,header,present,n);
+                if(header==NO_VALUES) continue;
+                for(i = 0; i < n; i++) {
+                    if(!present[i]) continue;
+                    values[i] = TimeSeriesDatabase.intOfVariableBytes(in.buf,in.pos,width);
+                    in.pos += width;
+                }
+            }
+        }
+    }
+
+    // Format: number of entries; timestamps as zig-zag delta-of-deltas (starting from the block start
+    // and an expected delta of one step), where each zero is followed by a count of further zeros;
+    // then for each column, a header byte, a presence bitmap if needed, and the present values
+    // as chained from the previous present value by the subclass.
+    private static abstract class DeltaOfDeltaCodec extends BlockCodec {
+        DeltaOfDeltaCodec(int id, String name) {
+            super(id, name);
+        }
+
+        abstract void writeValue(ByteArrayOutputStream out, int value, int previous);
+
+        abstract int readValue(Input in, int previous);
+
+        @Override
+        void encode(SampleBlock block, ByteArrayOutputStream out) {
+            int size = block.size;
+            int[] timestamps = block.timestamps;
+            writeVarint(out,size);
+            int previous = block.blockStart;
+            int previousDelta = block.step;
+            int i = 0;
+            while(i < size) {
+                int delta = timestamps[i] - previous;
+                int deltaOfDelta = delta - previousDelta;
+                writeZigZag(out,deltaOfDelta);
+                previous = timestamps[i];
+                previousDelta = delta;
+                i++;
+                if(deltaOfDelta==0) {
+                    int zeros = 0;
+                    while(i < size && timestamps[i] - previous == previousDelta) {
+                        previous = timestamps[i];
+                        zeros++;
+                        i++;
+                    }
+                    writeVarint(out,zeros);
+                }
+            }
+            for(int c = 0; c < SampleBlock.NUM_COLUMNS; c++) {
+                int header = presence(block,c);
+                out.write(header);
+                if(header==NO_VALUES) continue;
+                boolean[] present = block.present[c];
+                int[] values = block.values[c];
+                if(header==SOME_PRESENT) writeBitmap(out,present,size);
+                int previousValue = 0;
+                for(i = 0; i < size; i++) {
+                    if(!present[i]) continue;
+                    writeValue(out,values[i],previousValue);
+                    previousValue = values[i];
+                }
+            }
+        }
+
+        @Override
+        void decode(SampleBlock block, Input in) {
+            int n = in.readVarint();
+            block.size = 0;
+            block.ensureCapacity(n);
+            int[] timestamps = block.timestamps;
+            int previous = block.blockStart;
+            int previousDelta = block.step;
+            int i = 0;
+            while(i < n) {
+                int deltaOfDelta = in.readZigZag();
+                previousDelta += deltaOfDelta;
+                previous += previousDelta;
+                timestamps[i++] = previous;
+                if(deltaOfDelta==0) {
+                    int zeros = in.readVarint();
+                    for(int j = 0; j < zeros; j++) {
+                        previous += previousDelta;
+                        timestamps[i++] = previous;
+                    }
+                }
+            }
+            block.size = n;
+            for(int c = 0; c < SampleBlock.NUM_COLUMNS; c++) {
+                int header = in.readByte();
+                boolean[] present = block.present[c];
+                int[] values = block.values[c];
+                readPresence(in,header,present,n);
+                if(header==NO_VALUES) continue;
+                int previousValue = 0;
+                for(i = 0; i < n; i++) {
+                    if(!present[i]) continue;
+                    previousValue = readValue(in,previousValue);
+                    values[i] = previousValue;
+                }
+            }
+        }
+    }
+
+    private static class DeltaCodec extends DeltaOfDeltaCodec {
+        DeltaCodec() {
+            super(2, "delta");
+        }
+
+        @Override
+        void writeValue(ByteArrayOutputStream out, int value, int previous) {
+            writeZigZag(out,value - previous);
+        }
+
+        @Override
+        int readValue(Input in, int previous) {
+            return previous + in.readZigZag();
+        }
+    }
+
+    private static class XorCodec extends DeltaOfDeltaCodec {
+        XorCodec() {
+            super(3, "xor");
+        }
+
+        @Override
+        void writeValue(ByteArrayOutputStream out, int value, int previous) {
+            writeVarint(out,value ^ previous);
+        }
+
+        @Override
+        int readValue(Input in, int previous) {
+            return previous ^ in.readVarint();
+        }
+    }
+}
@@ -21,16 +21,27 @@ If not, see <http://www.gnu.org/licenses/>.
 
 package org.tupelo_schneck.electric;
 
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.tupelo_schneck.electric.TimeSeriesDatabase.ReadIterator;
 
-import com.sleepycat.je.Cursor;
 import com.sleepycat.je.DatabaseException;
 
+/**
+ * Feeds new seconds to the rollups.  Importers {@link #publish} what they write and {@link #notifyChanges},
+ * handing both over through a lock-free queue which only this thread takes from, so that an importer never 
+ * waits on the rollups; this thread parks when there is nothing to take.  The seconds database is read back 
+ * only at start, or when published samples or the samples held back for the maximum overflow.  
+ * Changes to seconds already accumulated mark rollup periods dirty, which are then repaired.
+ */
 public class CatchUp implements Runnable {
     Log log = LogFactory.getLog(CatchUp.class);
     
@@ -40,25 +51,81 @@ public class CatchUp implements Runnable {
     // if kVA data is missing longer than this, only then we proceed
     public static final int LAG = 5;
 
+    // samples published and not yet taken at most; past this they are dropped and the database read instead
+    private static final int QUEUE_LIMIT = 65536;
+    // samples held back, as after the maximum, at most; past this the database is read instead
+    private static final int PENDING_LIMIT = 65536;
+    private static final long METRICS_INTERVAL = 60*1000;
+
     private final Main main;
     private final Options options;
     private final DatabaseManager databaseManager;
     private final int[] caughtUpTo;
     
-    private int[] resetTimestamp;
-    private volatile boolean reset;
-    private Object resetLock = new Object();
-    private volatile boolean newData;
-    private Object newDataLock = new Object();
+    private final AtomicInteger maximum = new AtomicInteger();
+
+    // what importers hand over: published samples, or changed keys
+    private static class Handoff {
+        final SampleBatch samples;
+        final List<Triple.Key> changes;
+        
+        Handoff(SampleBatch samples, List<Triple.Key> changes) {
+            this.samples = samples;
+            this.changes = changes;
+        }
+    }
+    
+    private final ConcurrentLinkedQueue<Handoff> handoffs = new ConcurrentLinkedQueue<Handoff>();
+    // samples published and not yet taken
+    private final AtomicInteger backlog = new AtomicInteger();
+    private volatile boolean overflowed;
+    private volatile Thread consumer;
 
-    private volatile int maximum;
-    private final Object maximumLock = new Object();
+    /** Counts of the handoffs from importers to the catch-up thread, and of where they met */
+    public static class Metrics {
+        /** Published batches and changed key lists handed over */
+        public final AtomicLong handoffs = new AtomicLong();
+        /** Published batches dropped as the queue was full, each costing a read of the database */
+        public final AtomicLong overflows = new AtomicLong();
+        /** The most published samples waiting to be taken at once */
+        public final AtomicInteger peakBacklog = new AtomicInteger();
+        /** Retried compare-and-sets, where importers noting changes raced each other */
+        public final AtomicLong retries = new AtomicLong();
+        /** Times importers woke the catch-up thread */
+        public final AtomicLong unparks = new AtomicLong();
+        /** Times the catch-up thread found nothing to take and parked */
+        public final AtomicLong parks = new AtomicLong();
+        
+        @Override
+        public String toString() {
+            return "handoffs=" + handoffs + " overflows=" + overflows + " peakBacklog=" + peakBacklog 
+                + " retries=" + retries + " unparks=" + unparks + " parks=" + parks;
+        }
+    }
+    
+    public final Metrics metrics = new Metrics();
+
+    // only on the catch-up thread:
+    // pending.get(mtu) holds the samples after caughtUpTo[mtu] known so far, by timestamp
+    private final List<TreeMap<Integer,Sample>> pending = new ArrayList<TreeMap<Integer,Sample>>();
+    private int pendingCount;
+    // whether pending may be missing some of the database, which must then be read
+    private boolean needRead = true;
+    private final Sample sample = new Sample();
+    // changed[mtu] holds changed timestamps already accumulated, taken together
+    private final int[][] changed;
+    private final int[] changedCount;
     
     public CatchUp(Main main, Options options, DatabaseManager databaseManager) {
         this.main = main;
         this.options = options;
         this.databaseManager = databaseManager;
         caughtUpTo = new int[options.mtus + options.spyders];
+        changed = new int[caughtUpTo.length][16];
+        changedCount = new int[caughtUpTo.length];
+        for(int mtu = 0; mtu < caughtUpTo.length; mtu++) {
+            pending.add(new TreeMap<Integer,Sample>());
+        }
     }
     
     @Override
@@ -73,50 +140,134 @@ public class CatchUp implements Runnable {
     }
     
     private void runReal() {
-        boolean firstTime = true;
-        while(main.isRunning) {
-            // at start or following a reset, figure out where we are caught up to
-            Arrays.fill(caughtUpTo, Integer.MAX_VALUE);
-            for (int i = 1; i < DatabaseManager.numDurations; i++) {
-                for(byte mtu = 0; mtu < options.mtus + options.spyders; mtu++) {
-                    if(databaseManager.databases[i].maxForMTU[mtu] < caughtUpTo[mtu]) {
-                        caughtUpTo[mtu] = databaseManager.databases[i].maxForMTU[mtu];
-                    }
-                }
-            }
-            // First time each run we do an extra catchup of two hours.
-            // This is because we might have crashed right after getting
-            // reset data for an hour ago, but before doing the reset.
-            if(firstTime) {
-                for(byte mtu = 0; mtu < options.mtus + options.spyders; mtu++) {
-                    caughtUpTo[mtu] -= 7200;
-                }
-                firstTime = false;
+        consumer = Thread.currentThread();
+        // at start, figure out where we are caught up to
+        // only the finest rollups read seconds; the rest are fed by them
+        databaseManager.rollups.align();
+        for(byte mtu = 0; mtu < options.mtus + options.spyders; mtu++) {
+            caughtUpTo[mtu] = databaseManager.rollups.caughtUpTo(mtu);
+        }
+        // Each run we do an extra catchup of two hours.
+        // This is because we might have crashed right after getting
+        // changed data for an hour ago, but before repairing it.
+        // Not needed when resuming from checkpoints, which account for repairs not yet done.
+        if(!resumedFromCheckpoints()) {
+            for(byte mtu = 0; mtu < options.mtus + options.spyders; mtu++) {
+                caughtUpTo[mtu] -= 7200;
             }
+        }
+        
+        long latestMetrics = System.currentTimeMillis();
+        while(main.isRunning) {
+            catchUpNewData();
             
-            
-            while(!reset && main.isRunning) {
-                catchUpNewData();
+            if(System.currentTimeMillis() - latestMetrics > METRICS_INTERVAL) {
+                log.trace("Handoffs: " + metrics);
+                latestMetrics = System.currentTimeMillis();
             }
             
-            if(!main.isRunning) return;
-            
-            // perform the reset
-            synchronized(resetLock) {
-                reset = false;
-                for(byte mtu = 0; mtu < options.mtus + options.spyders; mtu++) {
-                    if(resetTimestamp[mtu]!=0) {
-                        for (int i = 1; i < DatabaseManager.numDurations; i++) {
-                            databaseManager.databases[i].resetForNewData(resetTimestamp[mtu], mtu);
-                        }
-                        resetTimestamp[mtu] = 0;
-                    }
-                }
+            // wait for new data (or changes to repair)
+            while(main.isRunning && handoffs.isEmpty()) {
+                if(Thread.currentThread().isInterrupted()) return;
+                metrics.parks.incrementAndGet();
+                LockSupport.park(this);
             }
         }
     }
     
+    private boolean resumedFromCheckpoints() {
+        for (int i = 1; i < DatabaseManager.numDurations; i++) {
+            if(!databaseManager.databases[i].resumedFromCheckpoint()) return false;
+        }
+        return true;
+    }
+    
     private void catchUpNewData() {
+        // read first: samples are published before the maximum moves past them
+        int max = maximum.get();
+        long[] unseen = databaseManager.rollups.unseenChanges();
+        boolean complete = takeHandoffs();
+        try {
+            markChanged();
+            // everything noted before taking is now marked dirty
+            databaseManager.rollups.clearUnseenChanges(unseen);
+            databaseManager.rollups.repair();
+            if(needRead || !complete) readNewData(max);
+            accumulatePending(max);
+        }
+        catch(DatabaseException e) {
+            e.printStackTrace();
+            needRead = true;
+        }
+    }
+
+    // takes what the importers handed over; returns false if published samples were dropped
+    private boolean takeHandoffs() {
+        boolean complete = true;
+        if(overflowed) {
+            // cleared before taking: anything dropped after is found next time
+            overflowed = false;
+            complete = false;
+        }
+        Handoff handoff;
+        while((handoff = handoffs.poll())!=null) {
+            if(handoff.samples!=null) {
+                backlog.addAndGet(-handoff.samples.size());
+                if(complete && !needRead) complete = holdPublished(handoff.samples);
+            }
+            else {
+                for(Triple.Key change : handoff.changes) {
+                    noteChanged(change.timestamp, change.mtu);
+                }
+            }
+        }
+        return complete;
+    }
+
+    // merges published samples into pending; returns false if there was no room
+    private boolean holdPublished(SampleBatch batch) {
+        for(int i = 0; i < batch.size(); i++) {
+            batch.get(i, sample);
+            if(sample.mtu < 0 || sample.mtu >= caughtUpTo.length || !TimeSeriesDatabase.isStorable(sample)) continue;
+            if(sample.timestamp <= caughtUpTo[sample.mtu]) continue;
+            if(!hold(sample)) return false;
+        }
+        return true;
+    }
+    
+    // the latest second the rollups have accumulated for the MTU
+    private int accumulatedUpTo(byte mtu) {
+        int res = 0;
+        for(int i = 1; i < DatabaseManager.numDurations; i++) {
+            res = Math.max(res, databaseManager.databases[i].maxForMTU[mtu]);
+        }
+        return res;
+    }
+    
+    private void noteChanged(int timestamp, byte mtu) {
+        if(mtu < 0 || mtu >= caughtUpTo.length || timestamp > accumulatedUpTo(mtu)) return;
+        log.trace("Repair needed at " + Util.dateString(timestamp) + " for MTU " + mtu);
+        if(changedCount[mtu]==changed[mtu].length) {
+            int[] grown = new int[2 * changedCount[mtu]];
+            System.arraycopy(changed[mtu], 0, grown, 0, changedCount[mtu]);
+            changed[mtu] = grown;
+        }
+        changed[mtu][changedCount[mtu]++] = timestamp;
+    }
+    
+    private void markChanged() {
+        for(byte mtu = 0; mtu < options.mtus + options.spyders; mtu++) {
+            if(changedCount[mtu]==0) continue;
+            databaseManager.rollups.markDirty(mtu, changed[mtu], changedCount[mtu]);
+            changedCount[mtu] = 0;
+        }
+    }
+
+    // reads everything after caughtUpTo from the database, accumulating up to the maximum and holding back the rest
+    private void readNewData(int max) throws DatabaseException {
+        // what was published is written, so the read sees it
+        clearPending();
+        needRead = true;
         // find starting place
         int catchupStart = Integer.MAX_VALUE;
         for(byte mtu = 0; mtu < options.mtus + options.spyders; mtu++) {
@@ -126,106 +277,127 @@ public class CatchUp implements Runnable {
         }
         // read the values
         log.trace("Catching up from " + Util.dateString(catchupStart));
+        ReadIterator iter = null;
         try {
-            ReadIterator iter = null;
-            Cursor[] cursors = new Cursor[DatabaseManager.numDurations];
-            try {
-                newData = false;
-                iter = databaseManager.secondsDb.read(catchupStart);
-                for(int i = 1; i < DatabaseManager.numDurations; i++) {
-                    cursors[i] = databaseManager.databases[i].openCursor();
-                }
-                while(iter.hasNext() && !reset && main.isRunning) {
-                    Triple triple = iter.next();
-                    if(triple.timestamp > caughtUpTo[triple.mtu]) {
-                        if(triple.timestamp > this.maximum) break;
-                        synchronized(resetLock) {
-                            for(int i = 1; i < DatabaseManager.numDurations; i++) {
-                                databaseManager.databases[i].accumulateForAverages(cursors[i],triple);
-                            }
-                        }
-                        caughtUpTo[triple.mtu] = triple.timestamp;
+            iter = databaseManager.secondsDb.read(catchupStart);
+            while(main.isRunning && iter.advance()) {
+                int timestamp = iter.timestamp();
+                byte mtu = iter.mtu();
+                if(timestamp > caughtUpTo[mtu]) {
+                    if(timestamp > max) {
+                        if(!hold(iter.current())) return;
+                        continue;
                     }
+                    databaseManager.rollups.accumulate(iter.current());
+                    caughtUpTo[mtu] = timestamp;
                 }
             }
-            finally {
-                for(Cursor cursor : cursors) { if(cursor!=null) try { cursor.close(); } catch (Exception e) { e.printStackTrace(); } }
-                if(iter!=null) try { iter.close(); } catch (Exception e) { e.printStackTrace(); }
-            }
-            log.trace("Catch-up done.");
         }
-        catch(DatabaseException e) {
-            e.printStackTrace();
+        finally {
+            if(iter!=null) try { iter.close(); } catch (Exception e) { e.printStackTrace(); }
         }
-        
-        // wait for new data (or a reset)
-        if(!newData && !reset && main.isRunning) {
-            synchronized(newDataLock) { 
-                while(!newData && !reset && main.isRunning) {
-                    try {
-                        newDataLock.wait();
-                    }
-                    catch(InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
-                }
+        needRead = !main.isRunning;
+        log.trace("Catch-up done.");
+    }
+    
+    // adds the sample to pending, over any already there; returns false if there is no room
+    private boolean hold(Sample sample) {
+        TreeMap<Integer,Sample> samples = pending.get(sample.mtu);
+        Integer key = Integer.valueOf(sample.timestamp);
+        Sample existing = samples.get(key);
+        if(existing!=null) {
+            existing.merge(sample);
+            return true;
+        }
+        if(pendingCount >= PENDING_LIMIT) return false;
+        Sample copy = new Sample();
+        copy.set(sample);
+        samples.put(key, copy);
+        pendingCount++;
+        return true;
+    }
+    
+    private void clearPending() {
+        for(TreeMap<Integer,Sample> samples : pending) {
+            samples.clear();
+        }
+        pendingCount = 0;
+    }
+    
+    // accumulates the pending samples up to the maximum
+    private void accumulatePending(int max) throws DatabaseException {
+        for(byte mtu = 0; mtu < options.mtus + options.spyders; mtu++) {
+            TreeMap<Integer,Sample> samples = pending.get(mtu);
+            while(main.isRunning && !samples.isEmpty() && samples.firstKey().intValue() <= max) {
+                Sample next = samples.pollFirstEntry().getValue();
+                pendingCount--;
+                databaseManager.rollups.accumulate(next);
+                caughtUpTo[mtu] = next.timestamp;
             }
         }
     }
 
+    /**
+     * Hands the rollups samples just written to the seconds database, so that they need not be read back.
+     * Call after writing and before {@link #notifyChanges}; the batch must not be changed afterwards.
+     */
+    public void publish(SampleBatch samples) {
+        if(samples==null || samples.isEmpty() || overflowed) return;
+        int size = samples.size();
+        int waiting = backlog.addAndGet(size);
+        if(waiting > QUEUE_LIMIT) {
+            backlog.addAndGet(-size);
+            if(!overflowed) log.trace("Published samples overflowed; reading the database");
+            overflowed = true;
+            metrics.overflows.incrementAndGet();
+            return;
+        }
+        handoffs.add(new Handoff(samples, null));
+        metrics.handoffs.incrementAndGet();
+        int peak = metrics.peakBacklog.get();
+        while(waiting > peak && !metrics.peakBacklog.compareAndSet(peak, waiting)) {
+            peak = metrics.peakBacklog.get();
+        }
+    }
+
     public int getMaximum() {
-        return this.maximum;
+        return maximum.get();
     }
     
     public void setMaximumIfNewer(int newMax) {
-        synchronized(maximumLock) {
-            if(maximum < newMax) maximum = newMax;
+        while(true) {
+            int current = maximum.get();
+            if(current >= newMax || maximum.compareAndSet(current, newMax)) return;
+            metrics.retries.incrementAndGet();
         }
     }
     
+    /** Hands over the keys of changes written to the seconds database; never waits on the rollups */
     public void notifyChanges(List<Triple.Key> changes, boolean existingDataChangesOnly) {
-            if(!main.isRunning || changes==null || changes.isEmpty()) return;
-            boolean setReset = false;
-            boolean setNewData = false;
-            synchronized(resetLock) {
-                if(resetTimestamp==null) {
-                    resetTimestamp = new int[options.mtus + options.spyders];
-    //                Arrays.fill(resetTimestamp,0);
-                }
-    
-                for(Triple.Key change : changes) {
-                    int timestamp = change.timestamp;
-                    byte mtu = change.mtu;
-                    
-                    boolean needed = false;
-                    if(timestamp < resetTimestamp[mtu]) needed = true;
-                    else {
-                        for(int i = 1; i < DatabaseManager.numDurations; i++) {
-                            if(timestamp <= databaseManager.databases[i].maxForMTU[mtu]) {
-                                needed = true;
-                                break;
-                            }
-                        }
-                    }
-    
-                    if(needed) {
-                        log.trace("Reset needed at " + Util.dateString(timestamp) + " for MTU " + mtu);
-                        resetTimestamp[mtu] = timestamp;
-                        setReset = true;
-                    }
-                    else {
-                        setNewData = true;
-                    }
-                }
-    
-                if(setReset) reset = true;
-                else if(existingDataChangesOnly) return; 
-                
-                if(setNewData) newData = true;
-                
-                synchronized(newDataLock) {
-                    newDataLock.notify();
-                }
-            }
+        if(!main.isRunning || changes==null || changes.isEmpty()) return;
+        handoffs.add(new Handoff(null, changes));
+        metrics.handoffs.incrementAndGet();
+        // Noted after handing over, so this thread cannot clear a note before taking its change.
+        // Checkpoints are taken as if the rollups had reset to the earliest noted change for the MTU.
+        // An unsynchronized look at what has been accumulated; if stale, this thread still catches the change
+        boolean seen = false;
+        int[] earliest = new int[caughtUpTo.length];
+        for(Triple.Key change : changes) {
+            byte mtu = change.mtu;
+            if(mtu < 0 || mtu >= caughtUpTo.length || change.timestamp > accumulatedUpTo(mtu)) continue;
+            if(earliest[mtu]==0 || change.timestamp < earliest[mtu]) earliest[mtu] = change.timestamp;
+        }
+        for(byte mtu = 0; mtu < earliest.length; mtu++) {
+            if(earliest[mtu]==0) continue;
+            metrics.retries.addAndGet(databaseManager.rollups.noteUnseenChange(earliest[mtu], mtu));
+            seen = true;
         }
-}
\ No newline at end of file
+        // otherwise taken with the next new data
+        if(existingDataChangesOnly && !seen) return;
+        Thread thread = consumer;
+        if(thread!=null) {
+            LockSupport.unpark(thread);
+            metrics.unparks.incrementAndGet();
+        }
+    }
+}
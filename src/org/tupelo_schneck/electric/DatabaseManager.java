@@ -22,13 +22,28 @@ If not, see <http://www.gnu.org/licenses/>.
 package org.tupelo_schneck.electric;
 
 import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.tupelo_schneck.electric.TimeSeriesDatabase.Checkpoint;
+import org.tupelo_schneck.electric.TimeSeriesDatabase.ReadIterator;
+import org.tupelo_schneck.electric.store.JeStorageEngine;
+import org.tupelo_schneck.electric.store.MemoryStorageEngine;
+import org.tupelo_schneck.electric.store.SegmentStorageEngine;
+import org.tupelo_schneck.electric.store.StorageEngine;
+import org.tupelo_schneck.electric.store.Store;
 
+import com.sleepycat.bind.tuple.StringBinding;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.DatabaseEntry;
 import com.sleepycat.je.DatabaseException;
 import com.sleepycat.je.Environment;
 import com.sleepycat.je.EnvironmentConfig;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
 
 public class DatabaseManager {
     private Log log = LogFactory.getLog(DatabaseManager.class);
@@ -41,20 +56,48 @@ public class DatabaseManager {
     };
     public static final int numDurations = durations.length;
 
+    // database holding settings fixed when the time-series databases are created
+    private static final String METADATA_DATABASE = "metadata";
+    private static final String ENGINE = "engine.";
+    private static final String STORAGE = "storage.";
+    private static final String CODEC = "codec.";
+    private static final String PARTITION = "partition.";
+    private static final String KEY_ORDER = "keys.";
+    private static final String MIGRATING = "migrating.";
+    // set once a migration has removed the old database, and is renaming the copy
+    private static final String RENAMING = "renaming.";
+    // rollup state as of the latest sync; see TimeSeriesDatabase.Checkpoint
+    private static final String CHECKPOINT = "checkpoint.";
+    private static final String MIGRATING_SUFFIX = ".migrating";
+    public static final String RECORD_STORAGE = "records";
+    public static final String BLOCK_STORAGE = "blocks";
+    // under the environment home, for the mmap engine
+    private static final String SEGMENT_DIRECTORY = "segments";
+
     public Environment environment;
+    private Database metadata;
+    private final Map<String,StorageEngine> engines = new HashMap<String,StorageEngine>();
+    private final Layout[] layouts = new Layout[numDurations];
     public final TimeSeriesDatabase[] databases = new TimeSeriesDatabase[numDurations];
     public TimeSeriesDatabase secondsDb;
+    public final Rollups rollups = new Rollups(this);
+    // results of the servlet's reads of the rollups
+    public final ReadCache readCache;
 
     private boolean closed;
     
     private final File envHome;
     private final boolean readOnly;
     private final Options options;
+
+    // null unless recording
+    public DurabilityPolicy durability;
     
     public DatabaseManager(File envHome, boolean readOnly, Options options) {
         this.envHome = envHome;
         this.readOnly = readOnly;
         this.options = options;
+        this.readCache = new ReadCache(options.serve ? options.cacheCells : 0);
     }
     
     public void open() throws DatabaseException {
@@ -71,25 +114,328 @@ public class DatabaseManager {
         configuration.setReadOnly(readOnly);
         environment = new Environment(envHome, configuration);
         log.info("Environment opened.");
+        engines.put(JeStorageEngine.NAME, new JeStorageEngine(environment, readOnly));
+
+        if(!readOnly || environment.getDatabaseNames().contains(METADATA_DATABASE)) {
+            DatabaseConfig config = new DatabaseConfig();
+            config.setAllowCreate(!readOnly);
+            config.setReadOnly(readOnly);
+            metadata = environment.openDatabase(null, METADATA_DATABASE, config);
+        }
 
         for(int i = 0; i < numDurations; i++) {
-            databases[i] = new TimeSeriesDatabase(environment, readOnly, String.valueOf(durations[i]), options.mtus, (byte)(options.mtus + options.spyders), durations[i], durationStrings[i], options.serveTimeZone.getRawOffset() / 1000);
+            finishInterruptedMigration(i);
+            layouts[i] = chooseLayout(i);
+            databases[i] = openTimeSeriesDatabase(i, String.valueOf(durations[i]), layouts[i]);
             log.trace("Database " + i + " opened");
         }
         secondsDb = databases[0];
+
+        if(!readOnly && options.record) {
+            durability = new DurabilityPolicy(options, this);
+            durability.start();
+        }
+    }
+
+    /** Returns null if database i is not partitioned */
+    Partitioning partitioning(int i) {
+        return layouts[i].partitioning;
+    }
+
+    private TimeSeriesDatabase openTimeSeriesDatabase(int i, String name, Layout layout) throws DatabaseException {
+        StorageEngine engine = engine(layout.engineName);
+        Store store = layout.partitioning==null ? engine.open(name) : new PartitionedStore(engine, name, layout.partitioning, layout.mtuMajor ? 1 : 0);
+        // the seconds database uses the first rollup's checkpoint
+        Checkpoint checkpoint = Checkpoint.decode(getMetadata(CHECKPOINT + durations[Math.max(i, 1)]), options.mtus + options.spyders);
+        return new TimeSeriesDatabase(store, options.mtus, (byte)(options.mtus + options.spyders), durations[i], durationStrings[i], options.serveTimeZone.getRawOffset() / 1000, 
+                layout.codec, layout.mtuMajor, layout.partitioning, checkpoint);
+    }
+
+    public String getMetadata(String name) throws DatabaseException {
+        if(metadata==null) return null;
+        DatabaseEntry key = new DatabaseEntry();
+        DatabaseEntry data = new DatabaseEntry();
+        StringBinding.stringToEntry(name, key);
+        OperationStatus status = metadata.get(null, key, data, LockMode.READ_UNCOMMITTED);
+        if(status!=OperationStatus.SUCCESS) return null;
+        return StringBinding.entryToString(data);
+    }
+
+    public void putMetadata(String name, String value) throws DatabaseException {
+        if(readOnly) return;
+        DatabaseEntry key = new DatabaseEntry();
+        DatabaseEntry data = new DatabaseEntry();
+        StringBinding.stringToEntry(name, key);
+        StringBinding.stringToEntry(value, data);
+        OperationStatus status = metadata.put(null, key, data);
+        if(status!=OperationStatus.SUCCESS) {
+            throw new DatabaseException("Unexpected status " + status) {};
+        }
+    }
+
+    public void deleteMetadata(String name) throws DatabaseException {
+        if(readOnly) return;
+        DatabaseEntry key = new DatabaseEntry();
+        StringBinding.stringToEntry(name, key);
+        metadata.delete(null, key);
+    }
+
+    // how a database is stored: engine, codec (null for records), partitioning (null for none), 
+    // and for records, whether keys are mtu-major
+    private static class Layout {
+        final String engineName;
+        final BlockCodec codec;
+        final Partitioning partitioning;
+        final boolean mtuMajor;
+
+        Layout(String engineName, BlockCodec codec, Partitioning partitioning, boolean mtuMajor) {
+            this.engineName = engineName;
+            this.codec = codec;
+            this.partitioning = partitioning;
+            this.mtuMajor = mtuMajor && codec==null;
+        }
+
+        boolean sameAs(Layout other) {
+            return engineName.equals(other.engineName) && codec==other.codec && Partitioning.nameOf(partitioning).equals(Partitioning.nameOf(other.partitioning))
+                && mtuMajor==other.mtuMajor;
+        }
+
+        String keyOrder() {
+            return mtuMajor ? TimeSeriesDatabase.MTU_MAJOR : TimeSeriesDatabase.TIME_MAJOR;
+        }
+
+        // as kept in the metadata during a migration
+        String marker() {
+            return engineName + ":" + (codec==null ? BlockCodec.NONE : codec.name) + ":" + Partitioning.nameOf(partitioning) + ":" + keyOrder();
+        }
+
+        static Layout ofMarker(String marker) {
+            String[] parts = marker.split(":");
+            return new Layout(parts[0], BlockCodec.forName(parts[1]), parts.length > 2 ? Partitioning.forName(parts[2]) : null, 
+                    parts.length > 3 && TimeSeriesDatabase.MTU_MAJOR.equals(parts[3]));
+        }
+
+        @Override
+        public String toString() {
+            return (codec==null ? RECORD_STORAGE : codec.name + " " + BLOCK_STORAGE) + " in " + engineName 
+                + (partitioning==null ? "" : " by " + partitioning.name) + (mtuMajor ? ", keyed by mtu" : "");
+        }
+    }
+
+    static String perResolution(Map<Integer,String> map, int i) {
+        String res = map.get(Integer.valueOf(durations[i]));
+        if(res==null) res = map.get(Integer.valueOf(0));
+        return res;
+    }
+
+    private Layout requestedLayout(int i) {
+        String engineName = perResolution(options.storageEngines, i);
+        if(engineName==null) engineName = JeStorageEngine.NAME;
+        BlockCodec codec;
+        String codecName = perResolution(options.codecs, i);
+        if(codecName==null) codec = (i==0 && options.blockStorage) ? BlockCodec.PACKED : null;
+        else codec = BlockCodec.forName(codecName);
+        Partitioning partitioning;
+        String partitionName = perResolution(options.partitions, i);
+        if(partitionName==null) partitioning = durations[i] < 60 ? Partitioning.MONTH : durations[i] < 3600 ? Partitioning.YEAR : null;
+        else partitioning = Partitioning.forName(partitionName);
+        boolean mtuMajor = TimeSeriesDatabase.MTU_MAJOR.equals(perResolution(options.keyOrders, i));
+        return new Layout(engineName, codec, partitioning, mtuMajor);
+    }
+
+    private boolean layoutRequested() {
+        return options.blockStorage || !options.codecs.isEmpty() || !options.storageEngines.isEmpty() || !options.partitions.isEmpty() || !options.keyOrders.isEmpty();
+    }
+
+    private StorageEngine engine(String name) throws DatabaseException {
+        StorageEngine engine = engines.get(name);
+        if(engine!=null) return engine;
+        if(MemoryStorageEngine.NAME.equals(name)) engine = new MemoryStorageEngine();
+        else if(SegmentStorageEngine.NAME.equals(name)) engine = new SegmentStorageEngine(new File(envHome, SEGMENT_DIRECTORY), readOnly);
+        else throw new DatabaseException("Unknown storage engine " + name) {};
+        engines.put(name, engine);
+        return engine;
+    }
+
+    private void setLayoutMetadata(int i, Layout layout) throws DatabaseException {
+        putMetadata(ENGINE + durations[i], layout.engineName);
+        putMetadata(STORAGE + durations[i], layout.codec==null ? RECORD_STORAGE : BLOCK_STORAGE);
+        if(layout.codec!=null) putMetadata(CODEC + durations[i], layout.codec.name);
+        putMetadata(PARTITION + durations[i], Partitioning.nameOf(layout.partitioning));
+        putMetadata(KEY_ORDER + durations[i], layout.keyOrder());
+    }
+
+    // The layout is fixed when a database is created, unless rewritten by --migrate.  
+    // Existing databases from before the metadata was kept use unpartitioned records in JE.
+    private Layout chooseLayout(int i) throws DatabaseException {
+        Layout requested = requestedLayout(i);
+        String engineName = getMetadata(ENGINE + durations[i]);
+        String storage = getMetadata(STORAGE + durations[i]);
+        String partitionName = getMetadata(PARTITION + durations[i]);
+        String keyOrder = getMetadata(KEY_ORDER + durations[i]);
+        boolean existing = storage!=null || environment.getDatabaseNames().contains(String.valueOf(durations[i]));
+        if(engineName==null) {
+            engineName = existing ? JeStorageEngine.NAME : requested.engineName;
+        }
+        BlockCodec codec;
+        if(storage==null) {
+            codec = existing ? null : requested.codec;
+        }
+        else if(RECORD_STORAGE.equals(storage)) {
+            codec = null;
+        }
+        else {
+            String codecName = getMetadata(CODEC + durations[i]);
+            codec = codecName==null ? BlockCodec.PACKED : BlockCodec.forName(codecName);
+        }
+        Partitioning partitioning;
+        if(partitionName==null) partitioning = existing ? null : requested.partitioning;
+        else partitioning = Partitioning.forName(partitionName);
+        boolean mtuMajor;
+        if(keyOrder==null) mtuMajor = existing ? false : requested.mtuMajor;
+        else mtuMajor = TimeSeriesDatabase.MTU_MAJOR.equals(keyOrder);
+        Layout layout = new Layout(engineName, codec, partitioning, mtuMajor);
+        setLayoutMetadata(i, layout);
+        if(!layout.sameAs(requested) && !options.migrate && layoutRequested()) {
+            log.info("Database " + durationStrings[i] + " uses " + layout + "; use --migrate to rewrite it as " + requested);
+        }
+        return layout;
+    }
+
+    // The marker is only written once the copy is complete, so a migration interrupted after it is completed:
+    // what remains of the old database is removed, unless that was done, and what remains of the copy renamed.
+    private void finishInterruptedMigration(int i) throws DatabaseException {
+        String marker = getMetadata(MIGRATING + durations[i]);
+        if(marker==null || readOnly) return;
+        Layout layout = Layout.ofMarker(marker);
+        StorageEngine source = engine(getMetadata(ENGINE + durations[i]));
+        StorageEngine target = engine(layout.engineName);
+        String name = String.valueOf(durations[i]);
+        String tempName = name + MIGRATING_SUFFIX;
+        log.info("Completing migration of database " + durationStrings[i]);
+        // once renaming, stores of the name may be parts of the copy
+        if(getMetadata(RENAMING + durations[i])==null) {
+            removeMigrationSource(source, target, name);
+        }
+        PartitionedStore.rename(target, tempName, name);
+        setLayoutMetadata(i, layout);
+        deleteMetadata(RENAMING + durations[i]);
+        deleteMetadata(MIGRATING + durations[i]);
+    }
+
+    // removes the old database of a migration, and anything of its name where the copy goes, then notes that it is done
+    private void removeMigrationSource(StorageEngine source, StorageEngine target, String name) throws DatabaseException {
+        PartitionedStore.remove(source, name);
+        if(target!=source) PartitionedStore.remove(target, name);
+        source.sync();
+        if(target!=source) target.sync();
+        putMetadata(RENAMING + name, "true");
+        environment.sync();
+    }
+
+    /** Rewrites each database whose layout differs from that requested by --storage, --codec, --partition, --key-order, and --block-storage. */
+    public void migrate() throws DatabaseException {
+        for(int i = 0; i < numDurations; i++) {
+            Layout requested = requestedLayout(i);
+            if(requested.sameAs(layouts[i])) {
+                log.trace("Database " + durationStrings[i] + " already uses " + layouts[i]);
+                continue;
+            }
+            log.info("Migrating database " + durationStrings[i] + " from " + layouts[i] + " to " + requested);
+            StorageEngine source = engine(layouts[i].engineName);
+            StorageEngine target = engine(requested.engineName);
+            String name = String.valueOf(durations[i]);
+            String tempName = name + MIGRATING_SUFFIX;
+            PartitionedStore.remove(target, tempName);
+            TimeSeriesDatabase copy = openTimeSeriesDatabase(i, tempName, requested);
+            long count = 0;
+            ReadIterator iter = null;
+            try {
+                iter = databases[i].read(0);
+                Sample sample = new Sample();
+                while(iter.next(sample)) {
+                    copy.put(sample);
+                    count++;
+                    if(count % 1000000 == 0) log.info("   migrated " + count + " entries, up to " + Util.dateString(sample.timestamp));
+                }
+            }
+            finally {
+                if(iter!=null) iter.close();
+                copy.close();
+            }
+            target.sync();
+            putMetadata(MIGRATING + durations[i], requested.marker());
+            environment.sync();
+            databases[i].close();
+            removeMigrationSource(source, target, name);
+            PartitionedStore.rename(target, tempName, name);
+            setLayoutMetadata(i, requested);
+            deleteMetadata(RENAMING + durations[i]);
+            deleteMetadata(MIGRATING + durations[i]);
+            layouts[i] = requested;
+            databases[i] = openTimeSeriesDatabase(i, name, requested);
+            sync();
+            log.info("Migrated " + count + " entries in database " + durationStrings[i]);
+        }
+        secondsDb = databases[0];
+    }
+
+    /** Removes the rollup checkpoints, as when the rollups have been rewritten; the next start scans for the latest entries */
+    public void deleteCheckpoints() throws DatabaseException {
+        for(int i = 1; i < numDurations; i++) {
+            deleteMetadata(CHECKPOINT + durations[i]);
+        }
+    }
+
+    /** 
+     * Writes out any buffered data and syncs all storage engines.
+     * When recording, then writes the rollup checkpoints taken before the flush, which can no longer get ahead of the data,
+     * and syncs them.
+     */
+    public void sync() throws DatabaseException {
+        boolean checkpoints = !readOnly && options.record;
+        if(checkpoints) rollups.takeCheckpoints();
+        for(TimeSeriesDatabase db : databases) {
+            if(db!=null) db.flush();
+        }
+        for(StorageEngine engine : engines.values()) {
+            engine.sync();
+        }
+        if(checkpoints) {
+            Checkpoint[] durable = rollups.durableCheckpoints();
+            for(int i = 1; i < numDurations; i++) {
+                if(durable[i]!=null) putMetadata(CHECKPOINT + durations[i], durable[i].encode());
+            }
+            environment.flushLog(true);
+        }
     }
     
+    /** Closes the cursors kept for the current thread by each database; for threads that end while the databases stay open */
+    public void closeThreadCursors() {
+        for(TimeSeriesDatabase db : databases) {
+            if(db!=null) db.closeThreadCursors();
+        }
+    }
+
     public synchronized void close() {
         if(closed) return;
+        if(durability!=null) durability.shutdown();
+        if(!readOnly && options.record) {
+            try { sync(); } catch (Exception e) { e.printStackTrace(); }
+        }
         for(TimeSeriesDatabase db : databases) {
             if(db!=null) db.close();
         }
-        if(environment!=null) try { 
-            environment.close(); 
+        if(metadata!=null) try { metadata.close(); } catch (Exception e) { e.printStackTrace(); }
+        for(Map.Entry<String,StorageEngine> entry : engines.entrySet()) {
+            if(!JeStorageEngine.NAME.equals(entry.getKey())) try { entry.getValue().close(); } catch (Exception e) { e.printStackTrace(); }
+        }
+        // closes the environment
+        StorageEngine je = engines.get(JeStorageEngine.NAME);
+        if(je!=null) try { 
+            je.close(); 
             log.info("Environment closed.");
         } catch (Exception e) { e.printStackTrace(); }
         closed = true;
     }
-
-
 }
@@ -0,0 +1,110 @@
+/*
+This file is part of
+"it's electric": software for storing and viewing home energy monitoring data
+Copyright (C) 2009--2015 Robert R. Tupelo-Schneck <schneck@gmail.com>
+http://tupelo-schneck.org/its-electric
+
+"it's electric" is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+"it's electric" is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with "it's electric", as legal/COPYING-agpl.txt.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.tupelo_schneck.electric;
+
+import org.tupelo_schneck.electric.TimeSeriesDatabase.Bucket;
+
+import com.sleepycat.je.DatabaseException;
+
+/**
+ * The cascade of {@link Rollups} over one day of seconds, apart from the live rollups, for recomputing
+ * periods without disturbing what they are accumulating.  Closed periods go to {@link #closed},
+ * which decides what to write.  Every resolution divides a day, so a day is complete in itself.  Not thread-safe.
+ */
+abstract class DayCascade {
+    static final int DAY = DatabaseManager.durations[DatabaseManager.numDurations - 1];
+
+    protected final int dayStart;
+    protected final TimeSeriesDatabase[] databases;
+    private final Rollups rollups;
+    // open[i][mtu] accumulates the current period of database i
+    private final Bucket[][] open = new Bucket[DatabaseManager.numDurations][];
+    private final Bucket bucket = new Bucket();
+
+    DayCascade(DatabaseManager databaseManager, int dayStart) {
+        this.dayStart = dayStart;
+        this.databases = databaseManager.databases;
+        this.rollups = databaseManager.rollups;
+        int mtus = databaseManager.secondsDb.maxForMTU.length;
+        for(int i = 1; i < DatabaseManager.numDurations; i++) {
+            open[i] = new Bucket[mtus];
+            for(byte mtu = 0; mtu < mtus; mtu++) {
+                open[i][mtu] = new Bucket();
+                open[i][mtu].clear(-1, -1, mtu);
+            }
+        }
+    }
+
+    /** Called with each non-empty period closed by database i, which is then fed on and cleared */
+    protected abstract void closed(int i, Bucket period) throws DatabaseException;
+
+    /** Feeds an entry of the seconds database; entries must come in order for each MTU */
+    void accumulate(Sample sample) throws DatabaseException {
+        bucket.set(sample);
+        for(int i : rollups.targetsOf(0)) {
+            feed(i, bucket);
+        }
+    }
+
+    /** Closes every open period, finer first, so that they feed the coarser before those close */
+    void closeAll() throws DatabaseException {
+        for(int i = 1; i < DatabaseManager.numDurations; i++) {
+            for(Bucket acc : open[i]) {
+                close(i, acc);
+            }
+        }
+    }
+
+    /** The period of database i being accumulated for the MTU; empty with start -1 if none */
+    Bucket open(int i, byte mtu) {
+        return open[i][mtu];
+    }
+
+    // period index within the day, for database i
+    int index(int i, int timestamp) {
+        return (timestamp - dayStart) / databases[i].resolution;
+    }
+
+    private void feed(int i, Bucket in) throws DatabaseException {
+        Bucket acc = open[i][in.mtu];
+        int periodStart = databases[i].periodStart(in.start);
+        if(acc.start!=periodStart) {
+            close(i, acc);
+            acc.clear(periodStart, periodStart + databases[i].resolution - 1, in.mtu);
+        }
+        acc.add(in);
+        // nothing more can arrive for a period once its last second is in, as in TimeSeriesDatabase.accumulate
+        if(in.end >= acc.end) {
+            close(i, acc);
+            acc.clear(acc.end + 1, acc.end + databases[i].resolution, acc.mtu);
+        }
+    }
+
+    private void close(int i, Bucket acc) throws DatabaseException {
+        if(acc.isEmpty()) return;
+        closed(i, acc);
+        for(int j : rollups.targetsOf(i)) {
+            feed(j, acc);
+        }
+        acc.clear(acc.start, acc.end, acc.mtu);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+This file is part of
+"it's electric": software for storing and viewing home energy monitoring data
+Copyright (C) 2009--2015 Robert R. Tupelo-Schneck <schneck@gmail.com>
+http://tupelo-schneck.org/its-electric
+
+"it's electric" is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+"it's electric" is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with "it's electric", as legal/COPYING-agpl.txt.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.tupelo_schneck.electric;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.sleepycat.je.DatabaseException;
+import com.sleepycat.je.StatsConfig;
+
+/**
+ * Makes recorded data durable according to --durability, on its own thread so importers never wait for an fsync.
+ * In periodic mode, syncs every --sync-interval milliseconds; in group mode, also as soon as --sync-records
+ * records have been written, so that one fsync covers the writes of all importers.
+ * In none mode, data is only synced on close.
+ */
+public class DurabilityPolicy implements Runnable {
+    private Log log = LogFactory.getLog(DurabilityPolicy.class);
+
+    public static final String NONE = "none";
+    public static final String PERIODIC = "periodic";
+    public static final String GROUP = "group";
+
+    private static final long STATS_DUMP_INTERVAL = 5*60*1000;
+
+    private final DatabaseManager databaseManager;
+    private final String mode;
+    private final long interval;
+    private final int records;
+
+    private final Object lock = new Object();
+    // records written since the last sync started
+    private int pending;
+    private ExecutorService syncTask;
+
+    private long syncs;
+    private long totalSyncNanos;
+    private long maxSyncNanos;
+    private long latestStatsDump;
+
+    public DurabilityPolicy(Options options, DatabaseManager databaseManager) {
+        this.databaseManager = databaseManager;
+        this.mode = options.durability;
+        this.interval = options.syncInterval;
+        this.records = options.syncRecords;
+    }
+
+    public void start() {
+        if(NONE.equals(mode)) return;
+        syncTask = Executors.newSingleThreadExecutor();
+        syncTask.execute(this);
+    }
+
+    public void shutdown() {
+        if(syncTask==null) return;
+        syncTask.shutdownNow();
+        try { syncTask.awaitTermination(60, TimeUnit.SECONDS); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        log.debug("Durability: " + stats());
+    }
+
+    /** Called by importers after writing records */
+    public void written(int count) {
+        if(count<=0 || !GROUP.equals(mode)) return;
+        synchronized(lock) {
+            pending += count;
+            if(pending >= records) lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            long latestSync = System.currentTimeMillis();
+            while(!Thread.currentThread().isInterrupted()) {
+                synchronized(lock) {
+                    long wait;
+                    while((wait = latestSync + interval - System.currentTimeMillis()) > 0 && pending < records) {
+                        lock.wait(wait);
+                    }
+                    pending = 0;
+                }
+                latestSync = System.currentTimeMillis();
+                sync();
+            }
+        }
+        catch(InterruptedException e) {
+            // shutting down
+        }
+    }
+
+    private void sync() {
+        long start = System.nanoTime();
+        try {
+            databaseManager.sync();
+        }
+        catch(DatabaseException e) {
+            log.debug("Exception syncing environment: " + e);
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        synchronized(this) {
+            syncs++;
+            totalSyncNanos += nanos;
+            if(nanos > maxSyncNanos) maxSyncNanos = nanos;
+        }
+        log.trace("Environment synced in " + nanos / 1000000 + "ms.");
+        long now = System.currentTimeMillis();
+        if(now - latestStatsDump > STATS_DUMP_INTERVAL) {
+            log.trace(stats());
+            log.trace(databaseManager.environment.getStats(StatsConfig.DEFAULT).toString());
+            latestStatsDump = now;
+        }
+    }
+
+    /** Number of syncs and their average and maximum latency */
+    public synchronized String stats() {
+        return mode + ": " + syncs + " syncs, average " + (syncs==0 ? 0 : totalSyncNanos / syncs / 1000) + "us, max " + maxSyncNanos / 1000 + "us";
+    }
+}
@@ -25,6 +25,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
@@ -47,6 +48,7 @@ public class Main {
     private Server server;
     private ExecutorService catchUpTask;
     private ExecutorService deleteTask;
+    private ScheduledExecutorService retentionTask;
     
     private CatchUp catchUp;
 
@@ -62,9 +64,11 @@ public class Main {
             try { log.info("Exiting."); } catch (Throwable e) {}
             isRunning = false;
             try { deleteTask.shutdownNow(); } catch (Throwable e) {}
+            try { retentionTask.shutdownNow(); } catch (Throwable e) {}
             try { catchUpTask.shutdownNow(); } catch (Throwable e) {}
             try { importer.shutdown(); } catch(Throwable e) {}
             try { deleteTask.awaitTermination(60, TimeUnit.SECONDS); } catch (Throwable e) {}
+            try { retentionTask.awaitTermination(60, TimeUnit.SECONDS); } catch (Throwable e) {}
             //try { synchronized(newDataLock) { newDataLock.notifyAll(); } } catch (Throwable e) {}
             try { catchUpTask.awaitTermination(60, TimeUnit.SECONDS); } catch (Throwable e) {}
             try { server.stop(); } catch (Throwable e) {}
@@ -80,19 +84,19 @@ public class Main {
         }
         
         ReadIterator iter = database.read(options.startTime,options.endTime);
+        Sample sample = new Sample();
         try {
             if(options.exportByMTU) {
-                while(iter.hasNext() && isRunning) {
-                    Triple triple = iter.next();
-                    System.out.print(Util.dateString(triple.timestamp));
+                while(isRunning && iter.next(sample)) {
+                    System.out.print(Util.dateString(sample.timestamp));
                     System.out.print(",");
-                    System.out.print(triple.mtu + 1);
+                    System.out.print(sample.mtu + 1);
                     System.out.print(",");
-                    if(triple.power!=null) System.out.print(triple.power);
+                    if(sample.hasPower()) System.out.print(sample.power);
                     System.out.print(",");
-                    if(triple.voltage!=null) System.out.print((double)triple.voltage.intValue()/20);
+                    if(sample.hasVoltage()) System.out.print((double)sample.voltage/20);
                     System.out.print(",");
-                    if(triple.voltAmperes!=null) System.out.print(triple.voltAmperes);
+                    if(sample.hasVoltAmperes()) System.out.print(sample.voltAmperes);
                     System.out.println();
                 }
             }
@@ -100,10 +104,9 @@ public class Main {
                 int lastTime = 0;
                 int lastMTU = -1;
                 StringBuilder row = new StringBuilder();
-                while(iter.hasNext() && isRunning) {
-                    Triple triple = iter.next();
-                    if(triple.timestamp < lastTime) continue;
-                    if(triple.timestamp > lastTime) {
+                while(isRunning && iter.next(sample)) {
+                    if(sample.timestamp < lastTime) continue;
+                    if(sample.timestamp > lastTime) {
                         if(row.length()>0) {
                             for(int i = lastMTU + 1; i < options.mtus + options.spyders; i++) {
                                 row.append(",,,");
@@ -111,20 +114,20 @@ public class Main {
                             System.out.println(row);
                             row.delete(0,row.length());
                         }
-                        row.append(Util.dateString(triple.timestamp));
-                        lastTime = triple.timestamp;
+                        row.append(Util.dateString(sample.timestamp));
+                        lastTime = sample.timestamp;
                         lastMTU = -1;
                     }
-                    for(int i = lastMTU + 1; i < triple.mtu; i++) {
+                    for(int i = lastMTU + 1; i < sample.mtu; i++) {
                         row.append(",,,");
                     }
-                    lastMTU = triple.mtu;
+                    lastMTU = sample.mtu;
                     row.append(",");
-                    if(triple.power!=null) row.append(triple.power);
+                    if(sample.hasPower()) row.append(sample.power);
                     row.append(",");
-                    if(triple.voltage!=null) row.append((double)triple.voltage.intValue()/20);
+                    if(sample.hasVoltage()) row.append((double)sample.voltage/20);
                     row.append(",");
-                    if(triple.voltAmperes!=null) row.append(triple.voltAmperes);
+                    if(sample.hasVoltAmperes()) row.append(sample.voltAmperes);
                 }
                 if(row.length()>0) {
                     for(int i = lastMTU + 1; i < options.mtus + options.spyders; i++) {
@@ -143,7 +146,8 @@ public class Main {
     public static void main(String[] args) throws IOException, DatabaseException {
         final Options options = new Options();
         if(!options.parseOptions(args)) return;
-        boolean readOnly = !options.record;
+        // maintenance runs write too, but only recording deletes old data
+        boolean readOnly = !options.record && !options.migrate && !options.rebuildRollups;
         File dbFile = new File(options.dbFilename);
         dbFile.mkdirs();
         DatabaseManager databaseManager = new DatabaseManager(dbFile,readOnly,options);
@@ -159,6 +163,14 @@ public class Main {
         });
 
         try {
+            if(options.migrate) {
+                databaseManager.migrate();
+            }
+
+            if(options.rebuildRollups) {
+                new RollupRebuild(main, options, databaseManager).run();
+            }
+
             if(options.serve) { 
                 main.servlet = new Servlet(options,main.databaseManager);
                 main.servlet.initMinAndMax();
@@ -166,7 +178,7 @@ public class Main {
                 main.server.start();
             }
 
-            if(!readOnly) {
+            if(options.record) {
                 // Always delete everything before 2009; got some due to bug in its-electric 1.4
                 if(options.deleteUntil < 1230000000) options.deleteUntil = 1230000000;
 //                int minimum = databaseManager.secondsDb.minimumAfter(0);
@@ -180,6 +192,14 @@ public class Main {
 //                }
             }
 
+            if(options.record) {
+                RetentionTask retention = new RetentionTask(main, options, databaseManager);
+                if(retention.hasRetention()) {
+                    main.retentionTask = Executors.newSingleThreadScheduledExecutor();
+                    main.retentionTask.scheduleWithFixedDelay(retention, 60, RetentionTask.INTERVAL, TimeUnit.SECONDS);
+                }
+            }
+
             if(options.record && options.ccPortName!=null) {
                 main.catchUp = new CatchUp(main,options,main.databaseManager); 
                 main.importer = new CurrentCostImporter(main, options, main.databaseManager, main.servlet, main.catchUp);
@@ -29,6 +29,8 @@ import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Authenticator;
 import java.net.PasswordAuthentication;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.Properties;
@@ -50,6 +52,9 @@ import org.apache.commons.cli.ParseException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.tupelo_schneck.electric.current_cost.CurrentCostImporter;
+import org.tupelo_schneck.electric.store.JeStorageEngine;
+import org.tupelo_schneck.electric.store.MemoryStorageEngine;
+import org.tupelo_schneck.electric.store.SegmentStorageEngine;
 
 import com.ibm.icu.util.TimeZone;
 
@@ -104,6 +109,9 @@ public class Options extends org.apache.commons.cli.Options {
     public int longImportInterval = 5*60;
     public int numDataPoints = 1000;
     public int maxDataPoints = 5000;
+    public int cacheCells = 1000000;
+    public int queryThreads = 4;
+    public int downsampleRows = 100000;
     public int port = 8081;
     public boolean voltage = false;
     public int voltageDivisor = 10;
@@ -132,6 +140,27 @@ public class Options extends org.apache.commons.cli.Options {
 
     public int deleteUntil;
 
+    public boolean blockStorage = false;
+    // codec name by resolution; 0 for all resolutions not otherwise given
+    public Map<Integer,String> codecs = new HashMap<Integer,String>();
+    // storage engine name by resolution, likewise
+    public Map<Integer,String> storageEngines = new HashMap<Integer,String>();
+    // partitioning name by resolution, likewise
+    public Map<Integer,String> partitions = new HashMap<Integer,String>();
+    // key order by resolution, likewise
+    public Map<Integer,String> keyOrders = new HashMap<Integer,String>();
+    // retention period by resolution, likewise
+    public Map<Integer,String> retention = new HashMap<Integer,String>();
+    public String durability = DurabilityPolicy.PERIODIC;
+    public long syncInterval = 60*1000; // milliseconds
+    public int syncRecords = 3600;
+    public boolean migrate = false;
+    public boolean rebuildRollups = false;
+    // 0 for the first or last data
+    public int rebuildStart;
+    public int rebuildEnd;
+    public int rebuildThreads = Runtime.getRuntime().availableProcessors();
+
     @SuppressWarnings("static-access")
     public Options() {
         Option optionFile=OptionBuilder.withLongOpt("config-file")
@@ -172,6 +201,21 @@ public class Options extends org.apache.commons.cli.Options {
         this.addOption("u","username",true,"username for password-protected TED gateway (will prompt for password; default none)");
         this.addOption("n","num-points",true,"target number of data points returned over the zoom region (default 1000)");
         this.addOption("x","max-points",true,"number of data points beyond which server will not go (default 5000)");
+        Option cacheCellsOpt = OptionBuilder.withLongOpt("cache-cells")
+                .withDescription("table cells of query results over past data kept in memory by the server, or 0 for none (default 1000000)")
+                .withArgName("arg")
+                .hasArg().create(); 
+        this.addOption(cacheCellsOpt);
+        Option queryThreadsOpt = OptionBuilder.withLongOpt("query-threads")
+                .withDescription("threads shared by all queries for reading the parts of each at once, or 0 to read them in turn (default 4)")
+                .withArgName("arg")
+                .hasArg().create(); 
+        this.addOption(queryThreadsOpt);
+        Option downsampleRowsOpt = OptionBuilder.withLongOpt("downsample-rows")
+                .withDescription("rows per channel read for the zoom of queries with downsample=minmax or downsample=lttb, at most, from the finest resolution within it (default 100000)")
+                .withArgName("arg")
+                .hasArg().create(); 
+        this.addOption(downsampleRowsOpt);
         this.addOption("l","server-log",true,"server request log filename; include string \"yyyy_mm_dd\" for automatic rollover; or use \"stderr\" (default no log)");
         this.addOption("i","import-interval",true,"seconds between imports of data, or 0 for only hour-long imports (default 4)");
         this.addOption("o","import-overlap",true,"extra seconds imported each time for good measure (default 8)");        
@@ -228,6 +272,73 @@ public class Options extends org.apache.commons.cli.Options {
                 .hasArg().create(); 
         this.addOption(deleteUntilOpt);
 
+        Option blockStorageOpt = OptionBuilder.withLongOpt("block-storage")
+                .withDescription("whether a newly created database stores 1-second data in hour-long blocks, for less disk and faster reads (default no)")
+                .hasOptionalArg().withArgName(null).create(); 
+        this.addOption(blockStorageOpt);
+
+        Option codecOpt = OptionBuilder.withLongOpt("codec")
+                .withDescription("storage for newly created databases: packed, delta, xor, or none (one record per sample); or comma-separated <res>=<codec> (default packed for 1-second data with --block-storage, otherwise none)")
+                .withArgName("arg")
+                .hasArg().create(); 
+        this.addOption(codecOpt);
+
+        Option storageOpt = OptionBuilder.withLongOpt("storage")
+                .withDescription("storage engine for newly created databases: je (Berkeley DB), mmap (memory-mapped segment files), or memory (not persistent); or comma-separated <res>=<engine> (default je)")
+                .withArgName("arg")
+                .hasArg().create(); 
+        this.addOption(storageOpt);
+
+        Option partitionOpt = OptionBuilder.withLongOpt("partition")
+                .withDescription("how newly created databases are split by time, so old data can be deleted quickly: month, year, <n>d (days), or none; or comma-separated <res>=<partition> (default month for seconds, year for minutes, none for hours and days)")
+                .withArgName("arg")
+                .hasArg().create(); 
+        this.addOption(partitionOpt);
+
+        Option keyOrderOpt = OptionBuilder.withLongOpt("key-order")
+                .withDescription("key order for newly created databases using records (codec none): time, or mtu to keep each channel's data together for faster single-channel reads; or comma-separated <res>=<order> (default time)")
+                .withArgName("arg")
+                .hasArg().create(); 
+        this.addOption(keyOrderOpt);
+
+        Option retentionOpt = OptionBuilder.withLongOpt("retention")
+                .withDescription("how long to keep data while recording, as <n>d, <n>w, <n>y, or forever; or comma-separated <res>=<period>, e.g. 1=60d,4=1y,15=1y (default forever)")
+                .withArgName("arg")
+                .hasArg().create(); 
+        this.addOption(retentionOpt);
+
+        Option durabilityOpt = OptionBuilder.withLongOpt("durability")
+                .withDescription("when to sync recorded data to disk: none (only on exit), periodic (every sync-interval), or group (also after sync-records records) (default periodic)")
+                .withArgName("arg")
+                .hasArg().create(); 
+        this.addOption(durabilityOpt);
+        Option syncIntervalOpt = OptionBuilder.withLongOpt("sync-interval")
+                .withDescription("milliseconds between syncs (default 60000)")
+                .withArgName("arg")
+                .hasArg().create(); 
+        this.addOption(syncIntervalOpt);
+        Option syncRecordsOpt = OptionBuilder.withLongOpt("sync-records")
+                .withDescription("in group durability, records to write before syncing (default 3600)")
+                .withArgName("arg")
+                .hasArg().create(); 
+        this.addOption(syncRecordsOpt);
+
+        Option migrateOpt = OptionBuilder.withLongOpt("migrate")
+                .withDescription("rewrite existing databases using the storage given by --storage, --codec, --partition, --key-order, and --block-storage; implies --no-serve --no-record")
+                .create(); 
+        this.addOption(migrateOpt);
+
+        Option rebuildRollupsOpt = OptionBuilder.withLongOpt("rebuild-rollups")
+                .withDescription("recompute all resolutions above 1 second from the 1-second data, for whole days from <start> to <end> (default all data); implies --no-serve --no-record")
+                .withArgName("start,end")
+                .hasOptionalArg().create(); 
+        this.addOption(rebuildRollupsOpt);
+        Option rebuildThreadsOpt = OptionBuilder.withLongOpt("rebuild-threads")
+                .withDescription("threads for --rebuild-rollups (default the number of processors)")
+                .withArgName("arg")
+                .hasArg().create(); 
+        this.addOption(rebuildThreadsOpt);
+
         Option ccListSerialPortsOpt = OptionBuilder.withLongOpt("cc-list-serial-ports")
                 .withDescription("Current Cost: list all serial ports and exit")
                 .create();
@@ -274,6 +385,43 @@ public class Options extends org.apache.commons.cli.Options {
         }
     }
 
+    // parses "<value>" or "<res>=<value>,..." into map, with 0 as the key for all resolutions; returns false if invalid
+    private static boolean parsePerResolution(String arg, Map<Integer,String> map) {
+        boolean valid = true;
+        for(String val : arg.split(",")) {
+            val = val.trim().toLowerCase();
+            int res = 0;
+            int equals = val.indexOf('=');
+            if(equals >= 0) {
+                res = Integer.parseInt(val.substring(0,equals).trim());
+                val = val.substring(equals+1).trim();
+                if(res<=0) valid = false;
+            }
+            map.put(Integer.valueOf(res), val);
+        }
+        return valid;
+    }
+
+    /** Parses <n>d, <n>w, <n>y (365 days), or forever (0) into seconds; returns -1 if invalid */
+    public static int parsePeriod(String period) {
+        if("forever".equals(period)) return 0;
+        if(period.length() < 2) return -1;
+        int unit;
+        char c = period.charAt(period.length() - 1);
+        if(c=='d') unit = 86400;
+        else if(c=='w') unit = 7 * 86400;
+        else if(c=='y') unit = 365 * 86400;
+        else return -1;
+        try {
+            int n = Integer.parseInt(period.substring(0, period.length() - 1));
+            if(n <= 0 || n > Integer.MAX_VALUE / unit) return -1;
+            return n * unit;
+        }
+        catch(NumberFormatException e) {
+            return -1;
+        }
+    }
+
     private static class FileConfig {
         Properties props=new Properties();
 
@@ -535,6 +683,101 @@ public class Options extends org.apache.commons.cli.Options {
                     deleteUntil = Util.timestampFromUserInput(options.getOptionValue("delete-until",null),false,serveTimeZone);
                 }
 
+                if(options.hasOption("block-storage", null)) {
+                    blockStorage = optionalBoolean(options,"block-storage",null,false);
+                }
+
+                if(options.hasOption("codec", null)) {
+                    if(!parsePerResolution(options.getOptionValue("codec", null), codecs)) showUsageAndExit = true;
+                    for(String val : codecs.values()) {
+                        if(!BlockCodec.NONE.equals(val) && BlockCodec.forName(val)==null) {
+                            System.err.println("Unknown codec " + val);
+                            showUsageAndExit = true;
+                        }
+                    }
+                }
+
+                if(options.hasOption("storage", null)) {
+                    if(!parsePerResolution(options.getOptionValue("storage", null), storageEngines)) showUsageAndExit = true;
+                    for(String val : storageEngines.values()) {
+                        if(!JeStorageEngine.NAME.equals(val) && !SegmentStorageEngine.NAME.equals(val) && !MemoryStorageEngine.NAME.equals(val)) {
+                            System.err.println("Unknown storage engine " + val);
+                            showUsageAndExit = true;
+                        }
+                    }
+                }
+
+                if(options.hasOption("partition", null)) {
+                    if(!parsePerResolution(options.getOptionValue("partition", null), partitions)) showUsageAndExit = true;
+                    for(String val : partitions.values()) {
+                        if(!Partitioning.NONE.equals(val) && Partitioning.forName(val)==null) {
+                            System.err.println("Unknown partitioning " + val);
+                            showUsageAndExit = true;
+                        }
+                    }
+                }
+
+                if(options.hasOption("key-order", null)) {
+                    if(!parsePerResolution(options.getOptionValue("key-order", null), keyOrders)) showUsageAndExit = true;
+                    for(String val : keyOrders.values()) {
+                        if(!TimeSeriesDatabase.TIME_MAJOR.equals(val) && !TimeSeriesDatabase.MTU_MAJOR.equals(val)) {
+                            System.err.println("Unknown key order " + val);
+                            showUsageAndExit = true;
+                        }
+                    }
+                }
+
+                if(options.hasOption("retention", null)) {
+                    if(!parsePerResolution(options.getOptionValue("retention", null), retention)) showUsageAndExit = true;
+                    for(String val : retention.values()) {
+                        if(parsePeriod(val) < 0) {
+                            System.err.println("Unknown retention period " + val);
+                            showUsageAndExit = true;
+                        }
+                    }
+                }
+
+                if(options.hasOption("durability", null)) {
+                    durability = options.getOptionValue("durability", null);
+                    if(!DurabilityPolicy.NONE.equals(durability) && !DurabilityPolicy.PERIODIC.equals(durability) && !DurabilityPolicy.GROUP.equals(durability)) {
+                        System.err.println("Unknown durability " + durability);
+                        showUsageAndExit = true;
+                    }
+                }
+                if(options.hasOption("sync-interval", null)) {
+                    syncInterval = Long.parseLong(options.getOptionValue("sync-interval", null));
+                    if(syncInterval<=0) showUsageAndExit = true;
+                }
+                if(options.hasOption("sync-records", null)) {
+                    syncRecords = Integer.parseInt(options.getOptionValue("sync-records", null));
+                    if(syncRecords<=0) showUsageAndExit = true;
+                }
+
+                if(options.hasOption("migrate", null)) {
+                    serve = false;
+                    record = false;
+                    migrate = true;
+                }
+
+                if(options.hasOption("rebuild-rollups", null)) {
+                    serve = false;
+                    record = false;
+                    rebuildRollups = true;
+                    String val = options.getOptionValue("rebuild-rollups", null);
+                    if(val!=null && val.trim().length()>0) {
+                        String[] vals = val.split(",");
+                        if(vals.length!=2) showUsageAndExit = true;
+                        else {
+                            rebuildStart = Util.timestampFromUserInput(vals[0].trim(),false,serveTimeZone);
+                            rebuildEnd = Util.timestampFromUserInput(vals[1].trim(),true,serveTimeZone);
+                        }
+                    }
+                }
+                if(options.hasOption("rebuild-threads", null)) {
+                    rebuildThreads = Integer.parseInt(options.getOptionValue("rebuild-threads", null));
+                    if(rebuildThreads<=0) showUsageAndExit = true;
+                }
+
                 if(options.hasOption("port","p")) {
                     String val = options.getOptionValue("port","p");
                     if(val.equals("none")) {
@@ -573,6 +816,18 @@ public class Options extends org.apache.commons.cli.Options {
                     maxDataPoints = Integer.parseInt(options.getOptionValue("max-points","x"));
                     if(maxDataPoints<=0) showUsageAndExit = true;
                 }
+                if(options.hasOption("cache-cells", null)) {
+                    cacheCells = Integer.parseInt(options.getOptionValue("cache-cells", null));
+                    if(cacheCells<0) showUsageAndExit = true;
+                }
+                if(options.hasOption("query-threads", null)) {
+                    queryThreads = Integer.parseInt(options.getOptionValue("query-threads", null));
+                    if(queryThreads<0) showUsageAndExit = true;
+                }
+                if(options.hasOption("downsample-rows", null)) {
+                    downsampleRows = Integer.parseInt(options.getOptionValue("downsample-rows", null));
+                    if(downsampleRows<=0) showUsageAndExit = true;
+                }
                 if(options.hasOption("import-interval","i")) {
                     tedOptions = true;
                     importInterval = Integer.parseInt(options.getOptionValue("import-interval","i"));
@@ -646,7 +901,7 @@ public class Options extends org.apache.commons.cli.Options {
         if(!hasDbFilename && !listSerialPortsAndExit) {
             showUsageAndExit = true;
         }
-        else if(!serve && !record && !export && deleteUntil==0 && !listSerialPortsAndExit) {
+        else if(!serve && !record && !export && deleteUntil==0 && !migrate && !rebuildRollups && !listSerialPortsAndExit) {
             showUsageAndExit = true;
         }
 
@@ -0,0 +1,396 @@
+/*
+This file is part of
+"it's electric": software for storing and viewing home energy monitoring data
+Copyright (C) 2009--2015 Robert R. Tupelo-Schneck <schneck@gmail.com>
+http://tupelo-schneck.org/its-electric
+
+"it's electric" is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+"it's electric" is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with "it's electric", as legal/COPYING-agpl.txt.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.tupelo_schneck.electric;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.tupelo_schneck.electric.store.ByteArrayComparator;
+import org.tupelo_schneck.electric.store.StorageEngine;
+import org.tupelo_schneck.electric.store.Store;
+import org.tupelo_schneck.electric.store.StoreCursor;
+
+import com.sleepycat.je.DatabaseException;
+
+/**
+ * A store of time-series keys (with a 4-byte timestamp at a fixed offset) kept as one store per partition,
+ * named name@start.  A range delete covering a whole partition removes its store, 
+ * so deleting old data costs the same however much there is.
+ * Keys whose timestamp does not come first are in key order within each partition,
+ * but partition by partition overall; they are dropped by time with {@link #dropBefore}.
+ */
+class PartitionedStore implements Store {
+    private static final Log log = LogFactory.getLog(PartitionedStore.class);
+
+    private static final char SEPARATOR = '@';
+    private static final byte[] FIRST = new byte[0];
+
+    private final StorageEngine engine;
+    private final String name;
+    private final Partitioning partitioning;
+    private final int timestampOffset;
+    private final ConcurrentSkipListMap<Integer,Partition> partitions = new ConcurrentSkipListMap<Integer,Partition>();
+    // partitions dropped but still in use by cursors
+    private final Set<Integer> dropping = new HashSet<Integer>();
+
+    PartitionedStore(StorageEngine engine, String name, Partitioning partitioning, int timestampOffset) throws DatabaseException {
+        this.engine = engine;
+        this.name = name;
+        this.partitioning = partitioning;
+        this.timestampOffset = timestampOffset;
+        for(String storeName : engine.getNames()) {
+            int start = partitionStart(storeName, name);
+            if(start < 0) continue;
+            partitions.put(Integer.valueOf(start), new Partition(start, storeName));
+        }
+    }
+
+    // the start of the partition if storeName is a partition of name, otherwise -1
+    private static int partitionStart(String storeName, String name) {
+        if(!storeName.startsWith(name) || storeName.length() <= name.length() + 1 || storeName.charAt(name.length())!=SEPARATOR) return -1;
+        try {
+            return Integer.parseInt(storeName.substring(name.length() + 1));
+        }
+        catch(NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Whether the engine has a store of this name, or partitions of one */
+    static boolean exists(StorageEngine engine, String name) throws DatabaseException {
+        for(String storeName : engine.getNames()) {
+            if(storeName.equals(name) || partitionStart(storeName, name) >= 0) return true;
+        }
+        return false;
+    }
+
+    /** Removes the store of this name and any partitions of it */
+    static void remove(StorageEngine engine, String name) throws DatabaseException {
+        for(String storeName : engine.getNames()) {
+            if(storeName.equals(name) || partitionStart(storeName, name) >= 0) engine.remove(storeName);
+        }
+    }
+
+    /** Renames the store of this name and any partitions of it */
+    static void rename(StorageEngine engine, String from, String to) throws DatabaseException {
+        for(String storeName : engine.getNames()) {
+            if(storeName.equals(from)) engine.rename(storeName, to);
+            else {
+                int start = partitionStart(storeName, from);
+                if(start >= 0) engine.rename(storeName, to + SEPARATOR + start);
+            }
+        }
+    }
+
+    private int timestampOf(byte[] key) {
+        int res = 0;
+        for(int i = timestampOffset; i < timestampOffset + 4; i++) {
+            res <<= 8;
+            if(i < key.length) res |= key[i] & 0xFF;
+        }
+        return res;
+    }
+
+    private static byte[] keyOf(int timestamp) {
+        return new byte[] { (byte)(timestamp >> 24), (byte)(timestamp >> 16), (byte)(timestamp >> 8), (byte)timestamp };
+    }
+
+    private class Partition {
+        final int start;
+        final String storeName;
+        final Store store;
+        private int users;
+        private boolean dropped;
+
+        Partition(int start, String storeName) throws DatabaseException {
+            this.start = start;
+            this.storeName = storeName;
+            this.store = engine.open(storeName);
+        }
+
+        synchronized boolean acquire() {
+            if(dropped) return false;
+            users++;
+            return true;
+        }
+
+        void release() throws DatabaseException {
+            boolean remove;
+            synchronized(this) {
+                users--;
+                remove = dropped && users==0;
+            }
+            if(remove) destroy();
+        }
+
+        void drop() throws DatabaseException {
+            boolean remove;
+            synchronized(this) {
+                dropped = true;
+                remove = users==0;
+            }
+            if(remove) destroy();
+        }
+
+        private void destroy() throws DatabaseException {
+            log.trace("Removing " + storeName);
+            try {
+                store.close();
+                engine.remove(storeName);
+            }
+            finally {
+                synchronized(PartitionedStore.this) {
+                    dropping.remove(Integer.valueOf(start));
+                }
+            }
+        }
+    }
+
+    // returns the partition holding the timestamp, acquired; or null if there is none and !create
+    private Partition acquire(int timestamp, boolean create) throws DatabaseException {
+        Integer start = Integer.valueOf(partitioning.startOf(timestamp));
+        while(true) {
+            Partition partition = partitions.get(start);
+            if(partition==null) {
+                if(!create) return null;
+                synchronized(this) {
+                    partition = partitions.get(start);
+                    if(partition==null) {
+                        if(dropping.contains(start)) {
+                            throw new DatabaseException("Partition " + name + SEPARATOR + start + " is being removed") {};
+                        }
+                        partition = new Partition(start.intValue(), name + SEPARATOR + start);
+                        partitions.put(start, partition);
+                    }
+                }
+            }
+            if(partition.acquire()) return partition;
+        }
+    }
+
+    private void drop(Partition partition) throws DatabaseException {
+        synchronized(this) {
+            if(partitions.remove(Integer.valueOf(partition.start))==null) return;
+            dropping.add(Integer.valueOf(partition.start));
+        }
+        partition.drop();
+    }
+
+    @Override
+    public byte[] get(byte[] key) throws DatabaseException {
+        Partition partition = acquire(timestampOf(key), false);
+        if(partition==null) return null;
+        try {
+            return partition.store.get(key);
+        }
+        finally {
+            partition.release();
+        }
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) throws DatabaseException {
+        Partition partition = acquire(timestampOf(key), true);
+        try {
+            partition.store.put(key, value);
+        }
+        finally {
+            partition.release();
+        }
+    }
+
+    @Override
+    public boolean putNoOverwrite(byte[] key, byte[] value) throws DatabaseException {
+        Partition partition = acquire(timestampOf(key), true);
+        try {
+            return partition.store.putNoOverwrite(key, value);
+        }
+        finally {
+            partition.release();
+        }
+    }
+
+    @Override
+    public boolean delete(byte[] key) throws DatabaseException {
+        Partition partition = acquire(timestampOf(key), false);
+        if(partition==null) return false;
+        try {
+            return partition.store.delete(key);
+        }
+        finally {
+            partition.release();
+        }
+    }
+
+    @Override
+    public void deleteRange(byte[] from, byte[] to) throws DatabaseException {
+        if(timestampOffset!=0) {
+            // any partition may hold keys in the range
+            for(Partition partition : partitions.values()) {
+                if(Thread.currentThread().isInterrupted()) return;
+                if(!partition.acquire()) continue;
+                try {
+                    partition.store.deleteRange(from, to);
+                }
+                finally {
+                    partition.release();
+                }
+            }
+            return;
+        }
+        ByteArrayComparator comparator = ByteArrayComparator.INSTANCE;
+        for(Partition partition : partitions.values()) {
+            if(Thread.currentThread().isInterrupted()) return;
+            byte[] startKey = keyOf(partition.start);
+            byte[] endKey = keyOf(partitioning.endOf(partition.start));
+            if(comparator.compare(from, endKey) >= 0) continue;
+            if(to!=null && comparator.compare(to, startKey) <= 0) break;
+            if(comparator.compare(from, startKey) <= 0 && (to==null || comparator.compare(endKey, to) <= 0)) {
+                log.trace("Dropping partition " + partition.storeName);
+                drop(partition);
+            }
+            else if(partition.acquire()) {
+                try {
+                    partition.store.deleteRange(from, to);
+                }
+                finally {
+                    partition.release();
+                }
+            }
+        }
+    }
+
+    /** Removes the stores of all partitions ending at or before the timestamp */
+    void dropBefore(int timestamp) throws DatabaseException {
+        for(Partition partition : partitions.values()) {
+            if(partitioning.endOf(partition.start) > timestamp) break;
+            log.trace("Dropping partition " + partition.storeName);
+            drop(partition);
+        }
+    }
+
+    @Override
+    public StoreCursor openCursor() {
+        return new PartitionedCursor();
+    }
+
+    @Override
+    public synchronized void close() {
+        for(Partition partition : partitions.values()) {
+            try { partition.store.close(); } catch (Exception e) { e.printStackTrace(); }
+        }
+        partitions.clear();
+    }
+
+    private class PartitionedCursor implements StoreCursor {
+        private Partition partition;
+        private StoreCursor cursor;
+
+        private void leave() throws DatabaseException {
+            if(cursor!=null) {
+                cursor.close();
+                cursor = null;
+            }
+            if(partition!=null) {
+                Partition old = partition;
+                partition = null;
+                old.release();
+            }
+        }
+
+        private boolean enter(Map.Entry<Integer,Partition> entry) throws DatabaseException {
+            leave();
+            if(!entry.getValue().acquire()) return false;
+            partition = entry.getValue();
+            cursor = partition.store.openCursor();
+            return true;
+        }
+
+        @Override
+        public boolean seek(byte[] key) throws DatabaseException {
+            Map.Entry<Integer,Partition> entry = partitions.ceilingEntry(Integer.valueOf(partitioning.startOf(timestampOf(key))));
+            for(; entry!=null; entry = partitions.higherEntry(entry.getKey())) {
+                if(enter(entry) && cursor.seek(key)) return true;
+            }
+            leave();
+            return false;
+        }
+
+        @Override
+        public boolean last() throws DatabaseException {
+            for(Map.Entry<Integer,Partition> entry = partitions.lastEntry(); entry!=null; entry = partitions.lowerEntry(entry.getKey())) {
+                if(enter(entry) && cursor.last()) return true;
+            }
+            leave();
+            return false;
+        }
+
+        @Override
+        public boolean next() throws DatabaseException {
+            if(cursor==null) return false;
+            if(cursor.next()) return true;
+            Integer start = Integer.valueOf(partition.start);
+            for(Map.Entry<Integer,Partition> entry = partitions.higherEntry(start); entry!=null; entry = partitions.higherEntry(entry.getKey())) {
+                if(enter(entry) && cursor.seek(FIRST)) return true;
+            }
+            leave();
+            return false;
+        }
+
+        @Override
+        public boolean prev() throws DatabaseException {
+            if(cursor==null) return false;
+            if(cursor.prev()) return true;
+            Integer start = Integer.valueOf(partition.start);
+            for(Map.Entry<Integer,Partition> entry = partitions.lowerEntry(start); entry!=null; entry = partitions.lowerEntry(entry.getKey())) {
+                if(enter(entry) && cursor.last()) return true;
+            }
+            leave();
+            return false;
+        }
+
+        @Override
+        public byte[] key() {
+            return cursor.key();
+        }
+
+        @Override
+        public byte[] value() throws DatabaseException {
+            return cursor.value();
+        }
+
+        // releases the partition, so a pooled cursor does not hold up a drop
+        @Override
+        public void reset() {
+            try { leave(); } catch (Exception e) { e.printStackTrace(); }
+        }
+
+        @Override
+        public void close() {
+            reset();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+This file is part of
+"it's electric": software for storing and viewing home energy monitoring data
+Copyright (C) 2009--2015 Robert R. Tupelo-Schneck <schneck@gmail.com>
+http://tupelo-schneck.org/its-electric
+
+"it's electric" is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+"it's electric" is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with "it's electric", as legal/COPYING-agpl.txt.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.tupelo_schneck.electric;
+
+/** How a database is divided by time into separate stores, so that old data can be dropped a whole store at a time */
+abstract class Partitioning {
+    static final String NONE = "none";
+
+    static final Partitioning MONTH = new Partitioning("month") {
+        @Override
+        int startOf(int timestamp) {
+            int[] yearMonth = yearMonthOf(timestamp);
+            return startOfMonth(yearMonth[0], yearMonth[1]);
+        }
+
+        @Override
+        int endOf(int start) {
+            int[] yearMonth = yearMonthOf(start);
+            if(yearMonth[1]==12) return startOfMonth(yearMonth[0] + 1, 1);
+            return startOfMonth(yearMonth[0], yearMonth[1] + 1);
+        }
+    };
+
+    static final Partitioning YEAR = new Partitioning("year") {
+        @Override
+        int startOf(int timestamp) {
+            return startOfMonth(yearMonthOf(timestamp)[0], 1);
+        }
+
+        @Override
+        int endOf(int start) {
+            return startOfMonth(yearMonthOf(start)[0] + 1, 1);
+        }
+    };
+
+    public final String name;
+
+    private Partitioning(String name) {
+        this.name = name;
+    }
+
+    /** "month", "year", or a number of days followed by "d"; returns null if invalid or "none" */
+    static Partitioning forName(String name) {
+        if(MONTH.name.equals(name)) return MONTH;
+        if(YEAR.name.equals(name)) return YEAR;
+        if(name.endsWith("d")) {
+            try {
+                int days = Integer.parseInt(name.substring(0, name.length() - 1));
+                if(days > 0 && days <= 3650) return new FixedPartitioning(name, days * 86400);
+            }
+            catch(NumberFormatException e) {
+                // fall through
+            }
+        }
+        return null;
+    }
+
+    static String nameOf(Partitioning partitioning) {
+        return partitioning==null ? NONE : partitioning.name;
+    }
+
+    /** The start of the partition holding the timestamp */
+    abstract int startOf(int timestamp);
+
+    /** The start of the partition after the one starting at start */
+    abstract int endOf(int start);
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    private static class FixedPartitioning extends Partitioning {
+        private final int span;
+
+        FixedPartitioning(String name, int span) {
+            super(name);
+            this.span = span;
+        }
+
+        @Override
+        int startOf(int timestamp) {
+            return timestamp - timestamp % span;
+        }
+
+        @Override
+        int endOf(int start) {
+            return start + span;
+        }
+    }
+
+    // UTC year and month (1-12) of a non-negative timestamp; see http://howardhinnant.github.io/date_algorithms.html
+    private static int[] yearMonthOf(int timestamp) {
+        int days = timestamp / 86400 + 719468;
+        int era = days / 146097;
+        int dayOfEra = days - era * 146097;
+        int yearOfEra = (dayOfEra - dayOfEra/1460 + dayOfEra/36524 - dayOfEra/146096) / 365;
+        int dayOfYear = dayOfEra - (365*yearOfEra + yearOfEra/4 - yearOfEra/100);
+        int mp = (5*dayOfYear + 2)/153;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        int year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        return new int[] { year, month };
+    }
+
+    private static int startOfMonth(int year, int month) {
+        if(month <= 2) year--;
+        int era = year / 400;
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153*(month > 2 ? month - 3 : month + 9) + 2)/5;
+        int dayOfEra = yearOfEra * 365 + yearOfEra/4 - yearOfEra/100 + dayOfYear;
+        long days = era * 146097L + dayOfEra - 719468;
+        return (int)Math.min(Integer.MAX_VALUE, days * 86400);
+    }
+}
@@ -0,0 +1,206 @@
+/*
+This file is part of
+"it's electric": software for storing and viewing home energy monitoring data
+Copyright (C) 2009--2015 Robert R. Tupelo-Schneck <schneck@gmail.com>
+http://tupelo-schneck.org/its-electric
+
+"it's electric" is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+"it's electric" is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with "it's electric", as legal/COPYING-agpl.txt.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.tupelo_schneck.electric;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sleepycat.je.DatabaseException;
+
+/**
+ * Results built from reads of a rollup database, kept up to a total size, least recently used first out.
+ * A result stays valid until the database's maxForMTU, for one of its MTUs, moves within its range,
+ * or until {@link #invalidate} is called for entries rewritten in its range, as by a repair;
+ * so results for ranges long past are never built again.  Concurrent requests for the same key wait for one build.
+ */
+public class ReadCache {
+    private final int capacity;
+
+    // guarded by slots; in access order
+    private final LinkedHashMap<Key,Slot> slots = new LinkedHashMap<Key,Slot>(16, 0.75f, true);
+    private int size;
+    // counts invalidations, so that a result built across one is not kept
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public final AtomicLong hits = new AtomicLong();
+    public final AtomicLong misses = new AtomicLong();
+
+    /** What is read, and what is built from it; start and end are aligned to the periods of the database */
+    public static final class Key {
+        final Object kind;
+        final TimeSeriesDatabase db;
+        final int start;
+        final int end;
+        final boolean[] mtus;
+
+        public Key(Object kind, TimeSeriesDatabase db, int start, int end, boolean[] mtus) {
+            this.kind = kind;
+            this.db = db;
+            int first = db.periodStart(start);
+            this.start = first < start ? first + db.resolution : first;
+            this.end = db.periodStart(end);
+            this.mtus = mtus.clone();
+        }
+
+        // the last second of the last period in range
+        int lastSecond() {
+            return end + db.resolution - 1;
+        }
+
+        boolean has(byte mtu) {
+            return mtu < 0 || (mtu < mtus.length && mtus[mtu]);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Key)) return false;
+            Key other = (Key)obj;
+            return kind.equals(other.kind) && db==other.db && start==other.start && end==other.end && Arrays.equals(mtus, other.mtus);
+        }
+
+        @Override
+        public int hashCode() {
+            return ((kind.hashCode() * 31 + db.resolution) * 31 + start) * 31 + end * 17 + Arrays.hashCode(mtus);
+        }
+    }
+
+    /** A built result */
+    public interface Value {
+        /** In whatever units the capacity is given, e.g. table cells */
+        int size();
+    }
+
+    /** Builds the result for a key, reading from key's database between its start and end */
+    public interface Builder {
+        Value build(Key key) throws DatabaseException;
+    }
+
+    private static class Slot {
+        Value value;
+        // the database's maxForMTU when the value was built
+        int[] maxima;
+    }
+
+    /** Keeps results of at most capacity in total size; 0 to keep none */
+    public ReadCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /** The result for key, built by builder unless kept and still valid */
+    public Value get(Key key, Builder builder) throws DatabaseException {
+        if(capacity<=0) return builder.build(key);
+        Slot slot;
+        synchronized(slots) {
+            slot = slots.get(key);
+            if(slot==null) {
+                slot = new Slot();
+                slots.put(key, slot);
+            }
+        }
+        synchronized(slot) {
+            Value value = slot.value;
+            if(value!=null && isCurrent(key, slot.maxima)) {
+                hits.incrementAndGet();
+                return value;
+            }
+            misses.incrementAndGet();
+            long invalidationsBefore = invalidations.get();
+            // before reading: anything written after is caught by comparing them later
+            int[] maxima = key.db.maxForMTU.clone();
+            value = null;
+            try {
+                value = builder.build(key);
+            }
+            finally {
+                synchronized(slots) {
+                    if(slot.value!=null) size -= slot.value.size();
+                    slot.value = null;
+                    if(value!=null && value.size() <= capacity && invalidations.get()==invalidationsBefore && slots.get(key)==slot) {
+                        slot.value = value;
+                        slot.maxima = maxima;
+                        size += value.size();
+                        evict();
+                    }
+                    else if(slots.get(key)==slot) {
+                        slots.remove(key);
+                    }
+                }
+            }
+            return value;
+        }
+    }
+
+    // true unless maxForMTU has moved within the key's range, for one of its MTUs, since maxima
+    private static boolean isCurrent(Key key, int[] maxima) {
+        int last = key.lastSecond();
+        int[] current = key.db.maxForMTU;
+        for(byte mtu = 0; mtu < key.mtus.length && mtu < maxima.length; mtu++) {
+            if(!key.mtus[mtu]) continue;
+            if(Math.min(current[mtu], last)!=Math.min(maxima[mtu], last)) return false;
+        }
+        return true;
+    }
+
+    // drops the least recently used results until within capacity; call while synchronized on slots
+    private void evict() {
+        Iterator<Map.Entry<Key,Slot>> iter = slots.entrySet().iterator();
+        while(size > capacity && iter.hasNext()) {
+            Slot slot = iter.next().getValue();
+            // results being built are kept, and counted once built
+            if(slot.value==null) continue;
+            size -= slot.value.size();
+            slot.value = null;
+            iter.remove();
+        }
+    }
+
+    /**
+     * Drops results from db for the MTU, or for all if mtu is negative, whose ranges meet from to to.
+     * Call after rewriting entries already written there.
+     */
+    public void invalidate(TimeSeriesDatabase db, int from, int to, byte mtu) {
+        if(capacity<=0) return;
+        invalidations.incrementAndGet();
+        synchronized(slots) {
+            Iterator<Map.Entry<Key,Slot>> iter = slots.entrySet().iterator();
+            while(iter.hasNext()) {
+                Map.Entry<Key,Slot> entry = iter.next();
+                Key key = entry.getKey();
+                Slot slot = entry.getValue();
+                if(key.db!=db || slot.value==null || key.start > to || key.lastSecond() < from || !key.has(mtu)) continue;
+                size -= slot.value.size();
+                slot.value = null;
+                iter.remove();
+            }
+        }
+    }
+
+    /** The total size of the results kept */
+    public int size() {
+        synchronized(slots) {
+            return size;
+        }
+    }
+}
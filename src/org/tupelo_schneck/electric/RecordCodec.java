@@ -0,0 +1,130 @@
+/*
+This file is part of
+"it's electric": software for storing and viewing home energy monitoring data
+Copyright (C) 2009--2015 Robert R. Tupelo-Schneck <schneck@gmail.com>
+http://tupelo-schneck.org/its-electric
+
+"it's electric" is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+"it's electric" is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with "it's electric", as legal/COPYING-agpl.txt.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.tupelo_schneck.electric;
+
+/**
+ * Encoding of one {@link Sample} as a database key and value, for record storage.
+ * Encoding writes into buffers owned by the codec, which are reused by the next call;
+ * so an instance belongs to one thread, and {@link org.tupelo_schneck.electric.store.Store} implementations
+ * copy any arrays they keep.
+ */
+final class RecordCodec {
+    static final int KEY_SIZE = 5;
+    private static final int MAX_VALUE_SIZE = 13;
+
+    private final boolean mtuMajor;
+    private final byte[] key = new byte[KEY_SIZE];
+    // values[n] holds encoded values of length n
+    private final byte[][] values = new byte[MAX_VALUE_SIZE + 1][];
+
+    RecordCodec(boolean mtuMajor) {
+        this.mtuMajor = mtuMajor;
+    }
+
+    /** As {@link #writeKey}; returns the reused key buffer */
+    byte[] key(int timestamp, byte keyMtu) {
+        writeKey(key, timestamp, keyMtu, mtuMajor);
+        return key;
+    }
+
+    /** 4-byte timestamp then 1-byte database mtu; or, if mtuMajor, the mtu first */
+    static void writeKey(byte[] buf, int timestamp, byte keyMtu, boolean mtuMajor) {
+        int offset = mtuMajor ? 1 : 0;
+        buf[offset] = (byte) ((timestamp >> 24) & 0xFF);
+        buf[offset+1] = (byte) ((timestamp >> 16) & 0xFF);
+        buf[offset+2] = (byte) ((timestamp >> 8) & 0xFF);
+        buf[offset+3] = (byte) (timestamp & 0xFF);
+        buf[mtuMajor ? 0 : 4] = keyMtu;
+    }
+
+    static int timestampOfKey(byte[] key, boolean mtuMajor) {
+        return TimeSeriesDatabase.intOfBytes(key, mtuMajor ? 1 : 0);
+    }
+
+    static byte mtuOfKey(byte[] key, boolean mtuMajor) {
+        return key[mtuMajor ? 0 : 4];
+    }
+
+    private static int sizeOf(int i, boolean present) {
+        if(!present) return 0;
+        if(i<=127 && i>=-128) return 1;
+        else if(i<=32767 && i>=-32768) return 2;
+        else if(i<=8388607 && i>=-8388608) return 3;
+        else return 4;
+    }
+
+    private static int write(byte[] buf, int pos, int value, int size) {
+        for(int b = size - 1; b >= 0; b--) {
+            buf[pos++] = (byte)((value >> (8*b)) & 0xFF);
+        }
+        return pos;
+    }
+
+    // if size<=4, all is power (and empty means 0)
+    // otherwise first byte denotes sizes of power, voltage, kva (as base 5); for each, empty means missing
+    /** Encodes the values of sample; returns the reused buffer of the encoded length */
+    byte[] encode(Sample sample) {
+        int sizeOfPower = sizeOf(sample.power, sample.hasPower());
+        if(sample.present==Sample.POWER) {
+            byte[] buf = buffer(sample.power==0 ? 0 : sizeOfPower);
+            write(buf, 0, sample.power, buf.length);
+            return buf;
+        }
+        int sizeOfVoltage = sizeOf(sample.voltage, sample.hasVoltage());
+        int sizeOfVoltAmperes = sizeOf(sample.voltAmperes, sample.hasVoltAmperes());
+        byte[] buf = buffer(Math.max(5, 1 + sizeOfPower + sizeOfVoltage + sizeOfVoltAmperes));
+        buf[0] = (byte)(25*sizeOfPower + 5*sizeOfVoltage + sizeOfVoltAmperes);
+        int pos = write(buf, 1, sample.power, sizeOfPower);
+        pos = write(buf, pos, sample.voltage, sizeOfVoltage);
+        pos = write(buf, pos, sample.voltAmperes, sizeOfVoltAmperes);
+        while(pos < buf.length) buf[pos++] = 0;
+        return buf;
+    }
+
+    private byte[] buffer(int length) {
+        byte[] buf = values[length];
+        if(buf==null) {
+            buf = new byte[length];
+            values[length] = buf;
+        }
+        return buf;
+    }
+
+    /** Decodes all three values in one pass into sample, leaving its timestamp and mtu */
+    static void decode(byte[] buf, Sample sample) {
+        if(buf.length<=4) {
+            sample.present = Sample.POWER;
+            sample.power = TimeSeriesDatabase.intOfVariableBytes(buf,0,buf.length);
+            sample.voltage = 0;
+            sample.voltAmperes = 0;
+            return;
+        }
+        int sizes = buf[0];
+        int sizeOfPower = sizes/25;
+        int sizeOfVoltage = (sizes - 25*sizeOfPower)/5;
+        int sizeOfVoltAmperes = sizes - 25*sizeOfPower - 5*sizeOfVoltage;
+        sample.present = (sizeOfPower!=0 ? Sample.POWER : 0) | (sizeOfVoltage!=0 ? Sample.VOLTAGE : 0) | (sizeOfVoltAmperes!=0 ? Sample.VOLT_AMPERES : 0);
+        sample.power = TimeSeriesDatabase.intOfVariableBytes(buf,1,sizeOfPower);
+        sample.voltage = TimeSeriesDatabase.intOfVariableBytes(buf,1+sizeOfPower,sizeOfVoltage);
+        sample.voltAmperes = TimeSeriesDatabase.intOfVariableBytes(buf,1+sizeOfPower+sizeOfVoltage,sizeOfVoltAmperes);
+    }
+}
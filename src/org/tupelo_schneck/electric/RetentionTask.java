@@ -0,0 +1,97 @@
+/*
+This file is part of
+"it's electric": software for storing and viewing home energy monitoring data
+Copyright (C) 2009--2015 Robert R. Tupelo-Schneck <schneck@gmail.com>
+http://tupelo-schneck.org/its-electric
+
+"it's electric" is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+"it's electric" is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with "it's electric", as legal/COPYING-agpl.txt.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.tupelo_schneck.electric;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.sleepycat.je.DatabaseException;
+
+/**
+ * Deletes data older than each database's retention period (--retention), 
+ * a whole partition or a block span at a time with pauses in between, so the importers are not held up.
+ */
+public class RetentionTask implements Runnable {
+    private Log log = LogFactory.getLog(RetentionTask.class);
+
+    // seconds between runs
+    public static final int INTERVAL = 600;
+    // milliseconds to pause between deletions
+    private static final int PAUSE = 500;
+
+    private final Main main;
+    private final DatabaseManager databaseManager;
+    // seconds to keep each database; 0 for forever
+    private final int[] retention = new int[DatabaseManager.numDurations];
+
+    public RetentionTask(Main main, Options options, DatabaseManager databaseManager) {
+        this.main = main;
+        this.databaseManager = databaseManager;
+        for(int i = 0; i < DatabaseManager.numDurations; i++) {
+            String period = DatabaseManager.perResolution(options.retention, i);
+            if(period!=null) retention[i] = Options.parsePeriod(period);
+        }
+    }
+
+    public boolean hasRetention() {
+        for(int keep : retention) {
+            if(keep > 0) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void run() {
+        try {
+            for(int i = 0; i < DatabaseManager.numDurations && main.isRunning; i++) {
+                if(retention[i] > 0) enforce(i);
+            }
+        }
+        catch(InterruptedException e) {
+            // shutting down
+        }
+        catch(DatabaseException e) {
+            log.error("Error enforcing retention",e);
+        }
+    }
+
+    private void enforce(int i) throws DatabaseException, InterruptedException {
+        TimeSeriesDatabase db = databaseManager.databases[i];
+        Partitioning partitioning = databaseManager.partitioning(i);
+        int cutoff = (int)(System.currentTimeMillis() / 1000) - retention[i];
+        db.retentionCutoff = cutoff;
+        int first = db.minimumAfter(0);
+        while(main.isRunning && first > 0 && first < cutoff) {
+            int until = first - first % db.blockSpan + db.blockSpan;
+            if(partitioning!=null) {
+                int partitionEnd = partitioning.endOf(partitioning.startOf(first));
+                if(partitionEnd > until && partitionEnd <= cutoff) until = partitionEnd;
+            }
+            if(until > cutoff) until = cutoff;
+            db.deleteUntil(until);
+            databaseManager.readCache.invalidate(db, 0, until - 1, (byte)-1);
+            log.trace("Retention: deleted until " + Util.dateString(until) + " in database " + db.resolutionString);
+            Thread.sleep(PAUSE);
+            first = db.minimumAfter(until);
+        }
+    }
+}
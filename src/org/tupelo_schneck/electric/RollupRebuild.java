@@ -0,0 +1,204 @@
+/*
+This file is part of
+"it's electric": software for storing and viewing home energy monitoring data
+Copyright (C) 2009--2015 Robert R. Tupelo-Schneck <schneck@gmail.com>
+http://tupelo-schneck.org/its-electric
+
+"it's electric" is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+"it's electric" is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with "it's electric", as legal/COPYING-agpl.txt.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.tupelo_schneck.electric;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.tupelo_schneck.electric.TimeSeriesDatabase.Bucket;
+import org.tupelo_schneck.electric.TimeSeriesDatabase.ReadIterator;
+
+import com.sleepycat.je.DatabaseException;
+
+/**
+ * Recomputes the rollup databases from the seconds database, for --rebuild-rollups.
+ * Days are independent: each is a task on a pool of --rebuild-threads threads, reading that day's seconds 
+ * with its own cursor and writing only that day's periods, through a {@link DayCascade}.
+ * The range is extended back to the start of its first day; periods ending after its end, or after the latest
+ * second of their MTU, are left alone.
+ * The rollups' checkpoints no longer apply, and are removed.
+ */
+public class RollupRebuild {
+    private Log log = LogFactory.getLog(RollupRebuild.class);
+
+    private static final long PROGRESS_INTERVAL = 10*1000;
+
+    private final Main main;
+    private final DatabaseManager databaseManager;
+    private final int threads;
+    private int start;
+    private int end;
+    private int[] latest;
+
+    private final AtomicLong secondsRead = new AtomicLong();
+    private final AtomicLong periodsWritten = new AtomicLong();
+
+    public RollupRebuild(Main main, Options options, DatabaseManager databaseManager) {
+        this.main = main;
+        this.databaseManager = databaseManager;
+        this.threads = options.rebuildThreads;
+        this.start = options.rebuildStart;
+        this.end = options.rebuildEnd;
+    }
+
+    public void run() throws DatabaseException {
+        TimeSeriesDatabase secondsDb = databaseManager.secondsDb;
+        latest = secondsDb.maxForMTU.clone();
+        if(start<=0) start = secondsDb.minimumAfter(0);
+        if(end<=0) {
+            for(int max : secondsDb.maxForMTU) {
+                if(max > end) end = max;
+            }
+        }
+        if(start<=0 || end < start) {
+            log.info("No data to rebuild rollups from.");
+            return;
+        }
+        TimeSeriesDatabase dayDb = databaseManager.databases[DatabaseManager.numDurations - 1];
+        List<Integer> days = new ArrayList<Integer>();
+        for(int day = dayDb.periodStart(start); day <= end; day += DayCascade.DAY) {
+            days.add(Integer.valueOf(day));
+        }
+        log.info("Rebuilding rollups for " + days.size() + " days from " + Util.dateString(start) + " to " + Util.dateString(end) + " on " + threads + " threads");
+
+        long startNanos = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for(Integer day : days) {
+                futures.add(pool.submit(new DayTask(day.intValue())));
+            }
+            long latestProgress = System.currentTimeMillis();
+            int done = 0;
+            for(Future<Void> future : futures) {
+                try {
+                    future.get();
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                catch(ExecutionException e) {
+                    if(e.getCause() instanceof DatabaseException) throw (DatabaseException)e.getCause();
+                    throw new RuntimeException(e.getCause());
+                }
+                done++;
+                if(System.currentTimeMillis() - latestProgress > PROGRESS_INTERVAL) {
+                    log.info("   rebuilt " + done + " of " + days.size() + " days, " + rate(startNanos));
+                    latestProgress = System.currentTimeMillis();
+                }
+                if(!main.isRunning) return;
+            }
+        }
+        finally {
+            pool.shutdownNow();
+        }
+        databaseManager.deleteCheckpoints();
+        databaseManager.sync();
+        log.info("Rebuilt rollups for " + days.size() + " days in " + (System.nanoTime() - startNanos) / 1000000000L + "s: " + rate(startNanos));
+    }
+
+    private String rate(long startNanos) {
+        long millis = Math.max(1, (System.nanoTime() - startNanos) / 1000000);
+        long seconds = secondsRead.get();
+        return seconds + " entries read (" + seconds * 1000 / millis + "/s), " + periodsWritten.get() + " averages written";
+    }
+
+    // recomputes the rollups for one day
+    private class DayTask extends DayCascade implements Callable<Void> {
+        // written[i][mtu][n] is whether the nth period of the day was written to database i
+        private final boolean[][][] written = new boolean[DatabaseManager.numDurations][][];
+        private final Sample sample = new Sample();
+
+        DayTask(int dayStart) {
+            super(databaseManager, dayStart);
+            int mtus = databaseManager.secondsDb.maxForMTU.length;
+            for(int i = 1; i < DatabaseManager.numDurations; i++) {
+                written[i] = new boolean[mtus][DAY / databases[i].resolution];
+            }
+        }
+
+        @Override
+        public Void call() throws DatabaseException {
+            long count = 0;
+            ReadIterator iter = databaseManager.secondsDb.read(dayStart, Math.min(dayStart + DAY - 1, end));
+            try {
+                while(main.isRunning && iter.advance()) {
+                    accumulate(iter.current());
+                    count++;
+                }
+            }
+            finally {
+                iter.close();
+            }
+            if(!main.isRunning) return null;
+            closeAll();
+            for(int i = 1; i < DatabaseManager.numDurations; i++) {
+                deleteUnwritten(i);
+            }
+            secondsRead.addAndGet(count);
+            return null;
+        }
+
+        // writes the period, unless ending after the range
+        @Override
+        protected void closed(int i, Bucket period) throws DatabaseException {
+            if(period.end > end || period.end > latest[period.mtu]) return;
+            databases[i].put(period.average(sample));
+            written[i][period.mtu][index(i, period.start)] = true;
+            periodsWritten.incrementAndGet();
+        }
+
+        // deletes the day's old entries for periods now without data
+        private void deleteUnwritten(int i) throws DatabaseException {
+            TimeSeriesDatabase db = databases[i];
+            List<Sample> stale = new ArrayList<Sample>();
+            ReadIterator iter = db.read(dayStart, Math.min(dayStart + DAY - 1, end));
+            try {
+                while(iter.advance()) {
+                    int timestamp = iter.timestamp();
+                    byte mtu = iter.mtu();
+                    int periodStart = db.periodStart(timestamp);
+                    int periodEnd = periodStart + db.resolution - 1;
+                    if(mtu >= written[i].length || periodEnd > end || periodEnd > latest[mtu]) continue;
+                    if(timestamp!=periodStart || !written[i][mtu][index(i, periodStart)]) {
+                        stale.add(new Sample().reset(timestamp, mtu));
+                    }
+                }
+            }
+            finally {
+                iter.close();
+            }
+            for(Sample entry : stale) {
+                db.delete(entry.timestamp, entry.mtu);
+            }
+        }
+    }
+}
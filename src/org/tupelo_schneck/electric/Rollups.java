@@ -0,0 +1,328 @@
+/*
+This file is part of
+"it's electric": software for storing and viewing home energy monitoring data
+Copyright (C) 2009--2015 Robert R. Tupelo-Schneck <schneck@gmail.com>
+http://tupelo-schneck.org/its-electric
+
+"it's electric" is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+"it's electric" is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with "it's electric", as legal/COPYING-agpl.txt.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.tupelo_schneck.electric;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.tupelo_schneck.electric.TimeSeriesDatabase.Bucket;
+import org.tupelo_schneck.electric.TimeSeriesDatabase.Checkpoint;
+import org.tupelo_schneck.electric.TimeSeriesDatabase.ReadIterator;
+
+import com.sleepycat.je.DatabaseException;
+
+/**
+ * Computes the rollup databases as a cascade.  Each is fed the sums and counts of the periods closed by
+ * the finest database whose resolution divides its own, so only the finest rollups see each second,
+ * and the averages are the same as if computed from the seconds.
+ * Accumulating, resets and checkpoints are synchronized, so the checkpoints of all rollups agree.
+ * <p>
+ * Changes to seconds already accumulated mark the periods holding them dirty, and {@link #repair} recomputes
+ * just those.  Stored rollups are averages, without sums and counts, so the seconds of each day with dirty
+ * periods are read once for the MTU; the work is in proportion to the days changed, not to how long ago.
+ */
+public class Rollups {
+    private final DatabaseManager databaseManager;
+    // source[i] is the database whose closed periods feed database i; 0 for the seconds database
+    private final int[] source = new int[DatabaseManager.numDurations];
+    // targets[i] are the databases fed by database i
+    private final int[][] targets = new int[DatabaseManager.numDurations][];
+    // closed[i] is scratch for the periods closed by database i
+    private final Bucket[][] closed = new Bucket[DatabaseManager.numDurations][];
+    private final Bucket bucket = new Bucket();
+    private final int[] resetAt = new int[DatabaseManager.numDurations];
+    // the dirty periods of each day and MTU, by dirtyKey: bit n of cells[i] for the nth period of the day in database i
+    private final TreeMap<Long,BitSet[]> dirty = new TreeMap<Long,BitSet[]>();
+    // unseen.get(mtu) has the earliest change handed over and not yet marked dirty, or 0, in its low half, 
+    // and a count of the changes noted in its high half; lock-free, for importers
+    private final AtomicLongArray unseen = new AtomicLongArray(Byte.MAX_VALUE + 1);
+
+    public Rollups(DatabaseManager databaseManager) {
+        this.databaseManager = databaseManager;
+        int[] durations = DatabaseManager.durations;
+        for(int i = 1; i < DatabaseManager.numDurations; i++) {
+            for(int j = i - 1; j >= 0; j--) {
+                if(durations[i] % durations[j] == 0) {
+                    source[i] = j;
+                    break;
+                }
+            }
+            closed[i] = new Bucket[] { new Bucket(), new Bucket() };
+        }
+        for(int i = 0; i < DatabaseManager.numDurations; i++) {
+            List<Integer> list = new ArrayList<Integer>();
+            for(int j = i + 1; j < DatabaseManager.numDurations; j++) {
+                if(source[j]==i) list.add(Integer.valueOf(j));
+            }
+            targets[i] = new int[list.size()];
+            for(int k = 0; k < targets[i].length; k++) {
+                targets[i][k] = list.get(k).intValue();
+            }
+        }
+    }
+
+    /** The index of the database whose closed periods feed database i; 0 for the seconds database */
+    public int sourceOf(int i) {
+        return source[i];
+    }
+
+    /** The indexes of the databases fed by database i; of the finest rollups for i = 0 */
+    public int[] targetsOf(int i) {
+        return targets[i];
+    }
+
+    /** Feeds an entry of the seconds database to the rollups */
+    public synchronized void accumulate(Sample sample) throws DatabaseException {
+        bucket.set(sample);
+        for(int i : targets[0]) {
+            feed(i, bucket);
+        }
+    }
+
+    private void feed(int i, Bucket bucket) throws DatabaseException {
+        int n = databaseManager.databases[i].accumulate(bucket, closed[i]);
+        for(int k = 0; k < n; k++) {
+            for(int j : targets[i]) {
+                feed(j, closed[i][k]);
+            }
+        }
+    }
+
+    /** The latest second processed for the MTU by all the rollups fed from the seconds database */
+    public int caughtUpTo(byte mtu) {
+        int res = Integer.MAX_VALUE;
+        for(int i : targets[0]) {
+            res = Math.min(res, databaseManager.databases[i].maxForMTU[mtu]);
+        }
+        return res;
+    }
+
+    /**
+     * Marks the periods holding changed seconds, already accumulated, for {@link #repair}.  Until then, checkpoints
+     * are taken as if each rollup had reset to the start of its period holding timestamp, and the rollups feeding it 
+     * to no later than that, so that they would feed it the whole period again.
+     */
+    public synchronized void markDirty(byte mtu, int[] timestamps, int count) {
+        for(int k = 0; k < count; k++) {
+            markDirty(timestamps[k], mtu);
+        }
+    }
+
+    private void markDirty(int timestamp, byte mtu) {
+        TimeSeriesDatabase[] databases = databaseManager.databases;
+        for(int i = DatabaseManager.numDurations - 1; i >= 1; i--) {
+            resetAt[i] = databases[i].noteChange(resetPoint(i, timestamp), mtu);
+        }
+        int dayStart = databases[DatabaseManager.numDurations - 1].periodStart(timestamp);
+        Long key = Long.valueOf(dirtyKey(dayStart, mtu));
+        BitSet[] cells = dirty.get(key);
+        if(cells==null) {
+            cells = new BitSet[DatabaseManager.numDurations];
+            for(int i = 1; i < DatabaseManager.numDurations; i++) {
+                cells[i] = new BitSet();
+            }
+            dirty.put(key, cells);
+        }
+        for(int i = 1; i < DatabaseManager.numDurations; i++) {
+            cells[i].set((timestamp - dayStart) / databases[i].resolution);
+        }
+    }
+
+    /** 
+     * Notes a change at timestamp that may need marking dirty, for checkpoints until it is; lock-free.  
+     * Returns the number of compare-and-sets retried.
+     */
+    public int noteUnseenChange(int timestamp, byte mtu) {
+        int retries = 0;
+        while(true) {
+            long current = unseen.get(mtu);
+            int earliest = (int)current;
+            if(earliest==0 || timestamp < earliest) earliest = timestamp;
+            long next = (((current >>> 32) + 1) << 32) | (earliest & 0xFFFFFFFFL);
+            if(unseen.compareAndSet(mtu, current, next)) return retries;
+            retries++;
+        }
+    }
+
+    /** The changes noted so far, for {@link #clearUnseenChanges} once those handed over before are marked dirty */
+    public long[] unseenChanges() {
+        long[] res = new long[unseen.length()];
+        for(int mtu = 0; mtu < res.length; mtu++) {
+            res[mtu] = unseen.get(mtu);
+        }
+        return res;
+    }
+
+    /** Forgets the changes noted, as returned by {@link #unseenChanges}, unless more have been noted since */
+    public void clearUnseenChanges(long[] noted) {
+        for(int mtu = 0; mtu < noted.length; mtu++) {
+            if((int)noted[mtu]!=0) unseen.compareAndSet(mtu, noted[mtu], noted[mtu] & ~0xFFFFFFFFL);
+        }
+    }
+
+    // as markDirty for the unseen changes, on the checkpoints taken only
+    private void checkpointUnseenChanges() {
+        for(byte mtu = 0; mtu < databaseManager.secondsDb.maxForMTU.length; mtu++) {
+            int timestamp = (int)unseen.get(mtu);
+            if(timestamp==0) continue;
+            for(int i = DatabaseManager.numDurations - 1; i >= 1; i--) {
+                resetAt[i] = databaseManager.databases[i].checkpointChange(resetPoint(i, timestamp), mtu);
+            }
+        }
+    }
+
+    private static long dirtyKey(int dayStart, byte mtu) {
+        return ((long)dayStart << 8) | mtu;
+    }
+
+    private boolean isDirty(byte mtu) {
+        for(Long key : dirty.keySet()) {
+            if((key.longValue() & 0xFF)==mtu) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Recomputes the dirty periods, a day and MTU at a time, from the seconds up to what the rollups have been fed.
+     * Writes just the dirty periods, and corrects the sums of the periods being accumulated.  
+     * Call on the thread that accumulates.
+     */
+    public void repair() throws DatabaseException {
+        while(true) {
+            int dayStart;
+            byte mtu;
+            BitSet[] cells;
+            int fedUpTo;
+            synchronized(this) {
+                Map.Entry<Long,BitSet[]> entry = dirty.pollFirstEntry();
+                if(entry==null) return;
+                dayStart = (int)(entry.getKey().longValue() >> 8);
+                mtu = (byte)(entry.getKey().longValue() & 0xFF);
+                cells = entry.getValue();
+                fedUpTo = caughtUpTo(mtu);
+            }
+            repairDay(dayStart, mtu, cells, fedUpTo);
+        }
+    }
+
+    private void repairDay(int dayStart, byte mtu, final BitSet[] cells, int fedUpTo) throws DatabaseException {
+        final Sample average = new Sample();
+        DayCascade cascade = new DayCascade(databaseManager, dayStart) {
+            @Override
+            protected void closed(int i, Bucket period) throws DatabaseException {
+                if(cells[i].get(index(i, period.start))) databases[i].put(period.average(average));
+            }
+        };
+        int end = Math.min(dayStart + DayCascade.DAY - 1, fedUpTo);
+        if(end >= dayStart) {
+            boolean[] mtus = new boolean[mtu + 1];
+            mtus[mtu] = true;
+            ReadIterator iter = databaseManager.secondsDb.read(dayStart, end, mtus);
+            try {
+                while(iter.advance()) {
+                    cascade.accumulate(iter.current());
+                }
+            }
+            finally {
+                iter.close();
+            }
+        }
+        synchronized(this) {
+            // the periods still open are being accumulated by the rollups too
+            Bucket empty = new Bucket();
+            for(int i = 1; i < DatabaseManager.numDurations; i++) {
+                TimeSeriesDatabase db = databaseManager.databases[i];
+                int live = db.periodStartFor(mtu);
+                if(live < dayStart || live >= dayStart + DayCascade.DAY) continue;
+                Bucket period = cascade.open(i, mtu);
+                if(period.start!=live) {
+                    empty.clear(live, live + db.resolution - 1, mtu);
+                    period = empty;
+                }
+                db.repairOpenPeriod(period);
+            }
+            if(!isDirty(mtu)) {
+                for(int i = 1; i < DatabaseManager.numDurations; i++) {
+                    databaseManager.databases[i].changesRepaired(mtu);
+                }
+            }
+        }
+        // after writing, so that nothing built before is kept
+        for(int i = 1; i < DatabaseManager.numDurations; i++) {
+            databaseManager.readCache.invalidate(databaseManager.databases[i], dayStart, dayStart + DayCascade.DAY - 1, mtu);
+        }
+    }
+
+    /**
+     * Resets any rollup that has closed periods after what a rollup it feeds has processed, 
+     * as when each has been started from its own latest entry; so that it feeds those periods again.
+     */
+    public synchronized void align() {
+        for(byte mtu = 0; mtu < databaseManager.secondsDb.maxForMTU.length; mtu++) {
+            for(int i = DatabaseManager.numDurations - 1; i >= 1; i--) {
+                TimeSeriesDatabase db = databaseManager.databases[i];
+                int needed = Integer.MAX_VALUE;
+                for(int j : targets[i]) {
+                    needed = Math.min(needed, databaseManager.databases[j].maxForMTU[mtu] + 1);
+                }
+                if(needed < db.periodStartFor(mtu)) {
+                    db.resetForNewData(needed, mtu);
+                    databaseManager.readCache.invalidate(db, needed, Integer.MAX_VALUE, mtu);
+                }
+            }
+        }
+    }
+
+    // the earliest of timestamp and where the databases fed by database i have reset to
+    private int resetPoint(int i, int timestamp) {
+        int res = timestamp;
+        for(int j : targets[i]) {
+            res = Math.min(res, resetAt[j]);
+        }
+        return res;
+    }
+
+    /** Takes a checkpoint of each rollup at the same point in the cascade; see {@link TimeSeriesDatabase#takeCheckpoint()} */
+    public synchronized void takeCheckpoints() {
+        for(int i = 1; i < DatabaseManager.numDurations; i++) {
+            databaseManager.databases[i].takeCheckpoint();
+        }
+        checkpointUnseenChanges();
+    }
+
+    /** 
+     * The checkpoints taken by {@link #takeCheckpoints}, by database, including any changes noted since; 
+     * see {@link TimeSeriesDatabase#durableCheckpoint()} 
+     */
+    public synchronized Checkpoint[] durableCheckpoints() {
+        checkpointUnseenChanges();
+        Checkpoint[] res = new Checkpoint[DatabaseManager.numDurations];
+        for(int i = 1; i < DatabaseManager.numDurations; i++) {
+            res[i] = databaseManager.databases[i].durableCheckpoint();
+        }
+        return res;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+This file is part of
+"it's electric": software for storing and viewing home energy monitoring data
+Copyright (C) 2009--2015 Robert R. Tupelo-Schneck <schneck@gmail.com>
+http://tupelo-schneck.org/its-electric
+
+"it's electric" is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+"it's electric" is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with "it's electric", as legal/COPYING-agpl.txt.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.tupelo_schneck.electric;
+
+/**
+ * One sample with primitive values and a mask of which values are present.
+ * Mutable, so that one instance can be filled again and again while reading or importing;
+ * {@link Triple} is the immutable equivalent with boxed values.
+ */
+public final class Sample {
+    public static final int POWER = 1;
+    public static final int VOLTAGE = 2;
+    public static final int VOLT_AMPERES = 4;
+
+    public int timestamp;
+    public byte mtu;
+    public int power;
+    public int voltage;
+    public int voltAmperes;
+    // bits of POWER, VOLTAGE, VOLT_AMPERES
+    public int present;
+
+    public Sample() {}
+
+    public Sample(int timestamp, byte mtu) {
+        this.timestamp = timestamp;
+        this.mtu = mtu;
+    }
+
+    /** Sets the timestamp and mtu, and clears the values */
+    public Sample reset(int timestamp, byte mtu) {
+        this.timestamp = timestamp;
+        this.mtu = mtu;
+        this.present = 0;
+        this.power = 0;
+        this.voltage = 0;
+        this.voltAmperes = 0;
+        return this;
+    }
+
+    public void set(Sample other) {
+        timestamp = other.timestamp;
+        mtu = other.mtu;
+        power = other.power;
+        voltage = other.voltage;
+        voltAmperes = other.voltAmperes;
+        present = other.present;
+    }
+
+    public void set(Triple triple) {
+        reset(triple.timestamp, triple.mtu);
+        if(triple.power!=null) setPower(triple.power.intValue());
+        if(triple.voltage!=null) setVoltage(triple.voltage.intValue());
+        if(triple.voltAmperes!=null) setVoltAmperes(triple.voltAmperes.intValue());
+    }
+
+    public boolean hasPower() {
+        return (present & POWER)!=0;
+    }
+
+    public boolean hasVoltage() {
+        return (present & VOLTAGE)!=0;
+    }
+
+    public boolean hasVoltAmperes() {
+        return (present & VOLT_AMPERES)!=0;
+    }
+
+    public void setPower(int power) {
+        this.power = power;
+        present |= POWER;
+    }
+
+    public void setVoltage(int voltage) {
+        this.voltage = voltage;
+        present |= VOLTAGE;
+    }
+
+    public void setVoltAmperes(int voltAmperes) {
+        this.voltAmperes = voltAmperes;
+        present |= VOLT_AMPERES;
+    }
+
+    /** Overwrites the values present in other; returns whether anything changed */
+    boolean merge(Sample other) {
+        boolean changed = false;
+        if(other.hasPower() && (!hasPower() || power!=other.power)) {
+            setPower(other.power);
+            changed = true;
+        }
+        if(other.hasVoltage() && (!hasVoltage() || voltage!=other.voltage)) {
+            setVoltage(other.voltage);
+            changed = true;
+        }
+        if(other.hasVoltAmperes() && (!hasVoltAmperes() || voltAmperes!=other.voltAmperes)) {
+            setVoltAmperes(other.voltAmperes);
+            changed = true;
+        }
+        return changed;
+    }
+
+    public Triple toTriple() {
+        return new Triple(timestamp, mtu, 
+                hasPower() ? Integer.valueOf(power) : null, 
+                hasVoltage() ? Integer.valueOf(voltage) : null, 
+                hasVoltAmperes() ? Integer.valueOf(voltAmperes) : null);
+    }
+
+    @Override
+    public String toString() {
+        return Util.dateString(timestamp) + ", MTU" + mtu + ", " 
+            + (hasPower() ? String.valueOf(power) : "null") + "W" + ", " 
+            + (hasVoltage() ? String.valueOf(voltage) : "null") + "dV" + ", " 
+            + (hasVoltAmperes() ? String.valueOf(voltAmperes) : "null") + "VA";
+    }
+}
@@ -0,0 +1,180 @@
+/*
+This file is part of
+"it's electric": software for storing and viewing home energy monitoring data
+Copyright (C) 2009--2015 Robert R. Tupelo-Schneck <schneck@gmail.com>
+http://tupelo-schneck.org/its-electric
+
+"it's electric" is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+"it's electric" is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with "it's electric", as legal/COPYING-agpl.txt.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.tupelo_schneck.electric;
+
+/**
+ * A growable batch of samples held in parallel primitive arrays, for moving many samples at once without a
+ * per-sample object.  Not thread-safe.
+ */
+public final class SampleBatch {
+    private int size;
+    private int[] timestamps;
+    private byte[] mtus;
+    private int[] powers;
+    private int[] voltages;
+    private int[] voltAmperes;
+    private byte[] present;
+
+    public SampleBatch() {
+        this(64);
+    }
+
+    public SampleBatch(int capacity) {
+        allocate(Math.max(capacity, 1));
+    }
+
+    private void allocate(int capacity) {
+        timestamps = copyOf(timestamps, capacity);
+        mtus = copyOf(mtus, capacity);
+        powers = copyOf(powers, capacity);
+        voltages = copyOf(voltages, capacity);
+        voltAmperes = copyOf(voltAmperes, capacity);
+        present = copyOf(present, capacity);
+    }
+
+    private int[] copyOf(int[] array, int capacity) {
+        int[] res = new int[capacity];
+        if(array!=null) System.arraycopy(array, 0, res, 0, size);
+        return res;
+    }
+
+    private byte[] copyOf(byte[] array, int capacity) {
+        byte[] res = new byte[capacity];
+        if(array!=null) System.arraycopy(array, 0, res, 0, size);
+        return res;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size==0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public void add(int timestamp, byte mtu, int presentMask, int power, int voltage, int voltAmperes) {
+        if(size==timestamps.length) allocate(2 * size);
+        timestamps[size] = timestamp;
+        mtus[size] = mtu;
+        powers[size] = power;
+        voltages[size] = voltage;
+        this.voltAmperes[size] = voltAmperes;
+        present[size] = (byte)presentMask;
+        size++;
+    }
+
+    public void add(Sample sample) {
+        add(sample.timestamp, sample.mtu, sample.present, sample.power, sample.voltage, sample.voltAmperes);
+    }
+
+    public void add(Triple triple) {
+        add(triple.timestamp, triple.mtu, 
+                (triple.power==null ? 0 : Sample.POWER) | (triple.voltage==null ? 0 : Sample.VOLTAGE) | (triple.voltAmperes==null ? 0 : Sample.VOLT_AMPERES),
+                triple.power==null ? 0 : triple.power.intValue(), 
+                triple.voltage==null ? 0 : triple.voltage.intValue(), 
+                triple.voltAmperes==null ? 0 : triple.voltAmperes.intValue());
+    }
+
+    /** Fills sample with the i'th sample; returns sample */
+    public Sample get(int i, Sample sample) {
+        sample.timestamp = timestamps[i];
+        sample.mtu = mtus[i];
+        sample.power = powers[i];
+        sample.voltage = voltages[i];
+        sample.voltAmperes = voltAmperes[i];
+        sample.present = present[i];
+        return sample;
+    }
+
+    public int timestamp(int i) {
+        return timestamps[i];
+    }
+
+    public byte mtu(int i) {
+        return mtus[i];
+    }
+
+    /** 
+     * Sorts stably by timestamp then mtu; or, if blockSpan > 0, 
+     * by block (timestamp - timestamp % blockSpan), then mtu, then timestamp.
+     */
+    public void sort(int blockSpan) {
+        int[] order = new int[size];
+        for(int i = 0; i < size; i++) order[i] = i;
+        int[] scratch = new int[size];
+        mergeSort(order, scratch, 0, size, blockSpan);
+        int[] newTimestamps = new int[timestamps.length];
+        byte[] newMtus = new byte[mtus.length];
+        int[] newPowers = new int[powers.length];
+        int[] newVoltages = new int[voltages.length];
+        int[] newVoltAmperes = new int[voltAmperes.length];
+        byte[] newPresent = new byte[present.length];
+        for(int i = 0; i < size; i++) {
+            int j = order[i];
+            newTimestamps[i] = timestamps[j];
+            newMtus[i] = mtus[j];
+            newPowers[i] = powers[j];
+            newVoltages[i] = voltages[j];
+            newVoltAmperes[i] = voltAmperes[j];
+            newPresent[i] = present[j];
+        }
+        timestamps = newTimestamps;
+        mtus = newMtus;
+        powers = newPowers;
+        voltages = newVoltages;
+        voltAmperes = newVoltAmperes;
+        present = newPresent;
+    }
+
+    private int compare(int i, int j, int blockSpan) {
+        int t1 = timestamps[i];
+        int t2 = timestamps[j];
+        if(blockSpan > 0) {
+            int b1 = t1 - t1 % blockSpan;
+            int b2 = t2 - t2 % blockSpan;
+            if(b1 != b2) return b1 < b2 ? -1 : 1;
+            if(mtus[i] != mtus[j]) return mtus[i] - mtus[j];
+        }
+        if(t1 != t2) return t1 < t2 ? -1 : 1;
+        return mtus[i] - mtus[j];
+    }
+
+    private void mergeSort(int[] order, int[] scratch, int from, int to, int blockSpan) {
+        if(to - from < 2) return;
+        int mid = (from + to) >>> 1;
+        mergeSort(order, scratch, from, mid, blockSpan);
+        mergeSort(order, scratch, mid, to, blockSpan);
+        // already in order, as for most importer batches
+        if(compare(order[mid-1], order[mid], blockSpan) <= 0) return;
+        System.arraycopy(order, from, scratch, from, to - from);
+        int i = from;
+        int j = mid;
+        for(int k = from; k < to; k++) {
+            if(j >= to || (i < mid && compare(scratch[i], scratch[j], blockSpan) <= 0)) order[k] = scratch[i++];
+            else order[k] = scratch[j++];
+        }
+    }
+}
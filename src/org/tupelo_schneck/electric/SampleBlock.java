@@ -0,0 +1,215 @@
+/*
+This file is part of
+"it's electric": software for storing and viewing home energy monitoring data
+Copyright (C) 2009--2015 Robert R. Tupelo-Schneck <schneck@gmail.com>
+http://tupelo-schneck.org/its-electric
+
+"it's electric" is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+"it's electric" is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with "it's electric", as legal/COPYING-agpl.txt.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.tupelo_schneck.electric;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * All the samples for one MTU within one block (an hour, for the seconds tier),
+ * stored as a single database record when block storage is in use.
+ * Entries are sorted by timestamp; each column has its own presence flags.
+ */
+class SampleBlock {
+    static final int POWER = 0;
+    static final int VOLTAGE = 1;
+    static final int VOLT_AMPERES = 2;
+    static final int NUM_COLUMNS = 3;
+
+    int blockStart;
+    // the usual distance between timestamps, i.e. the resolution
+    final int step;
+    int size;
+    int[] timestamps;
+    final int[][] values = new int[NUM_COLUMNS][];
+    final boolean[][] present = new boolean[NUM_COLUMNS][];
+
+    // true if changed since last written to the database
+    boolean dirty;
+
+    SampleBlock(int blockStart, int step) {
+        this.blockStart = blockStart;
+        this.step = step;
+        allocate(64);
+    }
+
+    private void allocate(int capacity) {
+        int[] newTimestamps = new int[capacity];
+        if(timestamps!=null) System.arraycopy(timestamps,0,newTimestamps,0,size);
+        timestamps = newTimestamps;
+        for(int c = 0; c < NUM_COLUMNS; c++) {
+            int[] newValues = new int[capacity];
+            boolean[] newPresent = new boolean[capacity];
+            if(values[c]!=null) {
+                System.arraycopy(values[c],0,newValues,0,size);
+                System.arraycopy(present[c],0,newPresent,0,size);
+            }
+            values[c] = newValues;
+            present[c] = newPresent;
+        }
+    }
+
+    void ensureCapacity(int capacity) {
+        if(capacity > timestamps.length) allocate(Math.max(capacity, 2*timestamps.length));
+    }
+
+    void clear(int newBlockStart) {
+        blockStart = newBlockStart;
+        size = 0;
+        dirty = false;
+    }
+
+    void copyFrom(SampleBlock other) {
+        blockStart = other.blockStart;
+        size = 0;
+        ensureCapacity(other.size);
+        size = other.size;
+        System.arraycopy(other.timestamps,0,timestamps,0,size);
+        for(int c = 0; c < NUM_COLUMNS; c++) {
+            System.arraycopy(other.values[c],0,values[c],0,size);
+            System.arraycopy(other.present[c],0,present[c],0,size);
+        }
+    }
+
+    /** Binary search; as {@link java.util.Arrays#binarySearch(int[], int)} */
+    int indexOf(int timestamp) {
+        int low = 0;
+        int high = size - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            int midVal = timestamps[mid];
+            if(midVal < timestamp) low = mid + 1;
+            else if(midVal > timestamp) high = mid - 1;
+            else return mid;
+        }
+        return -(low + 1);
+    }
+
+    int lastTimestamp() {
+        return timestamps[size-1];
+    }
+
+    /** Fills sample with the entry at index; returns sample */
+    Sample get(int index, byte mtu, Sample sample) {
+        sample.timestamp = timestamps[index];
+        sample.mtu = mtu;
+        sample.power = values[POWER][index];
+        sample.voltage = values[VOLTAGE][index];
+        sample.voltAmperes = values[VOLT_AMPERES][index];
+        sample.present = (present[POWER][index] ? Sample.POWER : 0) 
+            | (present[VOLTAGE][index] ? Sample.VOLTAGE : 0) 
+            | (present[VOLT_AMPERES][index] ? Sample.VOLT_AMPERES : 0);
+        return sample;
+    }
+
+    private boolean set(int column, int index, boolean has, int value, boolean overwrite) {
+        if(!has) {
+            if(!overwrite || !present[column][index]) return false;
+            present[column][index] = false;
+            return true;
+        }
+        if(present[column][index] && values[column][index]==value) return false;
+        present[column][index] = true;
+        values[column][index] = value;
+        return true;
+    }
+
+    /**
+     * Stores a sample.  If overwrite, the entry is replaced; otherwise
+     * only the present values are changed, as in TimeSeriesDatabase.putIfChanged.
+     * Returns whether anything changed.
+     */
+    boolean merge(Sample sample, boolean overwrite) {
+        int timestamp = sample.timestamp;
+        int index = indexOf(timestamp);
+        if(index < 0) {
+            index = -index - 1;
+            ensureCapacity(size + 1);
+            System.arraycopy(timestamps,index,timestamps,index+1,size-index);
+            for(int c = 0; c < NUM_COLUMNS; c++) {
+                System.arraycopy(values[c],index,values[c],index+1,size-index);
+                System.arraycopy(present[c],index,present[c],index+1,size-index);
+                present[c][index] = false;
+            }
+            timestamps[index] = timestamp;
+            size++;
+        }
+        boolean changed = false;
+        changed |= set(POWER,index,sample.hasPower(),sample.power,overwrite);
+        changed |= set(VOLTAGE,index,sample.hasVoltage(),sample.voltage,overwrite);
+        changed |= set(VOLT_AMPERES,index,sample.hasVoltAmperes(),sample.voltAmperes,overwrite);
+        if(!hasAnyValue(index)) {
+            removeRange(index,index+1);
+        }
+        if(changed) dirty = true;
+        return changed;
+    }
+
+    private boolean hasAnyValue(int index) {
+        return present[POWER][index] || present[VOLTAGE][index] || present[VOLT_AMPERES][index];
+    }
+
+    private void removeRange(int from, int to) {
+        int n = size - to;
+        System.arraycopy(timestamps,to,timestamps,from,n);
+        for(int c = 0; c < NUM_COLUMNS; c++) {
+            System.arraycopy(values[c],to,values[c],from,n);
+            System.arraycopy(present[c],to,present[c],from,n);
+        }
+        size -= to - from;
+    }
+
+    boolean remove(int timestamp) {
+        int index = indexOf(timestamp);
+        if(index < 0) return false;
+        removeRange(index,index+1);
+        dirty = true;
+        return true;
+    }
+
+    /** Removes all entries before the given timestamp; returns whether anything was removed */
+    boolean removeBefore(int timestamp) {
+        int index = indexOf(timestamp);
+        if(index < 0) index = -index - 1;
+        if(index==0) return false;
+        removeRange(0,index);
+        dirty = true;
+        return true;
+    }
+
+    byte[] encode(BlockCodec codec) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 + 3 * size);
+        out.write(codec.id);
+        codec.encode(this, out);
+        return out.toByteArray();
+    }
+
+    /** Decodes a block written by any codec */
+    void decode(byte[] buf, int newBlockStart) {
+        blockStart = newBlockStart;
+        dirty = false;
+        size = 0;
+        if(buf.length==0) return;
+        BlockCodec codec = BlockCodec.forId(buf[0]);
+        if(codec==null) throw new IllegalArgumentException("Unknown block codec " + buf[0]);
+        codec.decode(this, new BlockCodec.Input(buf, 1));
+    }
+}
@@ -21,15 +21,34 @@ If not, see <http://www.gnu.org/licenses/>.
 
 package org.tupelo_schneck.electric;
 
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
-import java.util.PriorityQueue;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationListener;
+import org.eclipse.jetty.continuation.ContinuationSupport;
 import org.eclipse.jetty.server.NCSARequestLog;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.handler.HandlerCollection;
@@ -38,19 +57,28 @@ import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
 import org.tupelo_schneck.electric.TimeSeriesDatabase.ReadIterator;
 
+import com.google.visualization.datasource.DataSourceHelper;
+import com.google.visualization.datasource.DataSourceRequest;
 import com.google.visualization.datasource.DataSourceServlet;
 
 import com.google.visualization.datasource.base.DataSourceException;
+import com.google.visualization.datasource.base.DataSourceParameters;
+import com.google.visualization.datasource.base.OutputType;
 import com.google.visualization.datasource.base.ReasonType;
 import com.google.visualization.datasource.base.TypeMismatchException;
 import com.google.visualization.datasource.datatable.ColumnDescription;
 import com.google.visualization.datasource.datatable.DataTable;
 import com.google.visualization.datasource.datatable.TableRow;
+import com.google.visualization.datasource.datatable.ValueFormatter;
 import com.google.visualization.datasource.datatable.value.DateTimeValue;
+import com.google.visualization.datasource.datatable.value.NumberValue;
 import com.google.visualization.datasource.datatable.value.Value;
 import com.google.visualization.datasource.datatable.value.ValueType;
 import com.google.visualization.datasource.query.Query;
+import com.google.visualization.datasource.render.EscapeUtil;
+import com.google.visualization.datasource.render.JsonRenderer;
 import com.ibm.icu.util.GregorianCalendar;
+import com.ibm.icu.util.ULocale;
 import com.sleepycat.je.DatabaseException;
 
 public class Servlet extends DataSourceServlet {
@@ -59,7 +87,20 @@ public class Servlet extends DataSourceServlet {
     public static final String RESOLUTION = "resolution";
     public static final String MINIMUM_STRING = "minimum";
     public static final String MAXIMUM_STRING = "maximum";
+    /** Appended to a query path, as in /power.bin, for the table as typed arrays; see {@link BinaryOutput} */
+    public static final String BINARY_SUFFIX = ".bin";
+    /** Appended to a query path, as in /power.live, for rows newer than a time as they come; see {@link #doGetLive} */
+    public static final String LIVE_SUFFIX = ".live";
     
+    // how long a request for live rows waits for some before answering without
+    private static final long LIVE_TIMEOUT = 60*1000;
+    // different live requests whose rows are kept for sharing
+    private static final int LIVE_ROWS_KEPT = 64;
+    // request attribute: when a request for live rows first came, in milliseconds
+    private static final String LIVE_SINCE = Servlet.class.getName() + ".liveSince";
+    
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     private Log log = LogFactory.getLog(Servlet.class);
 
     // minimum and maximum are maintained as defaults for the server
@@ -71,9 +112,50 @@ public class Servlet extends DataSourceServlet {
     private final Options options;
     private final DatabaseManager databaseManager;
 
+    // reads the segments of queries' plans ahead of their turn; null to read each in turn
+    private final ThreadPoolExecutor readExecutor;
+
     public Servlet(Options options, DatabaseManager databaseManager) {
         this.options = options;
         this.databaseManager = databaseManager;
+        if(options.queryThreads > 0) {
+            // when all are busy and the queue is full, the query's own thread reads
+            readExecutor = new ThreadPoolExecutor(options.queryThreads, options.queryThreads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(4 * options.queryThreads), new ReadThreadFactory(), new ThreadPoolExecutor.CallerRunsPolicy());
+            readExecutor.allowCoreThreadTimeOut(true);
+        }
+        else {
+            readExecutor = null;
+        }
+    }
+
+    // threads that close their cursors as they end, idle ones ending after a while
+    private class ReadThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+        
+        @Override
+        public Thread newThread(final Runnable r) {
+            Runnable closingCursors = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        r.run();
+                    }
+                    finally {
+                        databaseManager.closeThreadCursors();
+                    }
+                }
+            };
+            Thread thread = new Thread(closingCursors, "query-read-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if(readExecutor!=null) readExecutor.shutdownNow();
+        super.destroy();
     }
 
     public void initMinAndMax() throws DatabaseException {
@@ -107,9 +189,12 @@ public class Servlet extends DataSourceServlet {
     }
     
     public void setMaximumIfNewer(int newMax) {
+        boolean newer;
         synchronized(maximumLock) {
-            if(maximum < newMax) maximum = newMax;
+            newer = maximum < newMax;
+            if(newer) maximum = newMax;
         }
+        if(newer) resumeLiveWaiters();
     }
     
     public int getMaximum() {
@@ -163,10 +248,30 @@ public class Servlet extends DataSourceServlet {
         if(db==null) {
             db = databaseForResolution(res,false);
         }
+        // older data may only be kept in coarser databases
+        while(db.retentionCutoff > params.start && db.resolution < DatabaseManager.durations[DatabaseManager.numDurations-1]) {
+            db = databaseForResolution(db.resolution + 1,false);
+        }
 
         return db;
     }
 
+    /** 
+     * For downsampling: the finest database from which the zoom reads at most --downsample-rows rows per channel,
+     * or null if not finer than zoomDb or not asked for 
+     */
+    public TimeSeriesDatabase downsamplingDb(QueryParameters params, TimeSeriesDatabase zoomDb) {
+        if(params.downsampling==null) return null;
+        int range = params.end - params.start;
+        if(params.extraPoints > 1) range *= 3;
+        TimeSeriesDatabase db = databaseForResolution(range / options.downsampleRows, false);
+        while(db.retentionCutoff > params.start && db.resolution < zoomDb.resolution) {
+            db = databaseForResolution(db.resolution + 1,false);
+        }
+        if(db.resolution >= zoomDb.resolution) return null;
+        return db;
+    }
+
     private TimeSeriesDatabase _dayDb;
     private TimeSeriesDatabase _weekDb;
     public TimeSeriesDatabase dayDb() {
@@ -178,194 +283,617 @@ public class Servlet extends DataSourceServlet {
         return _weekDb;
     }
     
-    public static final Comparator<TableRow> TABLE_ROW_COMPARATOR = new Comparator<TableRow>() {
-        @Override
-        public int compare(TableRow o1, TableRow o2) {
-            return o1.getCell(0).getValue().compareTo(o2.getCell(0).getValue());
-        }
-    };
-    
     private static final Value NULL_NUMBER = Value.getNullValueFromValueType(ValueType.NUMBER);
 
-    private class DataTableBuilder {
-        private QueryParameters params;
-        
-        private PriorityQueue<TableRow> rows;
-        private int min = Integer.MAX_VALUE;
-        private int max = 0;
+    /** Where the rows of a response go, in time order */
+    private interface RowOutput {
+        /** values follow the date, in column order, with NaN for null; they are only valid during the call */
+        void row(int timestamp, double[] values);
+    }
+
+    /** A whole response: its rows, then the table's custom properties */
+    private static abstract class ResponseOutput implements RowOutput {
+        abstract void finish(Map<String,String> properties);
+    }
 
-        private DataTable data;
+    // rows kept as primitives: those built from one read, for the read cache, or a whole response for BinaryOutput
+    private static class CachedRows implements RowOutput, ReadCache.Value {
+        private final int width;
+        private int count;
+        private int[] timestamps = new int[16];
+        private double[] values;
         
-        private TableRow row;
-        private int lastTime;
-        private int lastMTU;
-        private GregorianCalendar cal;
+        CachedRows(int width) {
+            this.width = width;
+            values = new double[16 * width];
+        }
         
-        public DataTableBuilder(QueryParameters params) {
-            this.params = params;
-            rows = new PriorityQueue<TableRow>(100,TABLE_ROW_COMPARATOR);
-            cal = new GregorianCalendar(Util.GMT);
-            
-            data = new DataTable();
-            ArrayList<ColumnDescription> cd = new ArrayList<ColumnDescription>();
-            cd.add(new ColumnDescription("Date", ValueType.DATETIME, "Date"));
-            for(int mtu = 0; mtu < options.mtus + options.spyders; mtu++) {
-                String label = getLabel(mtu);
-                cd.add(new ColumnDescription(label, ValueType.NUMBER, label));
+        @Override
+        public void row(int timestamp, double[] rowValues) {
+            if(count==timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, 2 * count);
+                values = Arrays.copyOf(values, 2 * count * width);
             }
-            if(params.queryType==QueryType.COMBINED_POWER) {
-                for(int mtu = 0; mtu < options.mtus + options.spyders; mtu++) {
-                    String label = getLabel(mtu) + "var";
-                    cd.add(new ColumnDescription(label, ValueType.NUMBER, label));
+            timestamps[count] = timestamp;
+            System.arraycopy(rowValues, 0, values, count * width, width);
+            count++;
+        }
+        
+        @Override
+        public int size() {
+            return count * (width + 1);
+        }
+        
+        // the bucket of timestamp, of buckets of equal time between start and end
+        private static int bucket(int timestamp, int start, int end, int buckets) {
+            long bucket = (long)(timestamp - start) * buckets / ((long)end - start + 1);
+            return (int)Math.max(0, Math.min(buckets - 1, bucket));
+        }
+        
+        /** 
+         * For Downsampling.MIN_MAX: for each of buckets of equal time between start and end, each column's least 
+         * and greatest values, in the order they came, as at most two rows: at the first of the columns' first 
+         * extremes, and the last of their second
+         */
+        CachedRows minMax(int start, int end, int buckets) {
+            CachedRows res = new CachedRows(width);
+            double[] first = new double[width];
+            double[] second = new double[width];
+            int[] least = new int[width];
+            int[] greatest = new int[width];
+            int from = 0;
+            while(from < count) {
+                int bucket = bucket(timestamps[from], start, end, buckets);
+                int to = from + 1;
+                while(to < count && bucket(timestamps[to], start, end, buckets)==bucket) to++;
+                Arrays.fill(least, -1);
+                Arrays.fill(greatest, -1);
+                for(int i = from; i < to; i++) {
+                    for(int column = 0; column < width; column++) {
+                        double value = values[i * width + column];
+                        if(Double.isNaN(value)) continue;
+                        if(least[column] < 0 || value < values[least[column] * width + column]) least[column] = i;
+                        if(greatest[column] < 0 || value > values[greatest[column] * width + column]) greatest[column] = i;
+                    }
                 }
-                for(int mtu = 0; mtu < options.mtus + options.spyders; mtu++) {
-                    String label = getLabel(mtu) + "VA";
-                    cd.add(new ColumnDescription(label, ValueType.NUMBER, label));
+                int firstRow = to;
+                int secondRow = from;
+                for(int column = 0; column < width; column++) {
+                    if(least[column] < 0) {
+                        first[column] = Double.NaN;
+                        second[column] = Double.NaN;
+                        continue;
+                    }
+                    int earlier = Math.min(least[column], greatest[column]);
+                    int later = Math.max(least[column], greatest[column]);
+                    first[column] = values[earlier * width + column];
+                    second[column] = values[later * width + column];
+                    if(earlier < firstRow) firstRow = earlier;
+                    if(later > secondRow) secondRow = later;
                 }
+                // every row has some value, so some column has extremes
+                res.row(timestamps[firstRow], first);
+                if(secondRow > firstRow) res.row(timestamps[secondRow], second);
+                from = to;
             }
-            data.addColumns(cd);
+            return res;
+        }
+        
+        /**
+         * For Downsampling.LARGEST_TRIANGLE: Largest-Triangle-Three-Buckets, with buckets of equal time between start and end,
+         * choosing one row from each: that making the greatest triangles, summed over the columns, with the row chosen 
+         * before it and the average of the bucket after (or the last row, for the last bucket)
+         */
+        CachedRows largestTriangles(int start, int end, int buckets) {
+            CachedRows res = new CachedRows(width);
+            // the first row of each bucket with rows, then count
+            int[] from = new int[Math.min(count, buckets) + 1];
+            int n = 0;
+            for(int i = 0; i < count; i++) {
+                if(i==0 || bucket(timestamps[i], start, end, buckets)!=bucket(timestamps[i-1], start, end, buckets)) from[n++] = i;
+            }
+            from[n] = count;
+            double[] next = new double[width];
+            int[] nextCount = new int[width];
+            double[] row = new double[width];
+            int previous = 0;
+            for(int b = 0; b < n; b++) {
+                double nextTime;
+                if(b + 1 < n) {
+                    Arrays.fill(next, 0);
+                    Arrays.fill(nextCount, 0);
+                    double totalTime = 0;
+                    for(int i = from[b+1]; i < from[b+2]; i++) {
+                        totalTime += timestamps[i] - start;
+                        for(int column = 0; column < width; column++) {
+                            double value = values[i * width + column];
+                            if(Double.isNaN(value)) continue;
+                            next[column] += value;
+                            nextCount[column]++;
+                        }
+                    }
+                    nextTime = totalTime / (from[b+2] - from[b+1]);
+                    for(int column = 0; column < width; column++) {
+                        next[column] = nextCount[column] > 0 ? next[column] / nextCount[column] : Double.NaN;
+                    }
+                }
+                else {
+                    nextTime = timestamps[count-1] - start;
+                    System.arraycopy(values, (count-1) * width, next, 0, width);
+                }
+                double previousTime = timestamps[previous] - start;
+                int chosen = from[b];
+                double greatestArea = -1;
+                for(int i = from[b]; i < from[b+1]; i++) {
+                    double time = timestamps[i] - start;
+                    double area = 0;
+                    for(int column = 0; column < width; column++) {
+                        double a = values[previous * width + column];
+                        double value = values[i * width + column];
+                        double c = next[column];
+                        if(Double.isNaN(a) || Double.isNaN(value) || Double.isNaN(c)) continue;
+                        area += Math.abs((previousTime - nextTime) * (value - a) - (previousTime - time) * (c - a));
+                    }
+                    if(area > greatestArea) {
+                        greatestArea = area;
+                        chosen = i;
+                    }
+                }
+                System.arraycopy(values, chosen * width, row, 0, width);
+                res.row(timestamps[chosen], row);
+                previous = chosen;
+            }
+            return res;
         }
+    }
 
-        private String getLabel(int mtu) {
-            if (mtu < options.mtus) { 
-                return "MTU" + (mtu+1);
-            } else {
-                return "Spyder" + (mtu+1 - options.mtus);
+    private List<ColumnDescription> columns(QueryParameters params) {
+        ArrayList<ColumnDescription> cd = new ArrayList<ColumnDescription>();
+        cd.add(new ColumnDescription("Date", ValueType.DATETIME, "Date"));
+        for(int mtu : params.channels) {
+            String label = getLabel(mtu);
+            cd.add(new ColumnDescription(label, ValueType.NUMBER, label));
+        }
+        if(params.queryType==QueryType.COMBINED_POWER) {
+            for(int mtu : params.channels) {
+                String label = getLabel(mtu) + "var";
+                cd.add(new ColumnDescription(label, ValueType.NUMBER, label));
+            }
+            for(int mtu : params.channels) {
+                String label = getLabel(mtu) + "VA";
+                cd.add(new ColumnDescription(label, ValueType.NUMBER, label));
             }
         }
-        
-        private void addNullsTo(int nextMTU) {
-            for(int mtu = lastMTU + 1; mtu < nextMTU; mtu++) {
-                row.addCell(NULL_NUMBER);
-                if(params.queryType==QueryType.COMBINED_POWER) {
-                    row.addCell(NULL_NUMBER);
-                    row.addCell(NULL_NUMBER);
+        return cd;
+    }
+
+    private String getLabel(int mtu) {
+        if (mtu < options.mtus) { 
+            return "MTU" + (mtu+1);
+        } else {
+            return "Spyder" + (mtu+1 - options.mtus);
+        }
+    }
+
+    // milliseconds such that GMT shows the local time of timestamp, which is what the client charts
+    private long localMillis(int timestamp) {
+        return (long)timestamp * 1000 + options.serveTimeZone.getOffset((long)timestamp*1000);
+    }
+
+    // builds a DataTable, for other outputs and for queries the library completes
+    private class TableOutput extends ResponseOutput {
+        private final DataTable data = new DataTable();
+        private final GregorianCalendar cal = new GregorianCalendar(Util.GMT);
+
+        TableOutput(List<ColumnDescription> columns) {
+            data.addColumns(columns);
+        }
+
+        @Override
+        public void row(int timestamp, double[] values) {
+            TableRow row = new TableRow();
+            cal.setTimeInMillis(localMillis(timestamp));
+            row.addCell(new DateTimeValue(cal));
+            for(double value : values) {
+                if(Double.isNaN(value)) row.addCell(NULL_NUMBER);
+                else row.addCell(value);
+            }
+            try {
+                data.addRow(row);
+            }
+            catch(TypeMismatchException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        void finish(Map<String,String> properties) {
+            for(Map.Entry<String,String> property : properties.entrySet()) {
+                data.setCustomProperty(property.getKey(), property.getValue());
+            }
+        }
+
+        DataTable dataTable() {
+            return data;
+        }
+    }
+
+    // writes each row as it comes, in the wire format of the library's JsonRenderer, without the signature
+    private class JsonOutput extends ResponseOutput {
+        private final PrintWriter out;
+        private final boolean jsonp;
+        private final String responseHandler;
+        private final StringBuilder sb = new StringBuilder();
+        private boolean first = true;
+
+        JsonOutput(PrintWriter out, DataSourceParameters dsParams, List<ColumnDescription> columns) {
+            this.out = out;
+            this.jsonp = dsParams.getOutputType()==OutputType.JSONP;
+            this.responseHandler = dsParams.getResponseHandler();
+            if(jsonp) sb.append(responseHandler).append('(');
+            sb.append("{\"version\":\"0.6\"");
+            if(dsParams.getRequestId()!=null) sb.append(",\"reqId\":\"").append(EscapeUtil.jsonEscape(dsParams.getRequestId())).append('"');
+            sb.append(",\"status\":\"ok\",\"table\":{\"cols\":[");
+            for(int i = 0; i < columns.size(); i++) {
+                if(i > 0) sb.append(',');
+                JsonRenderer.appendColumnDescriptionJson(columns.get(i), sb);
+            }
+            sb.append("],\"rows\":[");
+            flush();
+        }
+
+        @Override
+        public void row(int timestamp, double[] values) {
+            if(!first) sb.append(',');
+            first = false;
+            sb.append("{\"c\":[{\"v\":");
+            if(jsonp) sb.append("new Date(");
+            else sb.append("\"Date(");
+            Util.appendDateFields(sb, localMillis(timestamp));
+            if(jsonp) sb.append(")}");
+            else sb.append(")\"}");
+            // as the library does, a null is left empty unless in the last column
+            for(int i = 0; i < values.length; i++) {
+                sb.append(',');
+                if(!Double.isNaN(values[i])) sb.append("{\"v\":").append(values[i]).append('}');
+                else if(i==values.length-1) sb.append("{\"v\":null}");
+            }
+            sb.append("]}");
+            if(sb.length() > 4096) flush();
+        }
+
+        @Override
+        void finish(Map<String,String> properties) {
+            sb.append("],\"p\":{");
+            boolean firstProperty = true;
+            for(Map.Entry<String,String> property : properties.entrySet()) {
+                if(!firstProperty) sb.append(',');
+                firstProperty = false;
+                sb.append('"').append(EscapeUtil.jsonEscape(property.getKey())).append("\":\"").append(EscapeUtil.jsonEscape(property.getValue())).append('"');
+            }
+            sb.append("}}}");
+            if(jsonp) sb.append(");");
+            flush();
+        }
+
+        private void flush() {
+            out.append(sb);
+            sb.setLength(0);
+        }
+    }
+
+    // writes each row as it comes, in the format of the library's CsvRenderer; dates always in ASCII digits
+    private class CsvOutput extends ResponseOutput {
+        private final PrintWriter out;
+        private final ValueFormatter numberFormatter;
+        private final StringBuilder sb = new StringBuilder();
+
+        CsvOutput(PrintWriter out, ULocale locale, List<ColumnDescription> columns) {
+            this.out = out;
+            this.numberFormatter = ValueFormatter.createDefault(ValueType.NUMBER, locale);
+            for(int i = 0; i < columns.size(); i++) {
+                if(i > 0) sb.append(',');
+                appendEscaped(columns.get(i).getLabel());
+            }
+            sb.append('\n');
+            flush();
+        }
+
+        @Override
+        public void row(int timestamp, double[] values) {
+            Util.appendDateTime(sb, localMillis(timestamp));
+            for(double value : values) {
+                sb.append(',');
+                if(Double.isNaN(value)) {
+                    sb.append("null");
+                    continue;
                 }
+                String formatted = numberFormatter.format(new NumberValue(value));
+                if(formatted.indexOf(',') >= 0) appendEscaped(formatted);
+                else sb.append(formatted);
             }
+            sb.append('\n');
+            if(sb.length() > 4096) flush();
+        }
+
+        private void appendEscaped(String s) {
+            sb.append('"').append(s.replace("\"", "\"\"")).append('"');
+        }
+
+        @Override
+        void finish(Map<String,String> properties) {
+            flush();
+        }
+
+        private void flush() {
+            out.append(sb);
+            sb.setLength(0);
+        }
+    }
+
+    /**
+     * Lays the rows out by column, little-endian, for the binary endpoint and ItsElectric.BinaryQuery in its-electric.js:
+     * the magic "IEB1"; the byte length of a UTF-8 JSON header {"rows":n,"cols":[{"label":...,"type":"int32"|"float32"},...],"p":{...}};
+     * the header; then, each starting on a multiple of 4 bytes, the int32 dates as seconds where GMT shows the
+     * server's local time, and for each column its values followed by a bitmap with bit i&7 of byte i>>3 set if row i is null.
+     */
+    private class BinaryOutput extends ResponseOutput {
+        private static final int MAGIC = 0x31424549;
+        
+        private final CachedRows rows;
+        private final List<ColumnDescription> columns;
+        // voltage and power factor have fractions; the rest are whole
+        private final boolean floats;
+        private byte[] bytes;
+        
+        BinaryOutput(QueryParameters params, List<ColumnDescription> columns) {
+            this.rows = new CachedRows(columns.size() - 1);
+            this.columns = columns;
+            this.floats = params.queryType==QueryType.VOLTAGE || params.queryType==QueryType.POWER_FACTOR;
+        }
+        
+        @Override
+        public void row(int timestamp, double[] values) {
+            rows.row((int)(localMillis(timestamp) / 1000), values);
         }
         
-        private void addRow() {
-            if(params.queryType==QueryType.COMBINED_POWER) {
-                TableRow oldRow = row;
-                row = new TableRow();
-                row.addCell(oldRow.getCell(0));
-                for(int mtu = 0; mtu < options.mtus + options.spyders; mtu++) {
-                    row.addCell(oldRow.getCell(1+mtu*3));
+        @Override
+        void finish(Map<String,String> properties) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("{\"rows\":").append(rows.count).append(",\"cols\":[");
+            for(int i = 1; i < columns.size(); i++) {
+                if(i > 1) sb.append(',');
+                sb.append("{\"label\":\"").append(EscapeUtil.jsonEscape(columns.get(i).getLabel())).append("\",\"type\":\"");
+                sb.append(floats ? "float32" : "int32").append("\"}");
+            }
+            sb.append("],\"p\":{");
+            boolean firstProperty = true;
+            for(Map.Entry<String,String> property : properties.entrySet()) {
+                if(!firstProperty) sb.append(',');
+                firstProperty = false;
+                sb.append('"').append(EscapeUtil.jsonEscape(property.getKey())).append("\":\"").append(EscapeUtil.jsonEscape(property.getValue())).append('"');
+            }
+            sb.append("}}");
+            byte[] header = sb.toString().getBytes(UTF_8);
+            
+            int count = rows.count;
+            int width = rows.width;
+            int bitmapLength = padded((count + 7) / 8);
+            ByteBuffer buf = ByteBuffer.allocate(8 + padded(header.length) + 4 * count + width * (4 * count + bitmapLength));
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(MAGIC).putInt(header.length).put(header);
+            buf.position(8 + padded(header.length));
+            for(int i = 0; i < count; i++) {
+                buf.putInt(rows.timestamps[i]);
+            }
+            byte[] bitmap = new byte[bitmapLength];
+            for(int column = 0; column < width; column++) {
+                Arrays.fill(bitmap, (byte)0);
+                for(int i = 0; i < count; i++) {
+                    double value = rows.values[i * width + column];
+                    if(Double.isNaN(value)) {
+                        bitmap[i >> 3] |= 1 << (i & 7);
+                        value = 0;
+                    }
+                    if(floats) buf.putFloat((float)value);
+                    else buf.putInt((int)value);
                 }
-                for(int mtu = 0; mtu < options.mtus + options.spyders; mtu++) {
-                    row.addCell(oldRow.getCell(2+mtu*3));
+                buf.put(bitmap);
+            }
+            bytes = buf.array();
+        }
+        
+        private int padded(int length) {
+            return (length + 3) & ~3;
+        }
+        
+        byte[] bytes() {
+            return bytes;
+        }
+    }
+
+    // holds the row of one second, for the extra point at the start of the zoom
+    private static class HeldRow implements RowOutput {
+        private int timestamp;
+        private double[] values;
+        
+        @Override
+        public void row(int rowTimestamp, double[] rowValues) {
+            timestamp = rowTimestamp;
+            values = rowValues.clone();
+        }
+    }
+
+    /** 
+     * Builds the rows of a response from reads, which must come in time order, sending them on to a {@link RowOutput}.
+     * Keeps the range of timestamps sent, and skips entries read within it.  
+     */
+    private class RowBuilder {
+        private final QueryParameters params;
+        private final RowOutput output;
+        private final int width;
+        
+        private int min = Integer.MAX_VALUE;
+        private int max = 0;
+
+        // the row being built, if any
+        private boolean inRow;
+        private int lastTime;
+        private final double[] values;
+        
+        // for extraPoints: whether the first row sent is still to be checked against the start of the zoom
+        private boolean leadingPending;
+        // whether the extra point at the start of the zoom is to be looked for after the last row instead
+        private boolean leadingAfter;
+        
+        public RowBuilder(QueryParameters params, RowOutput output) {
+            this.params = params;
+            this.output = output;
+            this.width = params.channels.length * (params.queryType==QueryType.COMBINED_POWER ? 3 : 1);
+            this.values = new double[width];
+        }
+
+        private void send(int timestamp, double[] rowValues) throws DatabaseException {
+            if(leadingPending) {
+                leadingPending = false;
+                // if nothing comes at or before the start of the zoom, the first second after it comes first,
+                // if before the rest; else the first second after the rest, as addLeadingPoint would find it
+                if(timestamp > params.start) {
+                    HeldRow held = readSecond(params.start);
+                    if(held.timestamp > 0 && held.timestamp < timestamp) {
+                        if(held.values!=null) send(held.timestamp, held.values);
+                    }
+                    else leadingAfter = true;
                 }
-                for(int mtu = 0; mtu < options.mtus + options.spyders; mtu++) {
-                    row.addCell(oldRow.getCell(3+mtu*3));
+            }
+            if(timestamp < min) min = timestamp;
+            if(timestamp > max) max = timestamp;
+            output.row(timestamp, rowValues);
+        }
+        
+        // the row of the first second at or after from, with timestamp 0 if none; with values null if none pass
+        private HeldRow readSecond(int from) throws DatabaseException {
+            HeldRow held = new HeldRow();
+            RowBuilder reader = new RowBuilder(params, held);
+            ReadIterator iter = databaseManager.secondsDb.read(from,-1,params.mtus);
+            try {
+                if(iter.advance()) {
+                    held.timestamp = iter.timestamp();
+                    do {
+                        reader.addSample(iter.current());
+                    } while(iter.advance() && iter.timestamp()==held.timestamp);
                 }
             }
-            rows.add(row);
+            finally {
+                iter.close();
+            }
+            reader.finishRow();
+            return held;
+        }
+        
+        /** For extraPoints: call before any reads, to have the first row checked against the start of the zoom */
+        public void expectLeadingPoint() {
+            leadingPending = true;
+        }
+        
+        /** 
+         * For extraPoints, after all but the live edge: if no row sent is at or before the start of the zoom, 
+         * adds the first second after it not within the rows sent.
+         */
+        public void addLeadingPoint() throws DatabaseException {
+            if(leadingPending) {
+                leadingPending = false;
+                addRowsFromIterator(databaseManager.secondsDb.read(params.start,-1,params.mtus),1);
+            }
+            else if(leadingAfter) {
+                leadingAfter = false;
+                addRowsFromIterator(databaseManager.secondsDb.read(max + 1,-1,params.mtus),1);
+            }
         }
         
-        private void finishRow() {
-            if(row!=null) {
-                addNullsTo(options.mtus + options.spyders);
-                addRow();
-                row = null;
+        private void finishRow() throws DatabaseException {
+            if(inRow) {
+                inRow = false;
+                send(lastTime, values);
                 lastTime = 0;
-                lastMTU = 0;
             }
         }
         
-        private void addTriple(Triple triple) {
-            if(triple.mtu >= options.mtus + options.spyders) return;
-            if(triple.timestamp < lastTime) return;
-            if(params.queryType==QueryType.VOLTAGE && triple.voltage==null) return;
-            else if(params.queryType==QueryType.POWER && triple.power==null) return;
-            else if(params.queryType==QueryType.VOLT_AMPERES && triple.voltAmperes==null) return;
-            else if(params.queryType==QueryType.VOLT_AMPERES_REACTIVE && (triple.voltAmperes==null || triple.power==null)) return;
-            else if(params.queryType==QueryType.COMBINED_POWER && triple.voltAmperes==null && triple.power==null) return;
-            else if(params.queryType==QueryType.POWER_FACTOR && (triple.voltAmperes==null || triple.power==null || triple.voltAmperes.intValue()==0)) return;
-            if(triple.timestamp > lastTime || row==null) {
+        private void addSample(Sample sample) throws DatabaseException {
+            int column = sample.mtu < params.columns.length ? params.columns[sample.mtu] : -1;
+            if(column < 0) return;
+            if(sample.timestamp < lastTime) return;
+            if(params.queryType==QueryType.VOLTAGE && !sample.hasVoltage()) return;
+            else if(params.queryType==QueryType.POWER && !sample.hasPower()) return;
+            else if(params.queryType==QueryType.VOLT_AMPERES && !sample.hasVoltAmperes()) return;
+            else if(params.queryType==QueryType.VOLT_AMPERES_REACTIVE && (!sample.hasVoltAmperes() || !sample.hasPower())) return;
+            else if(params.queryType==QueryType.COMBINED_POWER && !sample.hasVoltAmperes() && !sample.hasPower()) return;
+            else if(params.queryType==QueryType.POWER_FACTOR && (!sample.hasVoltAmperes() || !sample.hasPower() || sample.voltAmperes==0)) return;
+            if(sample.timestamp > lastTime || !inRow) {
                 finishRow();
-                row = new TableRow();
-                lastTime = triple.timestamp;
-                
-                if(triple.timestamp < min) min = triple.timestamp;
-                if(triple.timestamp > max) max = triple.timestamp;
-                
-                // note have to add in the time zone offset
-                // this because we want it to show our local time.
-                cal.setTimeInMillis((long)triple.timestamp * 1000 + options.serveTimeZone.getOffset((long)triple.timestamp*1000));
-                row.addCell(new DateTimeValue(cal));
-                lastMTU = -1;
-            }
-            addNullsTo(triple.mtu);
+                inRow = true;
+                lastTime = sample.timestamp;
+                Arrays.fill(values, Double.NaN);
+            }
             if(params.queryType==QueryType.VOLTAGE) {
-                if(triple.voltage==null) row.addCell(NULL_NUMBER);
-                else row.addCell((double)triple.voltage.intValue()/options.voltageDivisor);
+                if(sample.hasVoltage()) values[column] = (double)sample.voltage/options.voltageDivisor;
             }
             else if(params.queryType==QueryType.POWER) {
-                if(triple.power==null) row.addCell(NULL_NUMBER);
-                else row.addCell(triple.power.intValue());
+                if(sample.hasPower()) values[column] = sample.power;
             }
             else if(params.queryType==QueryType.VOLT_AMPERES) {
-                if(triple.voltAmperes==null) row.addCell(NULL_NUMBER);
-                else row.addCell(triple.voltAmperes.intValue());
+                if(sample.hasVoltAmperes()) values[column] = sample.voltAmperes;
             }
             else if(params.queryType==QueryType.VOLT_AMPERES_REACTIVE) {
-                if(triple.power==null || triple.voltAmperes==null) row.addCell(NULL_NUMBER);
-                else {
-                    double w = triple.power.intValue();
-                    double va = triple.voltAmperes.intValue();
-                    double varsqr = va*va - w*w;
-                    if(varsqr < 0) row.addCell(0);
-                    else row.addCell(Math.round(Math.sqrt(varsqr)));
-                }
+                if(sample.hasPower() && sample.hasVoltAmperes()) values[column] = voltAmperesReactive(sample);
             }
             else if(params.queryType==QueryType.COMBINED_POWER) {
-                if(triple.power==null) row.addCell(NULL_NUMBER);
-                else row.addCell(triple.power.intValue());
-                if(triple.power==null || triple.voltAmperes==null) row.addCell(NULL_NUMBER);
-                else {
-                    double w = triple.power.intValue();
-                    double va = triple.voltAmperes.intValue();
-                    double varsqr = va*va - w*w;
-                    if(varsqr < 0) row.addCell(0);
-                    else row.addCell(Math.round(Math.sqrt(varsqr)));
-                }
-                if(triple.voltAmperes==null) row.addCell(NULL_NUMBER);
-                else row.addCell(triple.voltAmperes.intValue());
+                // watts, then vars, then volt-amperes, each for all channels
+                int channels = params.channels.length;
+                if(sample.hasPower()) values[column] = sample.power;
+                if(sample.hasPower() && sample.hasVoltAmperes()) values[channels + column] = voltAmperesReactive(sample);
+                if(sample.hasVoltAmperes()) values[2*channels + column] = sample.voltAmperes;
             }
             else if(params.queryType==QueryType.POWER_FACTOR) {
-                if(triple.power==null || triple.voltAmperes==null || triple.voltAmperes.intValue()==0) row.addCell(NULL_NUMBER);
-                else {
-                    double factor = (triple.power.intValue() * 1000 / triple.voltAmperes.intValue()) / 1000.0;
+                if(sample.hasPower() && sample.hasVoltAmperes() && sample.voltAmperes!=0) {
+                    double factor = (sample.power * 1000 / sample.voltAmperes) / 1000.0;
                     if(factor > 1.0) factor = 1.0;
                     if(factor < -1.0) factor = -1.0;
-                    row.addCell(factor);
+                    values[column] = factor;
                 }
             }
-            lastMTU = triple.mtu;
+        }
+        
+        private double voltAmperesReactive(Sample sample) {
+            double w = sample.power;
+            double va = sample.voltAmperes;
+            double varsqr = va*va - w*w;
+            if(varsqr < 0) return 0;
+            else return Math.round(Math.sqrt(varsqr));
         }
         
         /* returns whether any rows were in fact added */
-        public boolean addRowsFromIterator(ReadIterator iter) {
+        public boolean addRowsFromIterator(ReadIterator iter) throws DatabaseException {
             return addRowsFromIterator(iter,0);
         }
         
         /* returns whether any rows were in fact added */
-        public boolean addRowsFromIterator(ReadIterator iter, int limit) {
+        public boolean addRowsFromIterator(ReadIterator iter, int limit) throws DatabaseException {
             boolean res = false;
             int priorMin = min;
             int priorMax = max;
             int time = 0;
             int count = 0;
             try {
-                while(iter.hasNext()) {
-                    Triple triple = iter.next();
-                    if(triple.timestamp >= priorMin && triple.timestamp <= priorMax) continue;
+                while(iter.advance()) {
+                    int timestamp = iter.timestamp();
+                    if(timestamp >= priorMin && timestamp <= priorMax) continue;
                     if(limit > 0) {
-                        if(time!=triple.timestamp) count++;
+                        if(time!=timestamp) count++;
                         if(count > limit) break;
-                        time = triple.timestamp;
+                        time = timestamp;
                     }
-                    addTriple(triple);
+                    addSample(iter.current());
                     res = true;
                 }
             }
@@ -376,29 +904,66 @@ public class Servlet extends DataSourceServlet {
             return res;
         }
         
-        public int min() {
-            return min;
+        /* as addRowsFromIterator(db.read(start,end,params.mtus)), but through the read cache for rollups, and downsampled if asked */
+        public void addRowsFromSegment(Segment segment) throws DatabaseException {
+            if(segment.points==0 && (segment.db.resolution==1 || segment.end < segment.start)) {
+                addRowsFromIterator(segment.db.read(segment.start,segment.end,params.mtus));
+                return;
+            }
+            addRows(read(segment));
         }
         
-        public int max() {
-            return max;
+        /** 
+         * The rows of the segment, as for {@link #addRowsFromSegment}, for {@link #addRows}.
+         * Uses nothing of this builder's state, so may be called from any thread.
+         */
+        public CachedRows read(Segment segment) throws DatabaseException {
+            CachedRows rows = read(segment.db, segment.start, segment.end);
+            if(segment.points==0) return rows;
+            else if(params.downsampling==Downsampling.MIN_MAX) return rows.minMax(segment.start, segment.end, Math.max(1, segment.points / 2));
+            else return rows.largestTriangles(segment.start, segment.end, segment.points);
         }
         
-        public void setCustomProperty(String key, String value) {
-            data.setCustomProperty(key, value);
+        // the rows of db.read(start,end,params.mtus), through the read cache for rollups
+        private CachedRows read(TimeSeriesDatabase db, int start, int end) throws DatabaseException {
+            if(db.resolution==1 || end < start) {
+                CachedRows res = new CachedRows(width);
+                new RowBuilder(params, res).addRowsFromIterator(db.read(start,end,params.mtus));
+                return res;
+            }
+            ReadCache.Key key = new ReadCache.Key(params.queryType, db, start, end, params.mtus);
+            return (CachedRows)databaseManager.readCache.get(key, cachedRowsBuilder);
         }
         
-        public DataTable dataTable() {
-            try {
-                TableRow nextRow;
-                while((nextRow = rows.poll()) != null) {
-                    data.addRow(nextRow);
-                }
+        /* adds rows from read, skipping any within the range already sent */
+        public void addRows(CachedRows cachedRows) throws DatabaseException {
+            int priorMin = min;
+            int priorMax = max;
+            for(int i = 0; i < cachedRows.count; i++) {
+                int timestamp = cachedRows.timestamps[i];
+                if(timestamp >= priorMin && timestamp <= priorMax) continue;
+                System.arraycopy(cachedRows.values, i * width, values, 0, width);
+                send(timestamp, values);
             }
-            catch(TypeMismatchException e) {
-                throw new RuntimeException(e);
+        }
+        
+        private final ReadCache.Builder cachedRowsBuilder = new ReadCache.Builder() {
+            @Override
+            public ReadCache.Value build(ReadCache.Key key) throws DatabaseException {
+                CachedRows res = new CachedRows(width);
+                if(key.start <= key.end) {
+                    new RowBuilder(params, res).addRowsFromIterator(key.db.read(key.start,key.end,params.mtus));
+                }
+                return res;
             }
-            return data;
+        };
+        
+        public int min() {
+            return min;
+        }
+        
+        public int max() {
+            return max;
         }
     }
     
@@ -406,6 +971,11 @@ public class Servlet extends DataSourceServlet {
         POWER, VOLTAGE, VOLT_AMPERES, POWER_FACTOR, VOLT_AMPERES_REACTIVE, COMBINED_POWER;
     }
 
+    /** How the zoom is reduced to its points from a finer database, for downsample=minmax or downsample=lttb */
+    private enum Downsampling {
+        MIN_MAX, LARGEST_TRIANGLE;
+    }
+
     private class QueryParameters {
         public int rangeStart;
         public int rangeEnd;
@@ -416,6 +986,13 @@ public class Servlet extends DataSourceServlet {
         public int maxPoints;
         public int extraPoints;
         public QueryType queryType;
+        // null for averages at the zoom's resolution
+        public Downsampling downsampling;
+        // channels requested, in display order; mtus[mtu] is whether mtu is requested,
+        // and columns[mtu] its column among the channels, or -1
+        public int[] channels;
+        public boolean[] mtus;
+        public int[] columns;
         
         private HttpServletRequest req;
 
@@ -449,6 +1026,8 @@ public class Servlet extends DataSourceServlet {
             String path = req.getPathInfo();
             if(path==null || "".equals(path) || "/".equals(path)) path = "power";
             else if(path.startsWith("/")) path = path.substring(1);
+            if(path.endsWith(BINARY_SUFFIX)) path = path.substring(0, path.length() - BINARY_SUFFIX.length());
+            else if(path.endsWith(LIVE_SUFFIX)) path = path.substring(0, path.length() - LIVE_SUFFIX.length());
             
             if(path.equals("power")) queryType = QueryType.POWER;
             else if(path.equals("voltage")) queryType = QueryType.VOLTAGE;
@@ -489,134 +1068,499 @@ public class Servlet extends DataSourceServlet {
             String extraPointsString = req.getParameter("extraPoints");
             if("yes".equals(extraPointsString)) extraPoints = 2;
             else extraPoints = getIntParameter("extraPoints",0);
+            
+            String downsample = req.getParameter("downsample");
+            if(downsample==null || downsample.length()==0) downsampling = null;
+            else if(downsample.equals("minmax")) downsampling = Downsampling.MIN_MAX;
+            else if(downsample.equals("lttb")) downsampling = Downsampling.LARGEST_TRIANGLE;
+            else {
+                throw new DataSourceException(ReasonType.INVALID_REQUEST, "Downsampling '" + downsample + "' unknown");
+            }
+            
+            parseChannels(req.getParameter("mtus"));
+        }
+        
+        // mtus=1,3,5 selects channels by number, counting MTUs then spyders from 1 as in the export
+        private void parseChannels(String param) throws DataSourceException {
+            int numChannels = options.mtus + options.spyders;
+            mtus = new boolean[numChannels];
+            if(param==null || param.length()==0) {
+                Arrays.fill(mtus,true);
+            }
+            else {
+                for(String s : param.split(",")) {
+                    s = s.trim();
+                    if(s.length()==0) continue;
+                    int channel;
+                    try {
+                        channel = Integer.parseInt(s);
+                    }
+                    catch(NumberFormatException e) {
+                        throw new DataSourceException(ReasonType.INVALID_REQUEST, "Channel '" + s + "' unknown");
+                    }
+                    if(channel < 1 || channel > numChannels) {
+                        throw new DataSourceException(ReasonType.INVALID_REQUEST, "Channel '" + s + "' unknown");
+                    }
+                    mtus[channel-1] = true;
+                }
+            }
+            columns = new int[numChannels];
+            int count = 0;
+            for(int mtu = 0; mtu < numChannels; mtu++) {
+                columns[mtu] = mtus[mtu] ? count++ : -1;
+            }
+            channels = new int[count];
+            for(int mtu = 0; mtu < numChannels; mtu++) {
+                if(mtus[mtu]) channels[columns[mtu]] = mtu;
+            }
         }
     }
     
-    @Override
-    public DataTable generateDataTable(Query query, HttpServletRequest req) throws DataSourceException {
-        int min = minimum;
-        int max = maximum;
-        
-        QueryParameters params = new QueryParameters(req,min,max);
+    /** A read of one database over a range of time; a step of a query's {@link #plan} */
+    private static class Segment {
+        final TimeSeriesDatabase db;
+        final int start;
+        final int end;
+        // if positive, the rows read are downsampled to about this many
+        final int points;
         
-        log.trace("Begin query for " + params.queryType);
+        Segment(TimeSeriesDatabase db, int start, int end) {
+            this(db, start, end, 0);
+        }
         
-        // Create a data table,
-        DataTableBuilder builder = new DataTableBuilder(params);
+        Segment(TimeSeriesDatabase db, int start, int end, int points) {
+            this.db = db;
+            this.start = start;
+            this.end = end;
+            this.points = points;
+        }
+    }
 
-        // Fill the data table.
-        boolean possibleRedraw = false; 
-        try {
-            TimeSeriesDatabase zoomDb = zoomDb(params);
-            TimeSeriesDatabase rangeDb = rangeDb(params);
-            if(rangeDb.resolution < zoomDb.resolution) rangeDb = zoomDb; 
-            
-            possibleRedraw = params.end == max && zoomDb.resolution <= 60;
+    /**
+     * The reads for the main rows of a query, in time order over disjoint ranges, so that their rows need only be
+     * concatenated: the zoom, widened by a zoom's width each way for extraPoints, with a day and a week before it 
+     * at intermediate resolutions, and the rest of the range at the range's resolution.  
+     * Each segment is clipped to start where the one before it ends.
+     * With a downsamplingDb, the zoom is read from it instead, and downsampled to as many points as zoomDb has there.
+     */
+    private List<Segment> plan(QueryParameters params, TimeSeriesDatabase zoomDb, TimeSeriesDatabase downsamplingDb, TimeSeriesDatabase rangeDb) {
+        int range = params.end - params.start;
+        int start = params.extraPoints > 1 ? Math.max(params.rangeStart, params.start - range) : params.start;
+        int end = params.extraPoints > 1 ? Math.min(params.rangeEnd, params.end + range) : params.end;
 
-            String resolutionString = zoomDb.resolutionString;
-            if(params.resolution<0) resolutionString += " (auto)";
-            else if(params.resolution<zoomDb.resolution) resolutionString += " (capped)";
-            builder.setCustomProperty(RESOLUTION_STRING, resolutionString);
-            builder.setCustomProperty(RESOLUTION,String.valueOf(zoomDb.resolution));
-            
-            int range = params.end - params.start;
-            int start = params.extraPoints > 1 ? Math.max(params.rangeStart, params.start - range) : params.start;
-            int end = params.extraPoints > 1 ? Math.min(params.rangeEnd, params.end + range) : params.end;
-            builder.addRowsFromIterator(zoomDb.read(start,end));
-            
-            int origEnd = end;
-            
-            int rangeEnd = params.rangeEnd;
-            if(params.extraPoints > 1) {
-                if(end < params.rangeEnd) {
-                    rangeEnd = Math.max(end, params.rangeEnd - range - 1);
-                }
-                if(start > params.rangeStart) {
-                    TimeSeriesDatabase dayDb = dayDb();
-                    if(dayDb.resolution < zoomDb.resolution) dayDb = zoomDb;
-                    if(dayDb.resolution > rangeDb.resolution) dayDb = rangeDb; 
-                    end = start;
-                    start = Math.max(params.rangeStart, params.end - 86400); 
-                    builder.addRowsFromIterator(dayDb.read(start,end - 1));
-                }
-                if(start > params.rangeStart) {
-                    TimeSeriesDatabase weekDb = weekDb();
-                    if(weekDb.resolution < zoomDb.resolution) weekDb = zoomDb;
-                    if(weekDb.resolution > rangeDb.resolution) weekDb = rangeDb; 
-                    end = start;
-                    start = Math.max(params.rangeStart, params.end - 86400 * 8); 
-                    builder.addRowsFromIterator(weekDb.read(start,end - 1));
-                }
-//                if(start > params.rangeStart) {
-//                    TimeSeriesDatabase monthDb = monthDb();
-//                    if(monthDb.resolution < zoomDb.resolution) monthDb = zoomDb;
-//                    if(monthDb.resolution > rangeDb.resolution) monthDb = rangeDb; 
-//                    end = start;
-//                    start = Math.max(params.rangeStart, params.end - 86400 * 32); 
-//                    builder.addRowsFromIterator(monthDb.read(start,end - 1));
-//                }
+        int rangeEnd = params.rangeEnd;
+        int dayStart = start;
+        int weekStart = start;
+        TimeSeriesDatabase dayDb = null;
+        TimeSeriesDatabase weekDb = null;
+        if(params.extraPoints > 1) {
+            if(end < params.rangeEnd) {
+                rangeEnd = Math.max(end, params.rangeEnd - range - 1);
             }
-            
             if(start > params.rangeStart) {
-                builder.addRowsFromIterator(rangeDb.read(params.rangeStart,start - 1));
+                dayDb = dayDb();
+                if(dayDb.resolution < zoomDb.resolution) dayDb = zoomDb;
+                if(dayDb.resolution > rangeDb.resolution) dayDb = rangeDb; 
+                dayStart = Math.min(start, Math.max(params.rangeStart, params.end - 86400));
+                weekStart = dayStart;
             }
-            if(origEnd < rangeEnd) {
-                builder.addRowsFromIterator(rangeDb.read(origEnd + 1,rangeEnd));
+            if(dayStart > params.rangeStart) {
+                weekDb = weekDb();
+                if(weekDb.resolution < zoomDb.resolution) weekDb = zoomDb;
+                if(weekDb.resolution > rangeDb.resolution) weekDb = rangeDb; 
+                weekStart = Math.min(dayStart, Math.max(params.rangeStart, params.end - 86400 * 8));
             }
+        }
+
+        List<Segment> plan = new ArrayList<Segment>();
+        if(weekStart > params.rangeStart) {
+            plan.add(new Segment(rangeDb,params.rangeStart,weekStart - 1));
+        }
+        if(weekDb!=null && weekStart < dayStart) {
+            plan.add(new Segment(weekDb,weekStart,dayStart - 1));
+        }
+        if(dayDb!=null && dayStart < start) {
+            plan.add(new Segment(dayDb,dayStart,start - 1));
+        }
+        if(downsamplingDb!=null) {
+            plan.add(new Segment(downsamplingDb,start,end,(end - start) / zoomDb.resolution + 1));
+        }
+        else {
+            plan.add(new Segment(zoomDb,start,end));
+        }
+        if(end < rangeEnd) {
+            plan.add(new Segment(rangeDb,end + 1,rangeEnd));
+        }
+        if(params.extraPoints > 1 && rangeEnd < params.rangeEnd) {
+            plan.add(new Segment(zoomDb,rangeEnd+1,params.rangeEnd));
+        }
+        return plan;
+    }
 
-            if(params.extraPoints > 1 && rangeEnd < params.rangeEnd) {
-                builder.addRowsFromIterator(zoomDb.read(rangeEnd+1,params.rangeEnd));
+    // reads all but the first segment on readExecutor while this thread reads the first, then adds them in order
+    private void addRowsConcurrently(final RowBuilder builder, List<Segment> plan) throws DatabaseException {
+        List<Future<CachedRows>> reads = new ArrayList<Future<CachedRows>>();
+        try {
+            for(final Segment segment : plan.subList(1, plan.size())) {
+                reads.add(readExecutor.submit(new Callable<CachedRows>() {
+                    @Override
+                    public CachedRows call() throws DatabaseException {
+                        return builder.read(segment);
+                    }
+                }));
             }
-            
-            if(params.extraPoints > 0) {
-                if(builder.min() > params.start) {
-                    builder.addRowsFromIterator(databaseManager.secondsDb.read(params.start),1);
+            Segment first = plan.get(0);
+            builder.addRowsFromSegment(first);
+            for(Future<CachedRows> read : reads) {
+                try {
+                    builder.addRows(read.get());
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new DatabaseException("Interrupted reading for query") {};
                 }
+                catch(ExecutionException e) {
+                    if(e.getCause() instanceof DatabaseException) throw (DatabaseException)e.getCause();
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        }
+        finally {
+            // reads not needed after a failure
+            for(Future<CachedRows> read : reads) {
+                read.cancel(true);
+            }
+        }
+    }
 
-                if(params.end == max && builder.max()>0 && !possibleRedraw) {
-                    int zoomDbIndex;
-                    for(zoomDbIndex = DatabaseManager.numDurations - 1; zoomDbIndex >= 0; zoomDbIndex--) {
-                        if(databaseManager.databases[zoomDbIndex].resolution == zoomDb.resolution) break;
-                    }
-                    if(zoomDbIndex > 0) {
-                        int nextTime = builder.max() + databaseManager.databases[zoomDbIndex].resolution - databaseManager.databases[zoomDbIndex-1].resolution + 1;
-                        log.debug("After resolution " + databaseManager.databases[zoomDbIndex].resolution + " max = " + Util.dateString(builder.max()) + " nextTime = " + Util.dateString(nextTime));
-                        for(int i = zoomDbIndex - 1; i >= 1; i--) {
-                            if(nextTime>=max) break;
-                            if (builder.addRowsFromIterator(databaseManager.databases[i].read(nextTime,max),10)) {
-                                nextTime = builder.max() + databaseManager.databases[i].resolution - databaseManager.databases[i-1].resolution + 1;
-                                log.debug("After resolution " + databaseManager.databases[i].resolution + " max = " + Util.dateString(builder.max()) + " nextTime = " + Util.dateString(nextTime));
-                            }
-                        }
-                        if(builder.max() < max) {
-                            nextTime = Math.min(nextTime, max);
-                            builder.addRowsFromIterator(databaseManager.databases[0].read(nextTime,max),10);
+    // reads the rows for the query into output, in time order, then finishes it with the table's custom properties
+    private void respond(QueryParameters params, int min, int max, ResponseOutput output) throws DatabaseException {
+        log.trace("Begin query for " + params.queryType);
+        
+        RowBuilder builder = new RowBuilder(params, output);
+        Map<String,String> properties = new LinkedHashMap<String,String>();
+
+        TimeSeriesDatabase zoomDb = zoomDb(params);
+        TimeSeriesDatabase rangeDb = rangeDb(params);
+        if(rangeDb.resolution < zoomDb.resolution) rangeDb = zoomDb; 
+        TimeSeriesDatabase downsamplingDb = downsamplingDb(params, zoomDb);
+
+        boolean possibleRedraw = params.end == max && zoomDb.resolution <= 60;
+
+        String resolutionString = zoomDb.resolutionString;
+        if(params.resolution<0) resolutionString += " (auto)";
+        else if(params.resolution<zoomDb.resolution) resolutionString += " (capped)";
+        if(downsamplingDb!=null) resolutionString += " (" + (params.downsampling==Downsampling.MIN_MAX ? "peaks" : "shape") + " from " + downsamplingDb.resolutionString + ")";
+        properties.put(RESOLUTION_STRING, resolutionString);
+        properties.put(RESOLUTION,String.valueOf(zoomDb.resolution));
+
+        if(params.extraPoints > 0) builder.expectLeadingPoint();
+        List<Segment> plan = plan(params, zoomDb, downsamplingDb, rangeDb);
+        if(readExecutor==null || plan.size()==1) {
+            for(Segment segment : plan) {
+                builder.addRowsFromSegment(segment);
+            }
+        }
+        else {
+            addRowsConcurrently(builder, plan);
+        }
+
+        if(params.extraPoints > 0) {
+            builder.addLeadingPoint();
+
+            if(params.end == max && builder.max()>0 && !possibleRedraw) {
+                int zoomDbIndex;
+                for(zoomDbIndex = DatabaseManager.numDurations - 1; zoomDbIndex >= 0; zoomDbIndex--) {
+                    if(databaseManager.databases[zoomDbIndex].resolution == zoomDb.resolution) break;
+                }
+                if(zoomDbIndex > 0) {
+                    int nextTime = builder.max() + databaseManager.databases[zoomDbIndex].resolution - databaseManager.databases[zoomDbIndex-1].resolution + 1;
+                    log.debug("After resolution " + databaseManager.databases[zoomDbIndex].resolution + " max = " + Util.dateString(builder.max()) + " nextTime = " + Util.dateString(nextTime));
+                    for(int i = zoomDbIndex - 1; i >= 1; i--) {
+                        if(nextTime>=max) break;
+                        if (builder.addRowsFromIterator(databaseManager.databases[i].read(nextTime,max,params.mtus),10)) {
+                            nextTime = builder.max() + databaseManager.databases[i].resolution - databaseManager.databases[i-1].resolution + 1;
+                            log.debug("After resolution " + databaseManager.databases[i].resolution + " max = " + Util.dateString(builder.max()) + " nextTime = " + Util.dateString(nextTime));
                         }
                     }
-                }
-                else if(builder.max() < params.end && !possibleRedraw) {
-                    builder.addRowsFromIterator(databaseManager.secondsDb.read(params.end),1);
+                    if(builder.max() < max) {
+                        nextTime = Math.min(nextTime, max);
+                        builder.addRowsFromIterator(databaseManager.databases[0].read(nextTime,max,params.mtus),10);
+                    }
                 }
             }
-        }
-        catch(DatabaseException e) {
-            e.printStackTrace();
-            throw new DataSourceException(ReasonType.INTERNAL_ERROR, e.getMessage());
+            else if(builder.max() < params.end && !possibleRedraw) {
+                builder.addRowsFromIterator(databaseManager.secondsDb.read(params.end,-1,params.mtus),1);
+            }
         }
 
         // These return the timestamp where UTC clock shows what would be local time
-        builder.setCustomProperty(MINIMUM_STRING, String.valueOf(min + options.serveTimeZone.getOffset(1000L*min)/1000));
+        properties.put(MINIMUM_STRING, String.valueOf(min + options.serveTimeZone.getOffset(1000L*min)/1000));
         int sentMax = possibleRedraw ? builder.max() : max;
-        builder.setCustomProperty(MAXIMUM_STRING, String.valueOf(sentMax + options.serveTimeZone.getOffset(1000L*sentMax)/1000));
+        properties.put(MAXIMUM_STRING, String.valueOf(sentMax + options.serveTimeZone.getOffset(1000L*sentMax)/1000));
         
         // send time zone info 
         // used to say "so that client can adjust (Annotated Time Line bug)" but that was wrong;
         // the bug is about the client's time zone.
         // We'll still send this in case it's useful.  Whether it says standard or daylight time
         // is determined by the highest date in the visible range.
-        builder.setCustomProperty(TIME_ZONE_OFFSET, String.valueOf(options.serveTimeZone.getOffset(1000L*params.end) / 1000));
+        properties.put(TIME_ZONE_OFFSET, String.valueOf(options.serveTimeZone.getOffset(1000L*params.end) / 1000));
+        output.finish(properties);
         log.trace("Query complete.");
-        return builder.dataTable();
+    }
+
+    @Override
+    public DataTable generateDataTable(Query query, HttpServletRequest req) throws DataSourceException {
+        int min = minimum;
+        int max = maximum;
+        
+        QueryParameters params = new QueryParameters(req,min,max);
+        TableOutput output = new TableOutput(columns(params));
+        try {
+            respond(params, min, max, output);
+        }
+        catch(DatabaseException e) {
+            e.printStackTrace();
+            throw new DataSourceException(ReasonType.INTERNAL_ERROR, e.getMessage());
+        }
+        return output.dataTable();
+    }
+
+    /**
+     * JSON and CSV responses without a query or signature are written row by row as they are read, 
+     * rather than built into a DataTable for the library to render; everything else goes to the library.
+     * Paths ending in {@link #BINARY_SUFFIX} get the table as typed arrays, and in {@link #LIVE_SUFFIX} new rows.
+     */
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        String path = req.getPathInfo();
+        if(path!=null && path.endsWith(BINARY_SUFFIX)) {
+            doGetBinary(req, resp);
+            return;
+        }
+        if(path!=null && path.endsWith(LIVE_SUFFIX)) {
+            doGetLive(req, resp);
+            return;
+        }
+        DataSourceRequest dsRequest;
+        try {
+            dsRequest = new DataSourceRequest(req);
+        }
+        catch(DataSourceException e) {
+            super.doGet(req, resp);
+            return;
+        }
+        DataSourceParameters dsParams = dsRequest.getDataSourceParameters();
+        OutputType outputType = dsParams.getOutputType();
+        boolean streamable = outputType==OutputType.CSV 
+                || ((outputType==OutputType.JSON || outputType==OutputType.JSONP) && dsParams.getSignature()==null);
+        if(isRestrictedAccessMode() || !streamable || (dsRequest.getQuery()!=null && !dsRequest.getQuery().isEmpty())) {
+            super.doGet(req, resp);
+            return;
+        }
+        
+        int min = minimum;
+        int max = maximum;
+        QueryParameters params;
+        try {
+            params = new QueryParameters(req,min,max);
+        }
+        catch(DataSourceException e) {
+            DataSourceHelper.setServletErrorResponse(e, dsRequest, resp);
+            return;
+        }
+        List<ColumnDescription> columns = columns(params);
+        ResponseOutput output;
+        if(outputType==OutputType.CSV) {
+            resp.setContentType("text/csv; charset=UTF-8");
+            String outFileName = dsParams.getOutFileName();
+            if(!outFileName.toLowerCase().endsWith(".csv")) outFileName += ".csv";
+            resp.setHeader("Content-Disposition", "attachment; filename=" + outFileName);
+            output = new CsvOutput(resp.getWriter(), dsRequest.getUserLocale(), columns);
+        }
+        else {
+            resp.setContentType(outputType==OutputType.JSONP ? "text/javascript; charset=UTF-8" : "application/json; charset=UTF-8");
+            output = new JsonOutput(resp.getWriter(), dsParams, columns);
+        }
+        try {
+            respond(params, min, max, output);
+        }
+        catch(DatabaseException e) {
+            // too late for an error response; the client sees a truncated one
+            log.error("Error reading for response", e);
+        }
+    }
+
+    private void doGetBinary(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        // the client reads it with XMLHttpRequest, from wherever the pages are served
+        resp.setHeader("Access-Control-Allow-Origin", "*");
+        int min = minimum;
+        int max = maximum;
+        QueryParameters params;
+        try {
+            params = new QueryParameters(req,min,max);
+        }
+        catch(DataSourceException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessageToUser());
+            return;
+        }
+        BinaryOutput output = new BinaryOutput(params, columns(params));
+        try {
+            respond(params, min, max, output);
+        }
+        catch(DatabaseException e) {
+            log.error("Error reading for response", e);
+            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+            return;
+        }
+        byte[] bytes = output.bytes();
+        resp.setContentType("application/octet-stream");
+        resp.setContentLength(bytes.length);
+        resp.getOutputStream().write(bytes);
+    }
+
+    // requests for live rows suspended until the maximum moves
+    private final ConcurrentLinkedQueue<Continuation> liveWaiters = new ConcurrentLinkedQueue<Continuation>();
+    // the rows last read for live requests, by what they asked for, so that all waiting for the same move share one read;
+    // in access order, keeping the most recent LIVE_ROWS_KEPT
+    private final Map<String,LiveRows> liveRows = new LinkedHashMap<String,LiveRows>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,LiveRows> eldest) {
+            return size() > LIVE_ROWS_KEPT;
+        }
+    };
+    
+    private static class LiveRows {
+        int after;
+        int maximum;
+        CachedRows rows;
+    }
+    
+    // stops waiting on expiry
+    private final ContinuationListener liveWaiterListener = new ContinuationListener() {
+        @Override
+        public void onTimeout(Continuation continuation) {
+            liveWaiters.remove(continuation);
+        }
+        
+        @Override
+        public void onComplete(Continuation continuation) {
+        }
+    };
+    
+    private void resumeLiveWaiters() {
+        Continuation continuation;
+        while((continuation = liveWaiters.poll())!=null) {
+            try {
+                continuation.resume();
+            }
+            catch(IllegalStateException e) {
+                // expired meanwhile
+            }
+        }
+    }
+    
+    /**
+     * Long-polls for the rows of the query's resolution after the time "after", given as the table's dates give it 
+     * (seconds where GMT shows the server's local time), up to the maximum: answers once there are some, 
+     * or after {@link #LIVE_TIMEOUT} with none, as JSON {"maximum":...,"timeZoneOffset":...,"rows":[[date,value,...],...]}, 
+     * with dates and maximum as in tables.  For a client at the latest time, to append to its table in place of requerying.
+     * Rows further back than --max-points periods are not sent.
+     */
+    private void doGetLive(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setHeader("Access-Control-Allow-Origin", "*");
+        int max = maximum;
+        QueryParameters params;
+        try {
+            params = new QueryParameters(req,minimum,max);
+        }
+        catch(DataSourceException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessageToUser());
+            return;
+        }
+        TimeSeriesDatabase db = databaseForResolution(Math.max(1, params.resolution), false);
+        int after = max;
+        String afterParam = req.getParameter("after");
+        if(afterParam!=null && afterParam.length()>0) {
+            try {
+                after = Util.timestampFromLocal(options.serveTimeZone, Integer.parseInt(afterParam));
+            }
+            catch(NumberFormatException e) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad after: " + afterParam);
+                return;
+            }
+        }
+        after = Math.max(after, max - options.maxDataPoints * db.resolution);
+        
+        CachedRows rows;
+        try {
+            rows = liveRows(params, db, after, max);
+        }
+        catch(DatabaseException e) {
+            log.error("Error reading for response", e);
+            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+            return;
+        }
+        Continuation continuation = ContinuationSupport.getContinuation(req);
+        Long since = (Long)req.getAttribute(LIVE_SINCE);
+        long now = System.currentTimeMillis();
+        if(since==null) {
+            since = Long.valueOf(now);
+            req.setAttribute(LIVE_SINCE, since);
+        }
+        // resumed for moves that brought nothing new, it waits again, until the timeout from when it came
+        long timeout = since.longValue() + LIVE_TIMEOUT - now;
+        if(rows.count==0 && !continuation.isExpired() && timeout > 0) {
+            continuation.setTimeout(timeout);
+            if(continuation.isInitial()) continuation.addContinuationListener(liveWaiterListener);
+            continuation.suspend();
+            liveWaiters.add(continuation);
+            // in case the maximum moved before this was waiting
+            if(maximum!=max && liveWaiters.remove(continuation)) continuation.resume();
+            return;
+        }
+        
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"maximum\":").append(localMillis(max) / 1000);
+        sb.append(",\"timeZoneOffset\":").append(options.serveTimeZone.getOffset(1000L*max) / 1000);
+        sb.append(",\"rows\":[");
+        for(int i = 0; i < rows.count; i++) {
+            if(i > 0) sb.append(',');
+            sb.append('[').append(localMillis(rows.timestamps[i]) / 1000);
+            for(int column = 0; column < rows.width; column++) {
+                double value = rows.values[i * rows.width + column];
+                sb.append(',');
+                if(Double.isNaN(value)) sb.append("null");
+                else sb.append(value);
+            }
+            sb.append(']');
+        }
+        sb.append("]}");
+        resp.setContentType("application/json; charset=UTF-8");
+        resp.getWriter().append(sb);
+    }
+    
+    // the rows of db after after, up to max, read once for all asking at the same time for the same
+    private CachedRows liveRows(QueryParameters params, TimeSeriesDatabase db, int after, int max) throws DatabaseException {
+        String key = params.queryType + " " + db.resolution + " " + Arrays.toString(params.mtus);
+        LiveRows live;
+        synchronized(liveRows) {
+            live = liveRows.get(key);
+            if(live==null) {
+                live = new LiveRows();
+                liveRows.put(key, live);
+            }
+        }
+        synchronized(live) {
+            if(live.rows==null || live.after!=after || live.maximum!=max) {
+                CachedRows rows = new CachedRows(columns(params).size() - 1);
+                if(after < max) new RowBuilder(params, rows).addRowsFromIterator(db.read(after + 1, max, params.mtus));
+                live.after = after;
+                live.maximum = max;
+                live.rows = rows;
+            }
+            return live.rows;
+        }
     }
 
     @Override
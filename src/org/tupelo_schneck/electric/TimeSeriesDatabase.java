@@ -21,20 +21,21 @@ If not, see <http://www.gnu.org/licenses/>.
 
 package org.tupelo_schneck.electric;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.tupelo_schneck.electric.store.ByteArrayComparator;
+import org.tupelo_schneck.electric.store.Store;
+import org.tupelo_schneck.electric.store.StoreCursor;
 
-import com.sleepycat.je.Cursor;
-import com.sleepycat.je.CursorConfig;
-import com.sleepycat.je.Database;
-import com.sleepycat.je.DatabaseConfig;
-import com.sleepycat.je.DatabaseEntry;
 import com.sleepycat.je.DatabaseException;
-import com.sleepycat.je.Environment;
-import com.sleepycat.je.LockMode;
-import com.sleepycat.je.OperationStatus;
 
 public class TimeSeriesDatabase {
     private final Log log = LogFactory.getLog(TimeSeriesDatabase.class);
@@ -43,9 +44,61 @@ public class TimeSeriesDatabase {
     // We assume that any data for that MTU prior to that time is properly caught-up at all resolutions.
     private static final int MAX_RECHECK = 86400 + 7200;
 
-    private static DatabaseConfig ALLOW_CREATE_CONFIG = null; // set once
+    // In block storage mode, each record holds up to this many entries for one MTU,
+    // but spans no more than MAX_BLOCK_SPAN seconds
+    private static final int BLOCK_ENTRIES = 3600;
+    private static final int MAX_BLOCK_SPAN = 86400 * 30;
+    // Blocks kept in memory for writing; older ones are written out and dropped when this is exceeded
+    private static final int MAX_OPEN_BLOCKS = 256;
+    // In a batch put, the cursor steps forward at most this many records before seeking instead
+    private static final int MAX_CURSOR_STEPS = 16;
+    // Display MTUs are at most 0x3F + actualMtus
+    private static final int MAX_DISPLAY_MTUS = 128;
+    // Cursors kept open for reuse by the readers of each thread
+    private static final int CURSOR_POOL_SIZE = 8;
+    // Borrows between checks for the cursor pools of threads that have ended
+    private static final int CURSOR_POOL_SWEEP_INTERVAL = 256;
 
-    private Database database; // set once
+    // the cursors kept for one thread
+    private static class CursorPool {
+        final WeakReference<Thread> owner;
+        final ArrayDeque<StoreCursor> cursors = new ArrayDeque<StoreCursor>();
+        
+        CursorPool(Thread owner) {
+            this.owner = new WeakReference<Thread>(owner);
+        }
+        
+        boolean isAbandoned() {
+            Thread thread = owner.get();
+            return thread==null || !thread.isAlive();
+        }
+        
+        void close() {
+            for(StoreCursor cursor : cursors) {
+                try { cursor.close(); } catch (Exception e) { e.printStackTrace(); }
+            }
+            cursors.clear();
+        }
+    }
+
+    private final Store store;
+    // a pool per thread, as JE cursors without transactions belong to the thread that opened them; 
+    // all guarded by cursorPools, which is kept for closing them, and those of threads gone
+    private final List<CursorPool> cursorPools = new ArrayList<CursorPool>();
+    private final ThreadLocal<CursorPool> cursorPool = new ThreadLocal<CursorPool>() {
+        @Override
+        protected CursorPool initialValue() {
+            CursorPool pool = new CursorPool(Thread.currentThread());
+            synchronized(cursorPools) {
+                closeAbandonedCursorPools();
+                cursorPools.add(pool);
+            }
+            return pool;
+        }
+    };
+    private boolean cursorPoolClosed;
+    // guarded by cursorPools; counts down borrows to the next check for pools of threads gone
+    private int borrowsUntilSweep = CURSOR_POOL_SWEEP_INTERVAL;
 
     private final int timeZoneRawOffset;
     
@@ -54,10 +107,30 @@ public class TimeSeriesDatabase {
     
     private final int actualMtus;
 
+    // null for record storage
+    private final BlockCodec codec;
+    private final boolean blocks;
+    // record storage only: keys are (mtu, timestamp), so that one channel's entries are together
+    private final boolean mtuMajor;
+    // null if the store is not partitioned
+    private final Partitioning partitioning;
+    public final int blockSpan;
+    // In block storage mode, blocks being written, keyed by blockKey.  
+    // These are newer than what is in the database until flushed.
+    private final TreeMap<Long,SampleBlock> openBlocks = new TreeMap<Long,SampleBlock>();
+    // In record storage mode, for encoding on each writing thread
+    private final ThreadLocal<RecordCodec> recordCodecs = new ThreadLocal<RecordCodec>() {
+        @Override
+        protected RecordCodec initialValue() {
+            return new RecordCodec(mtuMajor);
+        }
+    };
+
     // start[mtu] is the next entry that the database will get;
     // sum[mtu] and count[mtu] are accumulated to find the average.
     // maxForMTU[mtu] is max processed timestamp for MTU.  Always between maxStoredTimestamp and start
     // These are not relevant for resolution=1 (except secondsDb.maxForMTU used in Main.openDatabases)
+    // In rollups fed by a finer rollup, maxForMTU is the end of the latest bucket processed
     private int[] start;
     private int[] sum;
     private int[] sumVolts;
@@ -66,6 +139,18 @@ public class TimeSeriesDatabase {
     private int[] countVolts;
     private int[] countVA;
     public int[] maxForMTU;
+    // for writing averages
+    private final Sample average = new Sample();
+    // guards the rollup state above, pendingCheckpoint and resetFrom
+    private final Object rollupLock = new Object();
+    // taken before a sync, written to the metadata once the sync has made its rollups durable
+    private Checkpoint pendingCheckpoint;
+    // resetFrom[mtu] is the earliest change, awaiting resetForNewData or repair, that checkpoints must not get past; or 0
+    private int[] resetFrom;
+    private boolean resumed;
+
+    // entries before this are being deleted by retention; the servlet looks for them in coarser databases
+    public volatile int retentionCutoff;
 
     //  public static long longOfBytes(byte[] buf, int offset) {
     //          long res = 0;
@@ -108,45 +193,34 @@ public class TimeSeriesDatabase {
         return res;
     }
 
-    public static Integer powerOfData(byte[] buf) {
-        if(buf.length<=4) return Integer.valueOf(intOfVariableBytes(buf,0,buf.length));
-        int sizeOfPower = buf[0]/25;
-        if(sizeOfPower==0) return null;
-        return Integer.valueOf(intOfVariableBytes(buf,1,sizeOfPower));
+    // a new key; see RecordCodec.key for a reused one
+    private byte[] keyBytes(int timestamp, byte mtu) {
+        byte[] buf = new byte[RecordCodec.KEY_SIZE];
+        RecordCodec.writeKey(buf, timestamp, getKeyMtu(mtu), mtuMajor);
+        return buf;
     }
-    
-    public static Integer voltageOfData(byte[] buf) {
-        if(buf.length<=4) return null;
-        int sizeOfPower = buf[0]/25;
-        int sizeOfVoltage = (buf[0] - 25*sizeOfPower)/5;
-        if(sizeOfVoltage==0) return null;
-        else return Integer.valueOf(intOfVariableBytes(buf,1+sizeOfPower,sizeOfVoltage));
-    }
-
-    public static Integer voltAmperesOfData(byte[] buf) {
-        if(buf.length<=4) return null;
-        int sizeOfPower = buf[0]/25;
-        int sizeOfVoltage = (buf[0] - 25*sizeOfPower)/5;
-        int sizeOfVoltAmperes = buf[0] - 25*sizeOfPower - 5*sizeOfVoltage;
-        if(sizeOfVoltAmperes==0) return null;
-        else return Integer.valueOf(intOfVariableBytes(buf,1+sizeOfPower + sizeOfVoltage,sizeOfVoltAmperes));
-    }
-
-    // 4-byte timestamp, 1-byte mtu
-    private DatabaseEntry keyEntry(int timestamp, byte mtu) {
-        byte[] buf = new byte[5];
-        buf[0] = (byte) ((timestamp >> 24) & 0xFF);
-        buf[1] = (byte) ((timestamp >> 16) & 0xFF);
-        buf[2] = (byte) ((timestamp >> 8) & 0xFF);
-        buf[3] = (byte) (timestamp & 0xFF);
+
+    /** Key orders, chosen when a database is created */
+    public static final String TIME_MAJOR = "time";
+    public static final String MTU_MAJOR = "mtu";
+
+    private byte getKeyMtu(byte mtu) {
         if (mtu < actualMtus) {
-            buf[4] = mtu;
+            return mtu;
         } else {
-            buf[4] = (byte)(0x40 | (mtu - actualMtus));
+            return (byte)(0x40 | (mtu - actualMtus));
         }
-        return new DatabaseEntry(buf);
     }
     
+    private int blockStartOf(int timestamp) {
+        return timestamp - timestamp % blockSpan;
+    }
+
+    // key for openBlocks; sorts the same as the database key
+    private static long blockKey(int blockStart, byte keyMtu) {
+        return ((long)blockStart << 8) | (keyMtu & 0xFF);
+    }
+
     private byte getDisplayMtu(byte mtu) {
         if ((mtu & 0x40) != 0) {
             return (byte)((mtu & 0x3F) + actualMtus);
@@ -155,72 +229,101 @@ public class TimeSeriesDatabase {
         }
     }
     
-    private static int sizeOfInteger(Integer i) {
-        if(i==null) return 0;
-        int ii = i.intValue();
-        if(ii<=127 && ii>=-128) return 1;
-        else if(ii<=32767 && ii>=-32768) return 2;
-        else if(ii<=8388607 && ii>=-8388608) return 3;
-        else return 4;
-    }
-    
-    private static byte byteOfInteger(int i, int pos) {
-        if(pos==1) return (byte)(i & 0xFF);
-        if(pos==2) return (byte)((i >> 8) & 0xFF);
-        if(pos==3) return (byte)((i >> 16) & 0xFF);
-        if(pos==4) return (byte)((i >> 24) & 0xFF);
-        throw new AssertionError();
-    }
-    
-    // if size<=4, all is power (and empty means 0)
-    // otherwise first byte denotes sizes of power, voltage, kva (as base 5); for each, empty means missing
-    private static DatabaseEntry dataEntry(Integer powerObj,Integer voltageObj,Integer voltAmperesObj) {
-        int power = powerObj==null?0:powerObj.intValue();
-        int voltage = voltageObj==null?0:voltageObj.intValue();
-        int voltAmperes = voltAmperesObj==null?0:voltAmperesObj.intValue();
-
-        int sizeOfPower = sizeOfInteger(powerObj);
-        int sizeOfVoltage = sizeOfInteger(voltageObj);
-        int sizeOfVoltAmperes = sizeOfInteger(voltAmperesObj);
-
-        byte[] buf;
-        int first;
-        if(voltageObj==null && voltAmperesObj==null && powerObj!=null) {
-            first = 0;
-            if(powerObj.intValue()==0) buf = new byte[0];
-            else buf = new byte[sizeOfPower];
+    /**
+     * The rollup state of a database at one moment: for each MTU, start, maxForMTU, and the partial sums and counts.
+     * Kept in the metadata, so that a restart resumes exactly where the rollups were, without scanning.
+     */
+    public static class Checkpoint {
+        final int[] start;
+        final int[] maxForMTU;
+        final int[] sum;
+        final int[] count;
+        final int[] sumVolts;
+        final int[] countVolts;
+        final int[] sumVA;
+        final int[] countVA;
+
+        private Checkpoint(int mtus) {
+            start = new int[mtus];
+            maxForMTU = new int[mtus];
+            sum = new int[mtus];
+            count = new int[mtus];
+            sumVolts = new int[mtus];
+            countVolts = new int[mtus];
+            sumVA = new int[mtus];
+            countVA = new int[mtus];
         }
-        else {
-            first = 1;
-            buf = new byte[Math.max(5, 1 + sizeOfPower + sizeOfVoltage + sizeOfVoltAmperes)];
-            buf[0] = (byte)(25*sizeOfPower + 5*sizeOfVoltage + sizeOfVoltAmperes);
+
+        private int[][] fields() {
+            return new int[][] { start, maxForMTU, sum, count, sumVolts, countVolts, sumVA, countVA };
+        }
+
+        // for each MTU, the fields separated by commas; MTUs separated by semicolons
+        public String encode() {
+            StringBuilder sb = new StringBuilder();
+            int[][] fields = fields();
+            for(int mtu = 0; mtu < start.length; mtu++) {
+                if(mtu > 0) sb.append(';');
+                for(int f = 0; f < fields.length; f++) {
+                    if(f > 0) sb.append(',');
+                    sb.append(fields[f][mtu]);
+                }
+            }
+            return sb.toString();
         }
 
-        for(int i = first; i<buf.length; i++) {
-            if(i-first < sizeOfPower) buf[i] = byteOfInteger(power, sizeOfPower - (i-first));
-            else if(i-first - sizeOfPower < sizeOfVoltage) buf[i] = byteOfInteger(voltage, sizeOfVoltage - (i - first - sizeOfPower));
-            else if(i-first - sizeOfPower - sizeOfVoltage < sizeOfVoltAmperes) buf[i] = byteOfInteger(voltAmperes, sizeOfVoltAmperes - (i - first - sizeOfPower - sizeOfVoltage));
-            else break;
+        /** Returns null if s is null, malformed, or for a different number of MTUs */
+        public static Checkpoint decode(String s, int mtus) {
+            if(s==null) return null;
+            String[] perMtu = s.split(";");
+            if(perMtu.length!=mtus) return null;
+            Checkpoint res = new Checkpoint(mtus);
+            int[][] fields = res.fields();
+            try {
+                for(int mtu = 0; mtu < mtus; mtu++) {
+                    String[] values = perMtu[mtu].split(",");
+                    if(values.length!=fields.length) return null;
+                    for(int f = 0; f < fields.length; f++) {
+                        fields[f][mtu] = Integer.parseInt(values[f]);
+                    }
+                }
+            }
+            catch(NumberFormatException e) {
+                return null;
+            }
+            return res;
+        }
+
+        // the latest timestamp processed for any MTU
+        int latest() {
+            int res = 0;
+            for(int max : maxForMTU) {
+                if(max > res) res = max;
+            }
+            return res;
         }
-        return new DatabaseEntry(buf);
     }
 
-    public TimeSeriesDatabase(Environment environment, boolean readOnly, String name, byte actualMtus, byte mtus, int resolution, String resolutionString, int timeZoneRawOffset) {
+    /** 
+     * mtuMajor, only for record storage, orders keys by mtu then timestamp; 
+     * a partitioned store of such keys must be a PartitionedStore with that partitioning.
+     * For a rollup database, checkpoint (if not null) is the state to resume from.
+     * For the seconds database, it is the first rollup's, and bounds the search for the latest entry for each MTU.
+     */
+    public TimeSeriesDatabase(Store store, byte actualMtus, byte mtus, int resolution, String resolutionString, int timeZoneRawOffset, BlockCodec codec, boolean mtuMajor, Partitioning partitioning,
+            Checkpoint checkpoint) {
+        if(mtuMajor && codec!=null) throw new IllegalArgumentException("MTU-major keys are only for record storage");
+        this.store = store;
+        this.mtuMajor = mtuMajor;
+        this.partitioning = partitioning;
         this.timeZoneRawOffset = timeZoneRawOffset;
         this.resolution = resolution;
         this.resolutionString = resolutionString;
         this.actualMtus = actualMtus;
+        this.codec = codec;
+        this.blocks = codec!=null;
+        this.blockSpan = Math.min(BLOCK_ENTRIES * resolution, MAX_BLOCK_SPAN);
         try {
-            synchronized(TimeSeriesDatabase.class) {
-                if(ALLOW_CREATE_CONFIG==null) {
-                    DatabaseConfig config = new DatabaseConfig();
-                    config.setAllowCreate(true);
-                    config.setReadOnly(readOnly);
-                    ALLOW_CREATE_CONFIG = config;
-                }
-            }
-            database = environment.openDatabase(null, name, ALLOW_CREATE_CONFIG);
-            
             maxForMTU = new int[mtus];
             start = new int[mtus];
             sum = new int[mtus];
@@ -229,21 +332,38 @@ public class TimeSeriesDatabase {
             count = new int[mtus];
             countVolts = new int[mtus];
             countVA = new int[mtus];
+            resetFrom = new int[mtus];
 
-            {
-                DatabaseEntry key = new DatabaseEntry();
-                DatabaseEntry data = new DatabaseEntry();
-                Cursor cursor = null;
+            if(checkpoint!=null && checkpoint.start.length!=mtus) checkpoint = null;
+            if(checkpoint!=null && resolution > 1) {
+                restore(checkpoint);
+                resumed = true;
+                log.trace("   resuming from checkpoint");
+            }
+            else {
+                StoreCursor cursor = null;
+                SampleBlock block = blocks ? new SampleBlock(0,resolution) : null;
                 int latestTimestamp = 0;
+                // entries before this for any MTU have been seen by the first rollup
+                int knownUpTo = checkpoint==null ? 0 : checkpoint.latest();
                 try {
-                    cursor = database.openCursor(null, CursorConfig.READ_UNCOMMITTED);
-                    OperationStatus status = cursor.getLast(key, data, LockMode.READ_UNCOMMITTED);
+                    cursor = store.openCursor();
+                    boolean found = !mtuMajor && cursor.last();
+                    if(mtuMajor) latestTimestamp = findStartsByMtu(cursor, mtus);
                     int done = 0;
                     int timestamp = 0;
-                    while(status == OperationStatus.SUCCESS && done < mtus && timestamp > (latestTimestamp - MAX_RECHECK)) {
-                        byte[] buf = key.getData();
+                    while(found && done < mtus && (latestTimestamp==0 || timestamp > Math.max(latestTimestamp - MAX_RECHECK, knownUpTo))) {
+                        byte[] buf = cursor.key();
                         byte mtu = getDisplayMtu(buf[4]);
                         timestamp = intOfBytes(buf,0);
+                        if(blocks) {
+                            block.decode(cursor.value(),timestamp);
+                            if(block.size==0) {
+                                found = cursor.prev();
+                                continue;
+                            }
+                            timestamp = block.lastTimestamp();
+                        }
                         if(latestTimestamp==0) latestTimestamp = timestamp;
                         if(mtu < mtus && start[mtu]==0) {
                             start[mtu] = timestamp + resolution;
@@ -251,14 +371,19 @@ public class TimeSeriesDatabase {
                             log.trace("   starting at " + Util.dateString(start[mtu]) + " for MTU " + mtu);
                             done++;
                         }
-                        status = cursor.getPrev(key, data, LockMode.READ_UNCOMMITTED);
+                        found = cursor.prev();
                     }
                 }
                 finally {
                     if(cursor!=null) try { cursor.close(); } catch (Throwable t) {}
                 }
                 for(byte mtu = 0; mtu < mtus; mtu++) {
-                    if(start[mtu]==0) {
+                    if(start[mtu]==0 && checkpoint!=null) {
+                        maxForMTU[mtu] = checkpoint.maxForMTU[mtu];
+                        start[mtu] = maxForMTU[mtu] + 1;
+                        log.trace("   starting at " + Util.dateString(start[mtu]) + " from checkpoint for MTU " + mtu);
+                    }
+                    else if(start[mtu]==0) {
                         start[mtu] = ((latestTimestamp - MAX_RECHECK + timeZoneRawOffset)/resolution)*resolution - timeZoneRawOffset;
                         maxForMTU[mtu] = start[mtu] - 1;
                         log.trace("   starting at " + Util.dateString(start[mtu]) + " for not-found MTU " + mtu);
@@ -273,112 +398,546 @@ public class TimeSeriesDatabase {
         }
     }
 
+    // For mtu-major keys, sets start and maxForMTU for each MTU with entries near the latest; returns the latest timestamp
+    private int findStartsByMtu(StoreCursor cursor, byte mtus) throws DatabaseException {
+        int[] last = new int[mtus];
+        int latestTimestamp = 0;
+        for(byte mtu = 0; mtu < mtus; mtu++) {
+            last[mtu] = lastTimestamp(cursor, mtu, 0, Integer.MAX_VALUE - 1);
+            if(last[mtu] > latestTimestamp) latestTimestamp = last[mtu];
+        }
+        for(byte mtu = 0; mtu < mtus; mtu++) {
+            if(last[mtu] < 0 || last[mtu] <= latestTimestamp - MAX_RECHECK) continue;
+            start[mtu] = last[mtu] + resolution;
+            maxForMTU[mtu] = start[mtu] - 1;
+            log.trace("   starting at " + Util.dateString(start[mtu]) + " for MTU " + mtu);
+        }
+        return latestTimestamp;
+    }
+
+    // the start of the partition after the one holding the timestamp
+    private int windowEnd(int timestamp) {
+        if(partitioning==null) return Integer.MAX_VALUE;
+        return partitioning.endOf(partitioning.startOf(timestamp));
+    }
+
+    // For mtu-major keys: positions the cursor at the first entry for the MTU at or after timestamp;
+    // returns its timestamp, or -1 if there is none up to end.  Seeks once per partition passed over.
+    private int seekChannel(StoreCursor cursor, byte mtu, int timestamp, int end) throws DatabaseException {
+        byte keyMtu = getKeyMtu(mtu);
+        while(timestamp <= end) {
+            if(!cursor.seek(keyBytes(timestamp, mtu))) return -1;
+            byte[] key = cursor.key();
+            int found = intOfBytes(key, 1);
+            int windowEnd = windowEnd(timestamp);
+            if(key[0]==keyMtu && found < windowEnd) return found <= end ? found : -1;
+            // nothing more for the MTU in this partition; the cursor may have gone on to a later one
+            if(partitioning==null || windowEnd <= timestamp) return -1;
+            timestamp = Math.max(windowEnd, partitioning.startOf(found));
+        }
+        return -1;
+    }
+
+    // For mtu-major keys: the last timestamp for the MTU from start to end, or -1; by binary search on seeks
+    private int lastTimestamp(StoreCursor cursor, byte mtu, int start, int end) throws DatabaseException {
+        int res = seekChannel(cursor, mtu, start, end);
+        if(res < 0) return -1;
+        int high = end;
+        while(res < high) {
+            int mid = res + 1 + (high - res - 1) / 2;
+            int found = seekChannel(cursor, mtu, mid, high);
+            if(found < 0) high = mid - 1;
+            else res = found;
+        }
+        return res;
+    }
+
+    /** Returns null for record storage */
+    public BlockCodec getCodec() {
+        return codec;
+    }
+
     public void close() {
-        if(database!=null) try { database.close(); } catch(Exception e) { e.printStackTrace(); }
+        try { flush(); } catch(Exception e) { e.printStackTrace(); }
+        closeCursorPool();
+        try { store.close(); } catch(Exception e) { e.printStackTrace(); }
+    }
+
+    private void closeCursorPool() {
+        synchronized(cursorPools) {
+            cursorPoolClosed = true;
+            for(CursorPool pool : cursorPools) {
+                pool.close();
+            }
+        }
+    }
+
+    // closes and drops the pools of threads that have ended; call while synchronized on cursorPools
+    private void closeAbandonedCursorPools() {
+        Iterator<CursorPool> iter = cursorPools.iterator();
+        while(iter.hasNext()) {
+            CursorPool pool = iter.next();
+            if(!pool.isAbandoned()) continue;
+            pool.close();
+            iter.remove();
+        }
+    }
+
+    /** 
+     * Closes the cursors kept for the current thread; for threads that end while the database stays open.
+     * Pools of threads that end without are closed too, but only when found.
+     */
+    public void closeThreadCursors() {
+        CursorPool pool = cursorPool.get();
+        cursorPool.remove();
+        synchronized(cursorPools) {
+            pool.close();
+            cursorPools.remove(pool);
+        }
+    }
+
+    /** A cursor from the pool, or a new one; give it back with {@link #releaseCursor} */
+    private StoreCursor borrowCursor() throws DatabaseException {
+        CursorPool pool = cursorPool.get();
+        synchronized(cursorPools) {
+            if(--borrowsUntilSweep <= 0) {
+                borrowsUntilSweep = CURSOR_POOL_SWEEP_INTERVAL;
+                closeAbandonedCursorPools();
+            }
+            if(!pool.cursors.isEmpty()) return pool.cursors.pop();
+        }
+        return store.openCursor();
+    }
+
+    private void releaseCursor(StoreCursor cursor) {
+        cursor.reset();
+        CursorPool pool = cursorPool.get();
+        synchronized(cursorPools) {
+            if(!cursorPoolClosed && pool.cursors.size() < CURSOR_POOL_SIZE) {
+                pool.cursors.push(cursor);
+                return;
+            }
+        }
+        try { cursor.close(); } catch (Exception e) { e.printStackTrace(); }
+    }
+
+    public void put(int timestamp, byte mtu, Integer power, Integer voltage, Integer voltAmperes) throws DatabaseException {
+        put(new Triple(timestamp, mtu, power, voltage, voltAmperes));
     }
 
-    public void put(Cursor cursor,int timestamp, byte mtu, Integer power, Integer voltage, Integer voltAmperes) throws DatabaseException {
-        if(power==null && voltage==null && voltAmperes==null) return;
-        if (timestamp < 1230000000 || timestamp > 1894000000) return;
-        OperationStatus status = cursor.put(keyEntry(timestamp, mtu), dataEntry(power,voltage, voltAmperes));
-        if(status!=OperationStatus.SUCCESS) {
-            throw new DatabaseException("Unexpected status " + status) {};
+    public void put(Triple triple) throws DatabaseException {
+        Sample sample = new Sample();
+        sample.set(triple);
+        put(sample);
+    }
+
+    /** Stores the sample, replacing any existing entry */
+    public void put(Sample sample) throws DatabaseException {
+        if(!isStorable(sample)) return;
+        if(blocks) {
+            putInBlock(sample, true);
+            return;
         }
+        RecordCodec recordCodec = recordCodecs.get();
+        store.put(recordCodec.key(sample.timestamp, getKeyMtu(sample.mtu)), recordCodec.encode(sample));
     }
 
     public void delete(int timestamp, byte mtu) throws DatabaseException {
-        OperationStatus status = database.delete(null, keyEntry(timestamp, mtu));
-        if(status!=OperationStatus.SUCCESS) {
-            throw new DatabaseException("Unexpected status " + status) {};
+        if(blocks) {
+            synchronized(openBlocks) {
+                SampleBlock block = openBlock(blockStartOf(timestamp), mtu);
+                if(!block.remove(timestamp)) {
+                    throw new DatabaseException("Not found: " + timestamp + " for MTU " + mtu) {};
+                }
+            }
+            return;
+        }
+        if(!store.delete(keyBytes(timestamp, mtu))) {
+            throw new DatabaseException("Not found: " + timestamp + " for MTU " + mtu) {};
         }
     }
 
-    public Cursor openCursor() throws DatabaseException {
-        return database.openCursor(null, CursorConfig.READ_UNCOMMITTED);
+    public boolean putIfChanged(Triple triple) throws DatabaseException {
+        Sample sample = new Sample();
+        sample.set(triple);
+        return putIfChanged(sample);
     }
-    
-    public boolean putIfChanged(Cursor cursor, Triple triple) throws DatabaseException {
-        if(triple.power==null && triple.voltage==null && triple.voltAmperes==null) return false;
-        if (triple.timestamp < 1230000000 || triple.timestamp > 1894000000) return false;
-        OperationStatus status;
-        DatabaseEntry key = keyEntry(triple.timestamp,triple.mtu);
-        DatabaseEntry data = dataEntry(triple.power,triple.voltage,triple.voltAmperes);
-        status = cursor.putNoOverwrite(key, data);
-        if(status==OperationStatus.SUCCESS) {
+
+    /** Stores the present values of the sample over any existing entry; returns whether anything changed */
+    public boolean putIfChanged(Sample sample) throws DatabaseException {
+        if(!isStorable(sample)) return false;
+        if(blocks) {
+            return putInBlock(sample, false);
+        }
+        RecordCodec recordCodec = recordCodecs.get();
+        byte[] key = recordCodec.key(sample.timestamp,getKeyMtu(sample.mtu));
+        if(store.putNoOverwrite(key, recordCodec.encode(sample))) {
             return true;
         }
-        if(status!=OperationStatus.KEYEXIST) {
-            throw new DatabaseException("Unexpected status " + status) {};
+
+        byte[] buf = store.get(key);
+        if(buf==null) {
+            throw new DatabaseException("Not found: " + sample.timestamp + " for MTU " + sample.mtu) {};
         }
+        return mergeRecord(recordCodec, key, buf, sample, new Sample());
+    }
+
+    static boolean isStorable(Sample sample) {
+        if(sample.present==0) return false;
+        if (sample.timestamp < 1230000000 || sample.timestamp > 1894000000) return false;
+        return true;
+    }
+
+    // stores the present values of sample over the existing record buf, if any differ; existing is scratch
+    private boolean mergeRecord(RecordCodec recordCodec, byte[] key, byte[] buf, Sample sample, Sample existing) throws DatabaseException {
+        RecordCodec.decode(buf, existing);
+        if(!existing.merge(sample)) return false;
+        store.put(key, recordCodec.encode(existing));
+        return true;
+    }
 
-        DatabaseEntry readDataEntry = new DatabaseEntry();
-        status = cursor.getSearchKey(key,readDataEntry,LockMode.READ_UNCOMMITTED);
-        if(status!=OperationStatus.SUCCESS) {
-            throw new DatabaseException("Unexpected status " + status) {};
+    /** The range of timestamps changed by a batch put */
+    public static class Changes {
+        public int min = Integer.MAX_VALUE;
+        public int max = 0;
+        public int count = 0;
+
+        void add(int timestamp) {
+            count++;
+            if(timestamp < min) min = timestamp;
+            if(timestamp > max) max = timestamp;
         }
-        byte[] buf = readDataEntry.getData();
-        Integer oldPower = powerOfData(buf);
-        Integer oldVoltage = voltageOfData(buf);
-        Integer oldVoltAmperes = voltAmperesOfData(buf);
-        if((triple.power==null || triple.power.equals(oldPower)) && 
-                (triple.voltage==null || triple.voltage.equals(oldVoltage)) && 
-                (triple.voltAmperes==null || triple.voltAmperes.equals(oldVoltAmperes))) {
-            return false;
+    }
+
+    /** As {@link #putIfChanged(SampleBatch, List)} */
+    public Changes putIfChanged(List<Triple> triples, List<Triple.Key> changedKeys) throws DatabaseException {
+        SampleBatch batch = new SampleBatch(triples.size());
+        for(Triple triple : triples) {
+            batch.add(triple);
         }
+        return putIfChanged(batch, changedKeys);
+    }
+
+    /**
+     * As putIfChanged for each of the samples, in any order, but walking the existing entries once
+     * instead of looking up each one.  Sorts the batch.  If changedKeys is not null, the key of each 
+     * changed entry is added to it.  Returns null if nothing changed.
+     */
+    public Changes putIfChanged(SampleBatch batch, List<Triple.Key> changedKeys) throws DatabaseException {
+        if(batch.isEmpty()) return null;
+        // for mtu-major keys, one span holding every timestamp sorts by mtu then timestamp
+        batch.sort(blocks ? blockSpan : mtuMajor ? Integer.MAX_VALUE : 0);
+        Changes changes = new Changes();
+        if(blocks) putInBlocks(batch, changes, changedKeys);
+        else putRecords(batch, changes, changedKeys);
+        return changes.max==0 ? null : changes;
+    }
 
-        Integer newPower = triple.power==null ? oldPower : triple.power;
-        Integer newVoltage = triple.voltage==null ? oldVoltage : triple.voltage;
-        Integer newVoltAmperes = triple.voltAmperes==null ? oldVoltAmperes : triple.voltAmperes;
-        data = dataEntry(newPower,newVoltage,newVoltAmperes);
-        status = cursor.put(key, data);
-        if(status!=OperationStatus.SUCCESS) {
-            throw new DatabaseException("Unexpected status " + status) {};
+    private void putRecords(SampleBatch batch, Changes changes, List<Triple.Key> changedKeys) throws DatabaseException {
+        RecordCodec recordCodec = recordCodecs.get();
+        Sample sample = new Sample();
+        Sample existing = new Sample();
+        StoreCursor cursor = null;
+        try {
+            cursor = store.openCursor();
+            // the key under the cursor, or null if past the end
+            byte[] current = null;
+            boolean first = true;
+            int previousTimestamp = 0;
+            byte previousMtu = 0;
+            for(int i = 0; i < batch.size(); i++) {
+                batch.get(i, sample);
+                if(!isStorable(sample)) continue;
+                boolean changed;
+                if(!first && sample.timestamp==previousTimestamp && sample.mtu==previousMtu) {
+                    // the cursor does not see what we just wrote
+                    changed = putIfChanged(sample);
+                }
+                else {
+                    byte[] key = recordCodec.key(sample.timestamp, getKeyMtu(sample.mtu));
+                    if(first) {
+                        current = cursor.seek(key) ? cursor.key() : null;
+                        first = false;
+                    }
+                    else {
+                        int steps = 0;
+                        while(current!=null && ByteArrayComparator.INSTANCE.compare(current, key) < 0) {
+                            if(++steps > MAX_CURSOR_STEPS) {
+                                current = cursor.seek(key) ? cursor.key() : null;
+                                break;
+                            }
+                            current = cursor.next() ? cursor.key() : null;
+                        }
+                    }
+                    if(current!=null && ByteArrayComparator.INSTANCE.compare(current, key)==0) {
+                        changed = mergeRecord(recordCodec, key, cursor.value(), sample, existing);
+                    }
+                    else {
+                        // if not, written by another thread since the cursor passed
+                        changed = store.putNoOverwrite(key, recordCodec.encode(sample)) || putIfChanged(sample);
+                    }
+                }
+                if(changed) {
+                    changes.add(sample.timestamp);
+                    if(changedKeys!=null) changedKeys.add(new Triple.Key(sample.timestamp, sample.mtu));
+                }
+                previousTimestamp = sample.timestamp;
+                previousMtu = sample.mtu;
+            }
+        }
+        finally {
+            if(cursor!=null) try { cursor.close(); } catch (Throwable t) {}
+        }
+    }
+
+    private void putInBlocks(SampleBatch batch, Changes changes, List<Triple.Key> changedKeys) throws DatabaseException {
+        Sample sample = new Sample();
+        synchronized(openBlocks) {
+            SampleBlock block = null;
+            byte blockMtu = 0;
+            for(int i = 0; i < batch.size(); i++) {
+                batch.get(i, sample);
+                if(!isStorable(sample)) continue;
+                int blockStart = blockStartOf(sample.timestamp);
+                // opening a block may evict others, but never the one just opened
+                if(block==null || block.blockStart!=blockStart || blockMtu!=sample.mtu) {
+                    block = openBlock(blockStart, sample.mtu);
+                    blockMtu = sample.mtu;
+                }
+                if(block.merge(sample, false)) {
+                    changes.add(sample.timestamp);
+                    if(changedKeys!=null) changedKeys.add(new Triple.Key(sample.timestamp, sample.mtu));
+                }
+            }
+        }
+    }
+
+    private boolean putInBlock(Sample sample, boolean overwrite) throws DatabaseException {
+        synchronized(openBlocks) {
+            SampleBlock block = openBlock(blockStartOf(sample.timestamp), sample.mtu);
+            return block.merge(sample, overwrite);
+        }
+    }
+
+    // call while synchronized on openBlocks
+    private SampleBlock openBlock(int blockStart, byte mtu) throws DatabaseException {
+        byte[] key = keyBytes(blockStart, mtu);
+        Long blockKey = Long.valueOf(blockKey(blockStart, key[4]));
+        SampleBlock block = openBlocks.get(blockKey);
+        if(block!=null) return block;
+        if(openBlocks.size() >= MAX_OPEN_BLOCKS) {
+            writeBlocks(true);
+        }
+        block = new SampleBlock(blockStart,resolution);
+        byte[] data = store.get(key);
+        if(data!=null) block.decode(data, blockStart);
+        openBlocks.put(blockKey, block);
+        return block;
+    }
+
+    // call while synchronized on openBlocks
+    private void writeBlocks(boolean evict) throws DatabaseException {
+        if(openBlocks.isEmpty()) return;
+        int newest = (int)(openBlocks.lastKey().longValue() >> 8);
+        Iterator<Map.Entry<Long,SampleBlock>> iter = openBlocks.entrySet().iterator();
+        while(iter.hasNext()) {
+            Map.Entry<Long,SampleBlock> entry = iter.next();
+            SampleBlock block = entry.getValue();
+            if(block.dirty) {
+                byte[] buf = new byte[5];
+                long blockKey = entry.getKey().longValue();
+                buf[0] = (byte)(blockKey >> 32);
+                buf[1] = (byte)(blockKey >> 24);
+                buf[2] = (byte)(blockKey >> 16);
+                buf[3] = (byte)(blockKey >> 8);
+                buf[4] = (byte)blockKey;
+                if(block.size==0) store.delete(buf);
+                else store.put(buf, block.encode(codec));
+                block.dirty = false;
+            }
+            // keep the current and previous blocks, which are still being written
+            if(evict && block.blockStart < newest - blockSpan) iter.remove();
+        }
+    }
+
+    /** In block storage mode, writes out all changed blocks.  The data is visible to readers either way. */
+    public void flush() throws DatabaseException {
+        if(!blocks) return;
+        synchronized(openBlocks) {
+            writeBlocks(true);
         }
-        return true;
     }
 
     public int minimumAfter(int startTime) throws DatabaseException {
         ReadIterator iter = read(startTime);
-        if(!iter.hasNext()) return 0;
-        int res = iter.next().timestamp;
+        int res = iter.advance() ? iter.timestamp() : 0;
         iter.close();
         return res;
     }
     
     public ReadIterator read(int startDate, int endDate) throws DatabaseException {
-        return new ReadIterator(startDate<0?0:startDate,endDate);
+        return read(startDate,endDate,null);
+    }
+
+    /** 
+     * Reads the entries for the MTUs with mtus[mtu] true, or all if mtus is null.  
+     * Other MTUs are skipped by seeking past their keys, without reading or decoding them.
+     */
+    public ReadIterator read(int startDate, int endDate, boolean[] mtus) throws DatabaseException {
+        if(startDate<0) startDate = 0;
+        if(mtuMajor) {
+            List<ReadIterator> channels = new ArrayList<ReadIterator>();
+            for(byte mtu = 0; mtu < maxForMTU.length; mtu++) {
+                if(mtus==null || (mtu < mtus.length && mtus[mtu])) channels.add(new ChannelReadIterator(mtu,startDate,endDate));
+            }
+            if(channels.size()==1) return channels.get(0);
+            return new MergedReadIterator(channels.toArray(new ReadIterator[channels.size()]));
+        }
+        byte[] keyMtus = null;
+        if(mtus!=null) {
+            int n = 0;
+            byte[] wanted = new byte[MAX_DISPLAY_MTUS];
+            for(byte mtu = 0; mtu < mtus.length && mtu < MAX_DISPLAY_MTUS; mtu++) {
+                // in display order, which is key order
+                if(mtus[mtu]) wanted[n++] = getKeyMtu(mtu);
+            }
+            keyMtus = new byte[n];
+            System.arraycopy(wanted,0,keyMtus,0,n);
+        }
+        if(blocks) return new BlockReadIterator(startDate,endDate,keyMtus);
+        return new RecordReadIterator(startDate,endDate,keyMtus);
+    }
+
+    /** Reads the entries for one MTU */
+    public ReadIterator read(byte mtu, int startDate, int endDate) throws DatabaseException {
+        boolean[] mtus = new boolean[mtu + 1];
+        mtus[mtu] = true;
+        return read(startDate,endDate,mtus);
+    }
+
+    // For time-major keys: moves the cursor on from its key to the first key for one of keyMtus (in order),
+    // seeking within the timestamp and then to the next; seekKey is scratch.  Returns false if there is none.
+    private static boolean skipToKeyMtus(StoreCursor cursor, byte[] keyMtus, byte[] seekKey) throws DatabaseException {
+        if(keyMtus.length==0) return false;
+        while(true) {
+            byte[] key = cursor.key();
+            byte keyMtu = key[4];
+            int i = 0;
+            while(i < keyMtus.length && keyMtus[i] < keyMtu) i++;
+            if(i < keyMtus.length && keyMtus[i]==keyMtu) return true;
+            int timestamp = intOfBytes(key,0);
+            if(i < keyMtus.length) {
+                RecordCodec.writeKey(seekKey, timestamp, keyMtus[i], false);
+            }
+            else {
+                if(timestamp==Integer.MAX_VALUE) return false;
+                RecordCodec.writeKey(seekKey, timestamp + 1, keyMtus[0], false);
+            }
+            if(!cursor.seek(seekKey)) return false;
+        }
     }
 
     public ReadIterator read(int startDate) throws DatabaseException {
-        return new ReadIterator(startDate<0?0:startDate,-1);
+        return read(startDate,-1);
     }
 
-    public class ReadIterator implements Iterator<Triple> {
-        private Cursor readCursor;
-        private DatabaseEntry key;
-        private DatabaseEntry data;
-        private OperationStatus status;
+    /** 
+     * Reads entries in (timestamp, mtu) order.  {@link #advance()} moves to the next entry,
+     * which the getters then read in place, without allocating; the cursor goes back to the database's pool on close.
+     * The Iterator methods return each entry as a new Triple.
+     */
+    public static abstract class ReadIterator implements Iterator<Triple> {
+        // the current entry
+        final Sample current = new Sample();
+
+        public abstract void close();
+
+        /** Moves to the next entry; returns false, and closes, if there is none */
+        public abstract boolean advance();
+
+        public int timestamp() {
+            return current.timestamp;
+        }
+
+        public byte mtu() {
+            return current.mtu;
+        }
+
+        public boolean hasPower() {
+            return current.hasPower();
+        }
+
+        public int power() {
+            return current.power;
+        }
+
+        public boolean hasVoltage() {
+            return current.hasVoltage();
+        }
+
+        public int voltage() {
+            return current.voltage;
+        }
+
+        public boolean hasVoltAmperes() {
+            return current.hasVoltAmperes();
+        }
+
+        public int voltAmperes() {
+            return current.voltAmperes;
+        }
+
+        /** The current entry, valid until the next call to advance */
+        public Sample current() {
+            return current;
+        }
+
+        /** Fills sample with the next entry; returns false if there is none */
+        public boolean next(Sample sample) {
+            if(!advance()) return false;
+            sample.set(current);
+            return true;
+        }
+
+        @Override
+        public Triple next() {
+            if(!advance()) return null;
+            return current.toTriple();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private class RecordReadIterator extends ReadIterator {
+        private StoreCursor readCursor;
+        private boolean found;
         private int end;
         private boolean closed;
+        // null for all
+        private final byte[] keyMtus;
+        private final byte[] seekKey = new byte[RecordCodec.KEY_SIZE];
 
-        public ReadIterator (int start, int end) throws DatabaseException {
+        public RecordReadIterator (int start, int end, byte[] keyMtus) throws DatabaseException {
+            this.keyMtus = keyMtus;
             if(end<0 || end>=start) {
                 this.end = end;
-                readCursor = database.openCursor(null, CursorConfig.READ_UNCOMMITTED);
-                key = keyEntry(start,(byte)0);
-                data = new DatabaseEntry();
-                status = readCursor.getSearchKeyRange(key, data, LockMode.READ_UNCOMMITTED);
+                readCursor = borrowCursor();
+                found = readCursor.seek(keyBytes(start,(byte)0));
                 closeIfNeeded();
             }
             else { closed = true; }
         }
 
-        private void closeIfNeeded() {
-            if(status==OperationStatus.SUCCESS) {
+        private void closeIfNeeded() throws DatabaseException {
+            if(found && keyMtus!=null) found = skipToKeyMtus(readCursor, keyMtus, seekKey);
+            if(found) {
                 if(end>=0) {
-                    byte[] buf = key.getData();
+                    byte[] buf = readCursor.key();
                     if(intOfBytes(buf,0) > end) {
-                        status = null;
+                        found = false;
                         close();
                     }
                 }
@@ -388,101 +947,447 @@ public class TimeSeriesDatabase {
             }
         }
         
+        @Override
         public void close() {
-            if(!closed) try { readCursor.close(); } catch (Exception e) { e.printStackTrace(); }
+            if(!closed) releaseCursor(readCursor);
             closed = true;
         }
 
         @Override
-        public void remove() {
-            throw new UnsupportedOperationException();
+        public boolean hasNext() {
+            return found;
+        }
+
+        @Override
+        public boolean advance() {
+            if(!found) return false;
+            try {
+                byte[] buf = readCursor.key();
+                current.timestamp = intOfBytes(buf,0);
+                current.mtu = getDisplayMtu(buf[4]);
+                RecordCodec.decode(readCursor.value(), current);
+                found = readCursor.next();
+                closeIfNeeded();
+                return true;
+            }
+            catch(DatabaseException e) {
+                e.printStackTrace();
+                found = false;
+                close();
+                return false;
+            }
+        }
+    }
+
+    // For mtu-major keys: the entries of one MTU, seeking past the other MTUs at each partition
+    private class ChannelReadIterator extends ReadIterator {
+        private StoreCursor readCursor;
+        private final byte mtu;
+        private final byte keyMtu;
+        private final int end;
+        private boolean found;
+        // the start of the partition after the cursor's
+        private int windowEnd;
+        private boolean closed;
+
+        ChannelReadIterator(byte mtu, int start, int end) throws DatabaseException {
+            this.mtu = mtu;
+            this.keyMtu = getKeyMtu(mtu);
+            this.end = end<0 ? Integer.MAX_VALUE - 1 : end;
+            if(end<0 || end>=start) {
+                readCursor = borrowCursor();
+                seek(start);
+            }
+            else { closed = true; }
+        }
+
+        private void seek(int timestamp) throws DatabaseException {
+            int next = seekChannel(readCursor, mtu, timestamp, end);
+            found = next >= 0;
+            if(found) windowEnd = windowEnd(next);
+            else close();
+        }
+
+        @Override
+        public void close() {
+            if(!closed) releaseCursor(readCursor);
+            closed = true;
         }
 
         @Override
         public boolean hasNext() {
-            return status == OperationStatus.SUCCESS;
+            return found;
         }
 
         @Override
-        public Triple next() {
-            byte[] buf = key.getData();
-            int timestamp = intOfBytes(buf,0);
-            byte mtu = getDisplayMtu(buf[4]);
-            buf = data.getData();
-            Integer power = powerOfData(buf);
-            Integer voltage = voltageOfData(buf);
-            Integer voltAmperes = voltAmperesOfData(buf);
-            Triple res = new Triple(timestamp,mtu,power,voltage,voltAmperes);
+        public boolean advance() {
+            if(!found) return false;
             try {
-                status = readCursor.getNext(key, data, LockMode.READ_UNCOMMITTED);
-                closeIfNeeded();
+                current.timestamp = intOfBytes(readCursor.key(),1);
+                current.mtu = mtu;
+                RecordCodec.decode(readCursor.value(), current);
+                if(readCursor.next()) {
+                    byte[] key = readCursor.key();
+                    int next = intOfBytes(key,1);
+                    if(key[0]==keyMtu && next < windowEnd) {
+                        if(next > end) {
+                            found = false;
+                            close();
+                        }
+                        return true;
+                    }
+                }
+                // on to the MTU's entries in the next partition
+                seek(current.timestamp + 1);
+                return true;
             }
             catch(DatabaseException e) {
                 e.printStackTrace();
-                status = null;
+                found = false;
+                close();
+                return true;
             }
-            return res;
         }
     }
-    
-    // not relevant for resolution=1
-    public void accumulateForAverages(Cursor cursor,Triple triple) throws DatabaseException {
-        int timestamp = triple.timestamp;
-        byte mtu = triple.mtu;
-        if(timestamp > maxForMTU[mtu]) {
-            maxForMTU[mtu] = timestamp;
-            if(timestamp >= start[mtu] + resolution) {
-                Integer avg;
-                if(count[mtu]>0) {
-                    avg = Integer.valueOf(sum[mtu]/count[mtu]);
-                }
-                else {
-                    avg = null;
-                }
-                Integer avgVolts;
-                if(countVolts[mtu]>0) {
-                    avgVolts = Integer.valueOf(sumVolts[mtu]/countVolts[mtu]);
-                }
-                else {
-                    avgVolts = null;
+
+    // Merges iterators each in timestamp order and each over different MTUs, by a binary heap on (timestamp, mtu)
+    private static class MergedReadIterator extends ReadIterator {
+        private final ReadIterator[] heap;
+        private int size;
+
+        MergedReadIterator(ReadIterator[] iterators) {
+            heap = new ReadIterator[iterators.length];
+            for(ReadIterator iter : iterators) {
+                if(iter.advance()) heap[size++] = iter;
+            }
+            for(int i = size / 2 - 1; i >= 0; i--) siftDown(i);
+        }
+
+        private static boolean before(ReadIterator a, ReadIterator b) {
+            if(a.current.timestamp != b.current.timestamp) return a.current.timestamp < b.current.timestamp;
+            return a.current.mtu < b.current.mtu;
+        }
+
+        private void siftDown(int i) {
+            ReadIterator iter = heap[i];
+            while(true) {
+                int child = 2 * i + 1;
+                if(child >= size) break;
+                if(child + 1 < size && before(heap[child + 1], heap[child])) child++;
+                if(!before(heap[child], iter)) break;
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = iter;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return size > 0;
+        }
+
+        @Override
+        public boolean advance() {
+            if(size==0) return false;
+            ReadIterator top = heap[0];
+            current.set(top.current);
+            if(!top.advance()) {
+                heap[0] = heap[--size];
+                heap[size] = null;
+            }
+            if(size > 0) siftDown(0);
+            return true;
+        }
+
+        @Override
+        public void close() {
+            for(int i = 0; i < size; i++) heap[i].close();
+            size = 0;
+        }
+    }
+
+    // Decodes one block at a time for each MTU, overlaid with any unflushed open blocks,
+    // and returns the entries in the same (timestamp, mtu) order as RecordReadIterator.
+    private class BlockReadIterator extends ReadIterator {
+        private StoreCursor readCursor;
+        private boolean found;
+        private final int start;
+        private final int end;
+        private boolean closed;
+
+        private int blockStart = -1;
+        private final SampleBlock[] mtuBlocks = new SampleBlock[MAX_DISPLAY_MTUS];
+        private final int[] positions = new int[MAX_DISPLAY_MTUS];
+        private int numMtuBlocks;
+        // the next entry is at positions[nextMtu] in mtuBlocks[nextMtu], if nextMtu >= 0
+        private int nextMtu = -1;
+        // null for all
+        private final byte[] keyMtus;
+        private final byte[] seekKey = new byte[RecordCodec.KEY_SIZE];
+
+        public BlockReadIterator(int start, int end, byte[] keyMtus) throws DatabaseException {
+            this.start = start;
+            this.end = end;
+            this.keyMtus = keyMtus;
+            if(end<0 || end>=start) {
+                readCursor = borrowCursor();
+                found = readCursor.seek(keyBytes(blockStartOf(start),(byte)0));
+                skipUnwanted();
+                nextMtu = findNext();
+            }
+            else { closed = true; }
+        }
+
+        private void skipUnwanted() throws DatabaseException {
+            if(found && keyMtus!=null) found = skipToKeyMtus(readCursor, keyMtus, seekKey);
+        }
+
+        private boolean wanted(byte keyMtu) {
+            if(keyMtus==null) return true;
+            for(byte wanted : keyMtus) {
+                if(wanted==keyMtu) return true;
+            }
+            return false;
+        }
+
+        private SampleBlock mtuBlock(int mtu) {
+            if(mtu >= numMtuBlocks) numMtuBlocks = mtu + 1;
+            SampleBlock block = mtuBlocks[mtu];
+            if(block==null) {
+                block = new SampleBlock(blockStart,resolution);
+                mtuBlocks[mtu] = block;
+            }
+            return block;
+        }
+
+        private boolean loadNextBlock() throws DatabaseException {
+            int from = blockStart < 0 ? blockStartOf(start) : blockStart + blockSpan;
+            int next = Integer.MAX_VALUE;
+            if(found) next = intOfBytes(readCursor.key(),0);
+            synchronized(openBlocks) {
+                Long cached = openBlocks.ceilingKey(Long.valueOf(blockKey(from,(byte)0)));
+                if(cached!=null && (int)(cached.longValue() >> 8) < next) next = (int)(cached.longValue() >> 8);
+            }
+            if(next==Integer.MAX_VALUE || (end>=0 && next>end)) return false;
+
+            blockStart = next;
+            for(int mtu = 0; mtu < numMtuBlocks; mtu++) {
+                if(mtuBlocks[mtu]!=null) mtuBlocks[mtu].clear(blockStart);
+            }
+            while(found && intOfBytes(readCursor.key(),0)==blockStart) {
+                mtuBlock(getDisplayMtu(readCursor.key()[4])).decode(readCursor.value(), blockStart);
+                found = readCursor.next();
+                skipUnwanted();
+            }
+            synchronized(openBlocks) {
+                for(Map.Entry<Long,SampleBlock> entry : openBlocks.subMap(Long.valueOf(blockKey(blockStart,(byte)0)), Long.valueOf(blockKey(blockStart + 1,(byte)0))).entrySet()) {
+                    byte keyMtu = (byte)entry.getKey().longValue();
+                    if(wanted(keyMtu)) mtuBlock(getDisplayMtu(keyMtu)).copyFrom(entry.getValue());
                 }
-                Integer avgVA;
-                if(countVA[mtu]>0) {
-                    avgVA = Integer.valueOf(sumVA[mtu]/countVA[mtu]);
+            }
+            for(int mtu = 0; mtu < numMtuBlocks; mtu++) {
+                SampleBlock block = mtuBlocks[mtu];
+                if(block==null) continue;
+                int index = block.indexOf(start);
+                positions[mtu] = index < 0 ? -index - 1 : index;
+            }
+            return true;
+        }
+
+        private int findNext() throws DatabaseException {
+            while(true) {
+                int nextMtu = -1;
+                int nextTimestamp = Integer.MAX_VALUE;
+                for(int mtu = 0; mtu < numMtuBlocks; mtu++) {
+                    SampleBlock block = mtuBlocks[mtu];
+                    if(block==null || positions[mtu] >= block.size) continue;
+                    int timestamp = block.timestamps[positions[mtu]];
+                    if(timestamp < nextTimestamp) {
+                        nextTimestamp = timestamp;
+                        nextMtu = mtu;
+                    }
                 }
-                else {
-                    avgVA = null;
+                if(nextMtu >= 0) {
+                    if(end>=0 && nextTimestamp>end) break;
+                    return nextMtu;
                 }
-                put(cursor,start[mtu], mtu, avg, avgVolts, avgVA);
-                sum[mtu] = 0;
-                count[mtu] = 0;
-                sumVolts[mtu] = 0;
-                countVolts[mtu] = 0;
-                sumVA[mtu] = 0;
-                countVA[mtu] = 0;
-                // start at day boundaries, but not dealing with daylight savings time...
-                start[mtu] = ((timestamp+timeZoneRawOffset)/resolution)*resolution - timeZoneRawOffset;
+                if(!loadNextBlock()) break;
+            }
+            close();
+            return -1;
+        }
+
+        @Override
+        public void close() {
+            if(!closed) releaseCursor(readCursor);
+            closed = true;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextMtu >= 0;
+        }
+
+        @Override
+        public boolean advance() {
+            if(nextMtu < 0) return false;
+            mtuBlocks[nextMtu].get(positions[nextMtu]++, (byte)nextMtu, current);
+            try {
+                nextMtu = findNext();
             }
-            if(triple.power!=null) {
-                sum[mtu] += triple.power.intValue();
-                count[mtu]++;
+            catch(DatabaseException e) {
+                e.printStackTrace();
+                nextMtu = -1;
+                close();
             }
-            if(triple.voltage!=null) {
-                sumVolts[mtu] += triple.voltage.intValue();
-                countVolts[mtu]++;
+            return true;
+        }
+    }
+    
+    /** 
+     * The sums and counts of one MTU's entries from start to end (inclusive), 
+     * as passed to a rollup database from the next finer one, or for a single entry from the seconds database.
+     */
+    public static class Bucket {
+        int start;
+        int end;
+        byte mtu;
+        int sum;
+        int count;
+        int sumVolts;
+        int countVolts;
+        int sumVA;
+        int countVA;
+
+        public Bucket set(Sample sample) {
+            start = sample.timestamp;
+            end = sample.timestamp;
+            mtu = sample.mtu;
+            sum = sample.hasPower() ? sample.power : 0;
+            count = sample.hasPower() ? 1 : 0;
+            sumVolts = sample.hasVoltage() ? sample.voltage : 0;
+            countVolts = sample.hasVoltage() ? 1 : 0;
+            sumVA = sample.hasVoltAmperes() ? sample.voltAmperes : 0;
+            countVA = sample.hasVoltAmperes() ? 1 : 0;
+            return this;
+        }
+
+        /** Empties the bucket, to accumulate the MTU's entries from start to end */
+        public void clear(int start, int end, byte mtu) {
+            this.start = start;
+            this.end = end;
+            this.mtu = mtu;
+            sum = 0;
+            count = 0;
+            sumVolts = 0;
+            countVolts = 0;
+            sumVA = 0;
+            countVA = 0;
+        }
+
+        public void add(Bucket other) {
+            sum += other.sum;
+            count += other.count;
+            sumVolts += other.sumVolts;
+            countVolts += other.countVolts;
+            sumVA += other.sumVA;
+            countVA += other.countVA;
+        }
+
+        public boolean isEmpty() {
+            return count==0 && countVolts==0 && countVA==0;
+        }
+
+        /** Fills average with the averages of the bucket, at its start; returns average */
+        public Sample average(Sample average) {
+            average.reset(start, mtu);
+            if(count>0) {
+                average.setPower(sum/count);
+            }
+            if(countVolts>0) {
+                average.setVoltage(sumVolts/countVolts);
             }
-            if(triple.voltAmperes!=null) {
-                sumVA[mtu] += triple.voltAmperes.intValue();
-                countVA[mtu]++;
+            if(countVA>0) {
+                average.setVoltAmperes(sumVA/countVA);
             }
+            return average;
         }
     }
+
+    /** 
+     * Adds in bucket, if it is after what has been processed for its MTU; bucket must not straddle a period.
+     * Writes the average of each period this closes, and fills closed with its sums and counts; 
+     * returns the number of periods closed, at most two.  Not relevant for resolution=1.
+     */
+    int accumulate(Bucket bucket, Bucket[] closed) throws DatabaseException {
+        byte mtu = bucket.mtu;
+        int n = 0;
+        synchronized(rollupLock) {
+            if(bucket.start <= maxForMTU[mtu]) return 0;
+            maxForMTU[mtu] = bucket.end;
+            if(bucket.start >= start[mtu] + resolution) {
+                if(closePeriod(mtu, closed[n])) n++;
+                start[mtu] = periodStart(bucket.start);
+            }
+            sum[mtu] += bucket.sum;
+            count[mtu] += bucket.count;
+            sumVolts[mtu] += bucket.sumVolts;
+            countVolts[mtu] += bucket.countVolts;
+            sumVA[mtu] += bucket.sumVA;
+            countVA[mtu] += bucket.countVA;
+            // nothing more can arrive for a period once its last second is in
+            if(bucket.end >= start[mtu] + resolution - 1) {
+                if(closePeriod(mtu, closed[n])) n++;
+                start[mtu] += resolution;
+            }
+        }
+        return n;
+    }
+
+    // writes the average for the period at start[mtu], copies its sums and counts to closed, and clears them;
+    // returns false if the period was empty.  Call while synchronized on rollupLock.
+    private boolean closePeriod(byte mtu, Bucket closed) throws DatabaseException {
+        if(count[mtu]==0 && countVolts[mtu]==0 && countVA[mtu]==0) return false;
+        closed.start = start[mtu];
+        closed.end = start[mtu] + resolution - 1;
+        closed.mtu = mtu;
+        closed.sum = sum[mtu];
+        closed.count = count[mtu];
+        closed.sumVolts = sumVolts[mtu];
+        closed.countVolts = countVolts[mtu];
+        closed.sumVA = sumVA[mtu];
+        closed.countVA = countVA[mtu];
+        put(closed.average(average));
+        sum[mtu] = 0;
+        count[mtu] = 0;
+        sumVolts[mtu] = 0;
+        countVolts[mtu] = 0;
+        sumVA[mtu] = 0;
+        countVA[mtu] = 0;
+        return true;
+    }
     
+    // start at day boundaries, but not dealing with daylight savings time...
+    int periodStart(int timestamp) {
+        return ((timestamp+timeZoneRawOffset)/resolution)*resolution - timeZoneRawOffset;
+    }
     
-    // not relevant for resolution=1
-    public void resetForNewData(int timestamp, byte mtu) {
-        if(maxForMTU[mtu] >= timestamp) {
-            start[mtu] = ((timestamp+timeZoneRawOffset)/resolution)*resolution - timeZoneRawOffset;
+    /** The start of the period now being accumulated for the MTU.  Not relevant for resolution=1. */
+    public int periodStartFor(byte mtu) {
+        synchronized(rollupLock) {
+            return start[mtu];
+        }
+    }
+
+    /** 
+     * Discards what has been processed for the MTU from the period containing timestamp on; 
+     * returns the start of that period, or Integer.MAX_VALUE if nothing needed discarding.  Not relevant for resolution=1.
+     */
+    public int resetForNewData(int timestamp, byte mtu) {
+        synchronized(rollupLock) {
+            resetFrom[mtu] = 0;
+            if(maxForMTU[mtu] < timestamp) return Integer.MAX_VALUE;
+            start[mtu] = periodStart(timestamp);
             maxForMTU[mtu] = start[mtu] - 1;
             sum[mtu] = 0;
             count[mtu] = 0;
@@ -490,9 +1395,174 @@ public class TimeSeriesDatabase {
             countVolts[mtu] = 0;
             sumVA[mtu] = 0;
             countVA[mtu] = 0;
+            return start[mtu];
+        }
+    }
+
+    /** 
+     * Called as soon as a change at timestamp is known to need a reset or repair, before {@link #resetForNewData}
+     * or {@link #changesRepaired}; until then, checkpoints are taken as if the reset had been done.  Returns as resetForNewData would.  
+     * Not relevant for resolution=1.
+     */
+    public int noteChange(int timestamp, byte mtu) {
+        synchronized(rollupLock) {
+            if(maxForMTU[mtu] < timestamp) return Integer.MAX_VALUE;
+            if(resetFrom[mtu]==0 || timestamp < resetFrom[mtu]) resetFrom[mtu] = timestamp;
+            if(pendingCheckpoint!=null) reset(pendingCheckpoint, timestamp, mtu);
+            return periodStart(timestamp);
+        }
+    }
+
+    /** 
+     * If the period being accumulated for period.mtu starts at period.start, its sums and counts become those of period;
+     * for correcting them after a change to seconds already accumulated.  Not relevant for resolution=1.
+     */
+    void repairOpenPeriod(Bucket period) {
+        byte mtu = period.mtu;
+        synchronized(rollupLock) {
+            if(start[mtu]!=period.start) return;
+            sum[mtu] = period.sum;
+            count[mtu] = period.count;
+            sumVolts[mtu] = period.sumVolts;
+            countVolts[mtu] = period.countVolts;
+            sumVA[mtu] = period.sumVA;
+            countVA[mtu] = period.countVA;
+        }
+    }
+
+    /** Called once the changes noted for the MTU have been dealt with otherwise than by {@link #resetForNewData} */
+    void changesRepaired(byte mtu) {
+        synchronized(rollupLock) {
+            resetFrom[mtu] = 0;
+        }
+    }
+
+    /** As {@link #noteChange}, but only on the checkpoint taken and not yet durable, if any */
+    int checkpointChange(int timestamp, byte mtu) {
+        synchronized(rollupLock) {
+            if(pendingCheckpoint==null || pendingCheckpoint.maxForMTU[mtu] < timestamp) return Integer.MAX_VALUE;
+            reset(pendingCheckpoint, timestamp, mtu);
+            return periodStart(timestamp);
+        }
+    }
+
+    /** True if the rollup state was restored from a checkpoint instead of scanning for the latest entries */
+    public boolean resumedFromCheckpoint() {
+        return resumed;
+    }
+
+    private void restore(Checkpoint checkpoint) {
+        int mtus = start.length;
+        System.arraycopy(checkpoint.start, 0, start, 0, mtus);
+        System.arraycopy(checkpoint.maxForMTU, 0, maxForMTU, 0, mtus);
+        System.arraycopy(checkpoint.sum, 0, sum, 0, mtus);
+        System.arraycopy(checkpoint.count, 0, count, 0, mtus);
+        System.arraycopy(checkpoint.sumVolts, 0, sumVolts, 0, mtus);
+        System.arraycopy(checkpoint.countVolts, 0, countVolts, 0, mtus);
+        System.arraycopy(checkpoint.sumVA, 0, sumVA, 0, mtus);
+        System.arraycopy(checkpoint.countVA, 0, countVA, 0, mtus);
+    }
+
+    // as resetForNewData, on a checkpoint
+    private void reset(Checkpoint checkpoint, int timestamp, byte mtu) {
+        if(checkpoint.maxForMTU[mtu] < timestamp) return;
+        checkpoint.start[mtu] = periodStart(timestamp);
+        checkpoint.maxForMTU[mtu] = checkpoint.start[mtu] - 1;
+        checkpoint.sum[mtu] = 0;
+        checkpoint.count[mtu] = 0;
+        checkpoint.sumVolts[mtu] = 0;
+        checkpoint.countVolts[mtu] = 0;
+        checkpoint.sumVA[mtu] = 0;
+        checkpoint.countVA[mtu] = 0;
+    }
+
+    /** 
+     * Records the current rollup state, to be returned by {@link #durableCheckpoint()} once a flush and sync
+     * have made the averages written so far durable.  Not relevant for resolution=1.
+     */
+    public void takeCheckpoint() {
+        synchronized(rollupLock) {
+            int mtus = start.length;
+            Checkpoint checkpoint = new Checkpoint(mtus);
+            System.arraycopy(start, 0, checkpoint.start, 0, mtus);
+            System.arraycopy(maxForMTU, 0, checkpoint.maxForMTU, 0, mtus);
+            System.arraycopy(sum, 0, checkpoint.sum, 0, mtus);
+            System.arraycopy(count, 0, checkpoint.count, 0, mtus);
+            System.arraycopy(sumVolts, 0, checkpoint.sumVolts, 0, mtus);
+            System.arraycopy(countVolts, 0, checkpoint.countVolts, 0, mtus);
+            System.arraycopy(sumVA, 0, checkpoint.sumVA, 0, mtus);
+            System.arraycopy(countVA, 0, checkpoint.countVA, 0, mtus);
+            for(byte mtu = 0; mtu < mtus; mtu++) {
+                if(resetFrom[mtu]!=0) reset(checkpoint, resetFrom[mtu], mtu);
+            }
+            pendingCheckpoint = checkpoint;
+        }
+    }
+
+    /** The checkpoint taken by {@link #takeCheckpoint()}, including any changes noted since; or null */
+    public Checkpoint durableCheckpoint() {
+        synchronized(rollupLock) {
+            Checkpoint res = pendingCheckpoint;
+            pendingCheckpoint = null;
+            return res;
         }
     }
     
+    // the block starting at blockStart straddles the deletion point; remove just its earlier entries
+    private void trimBlocks(int blockStart, int until) throws DatabaseException {
+        synchronized(openBlocks) {
+            StoreCursor cursor = store.openCursor();
+            try {
+                boolean found = cursor.seek(keyBytes(blockStart,(byte)0));
+                while(found && intOfBytes(cursor.key(),0)==blockStart) {
+                    byte[] key = cursor.key();
+                    SampleBlock block = openBlocks.get(Long.valueOf(blockKey(blockStart, key[4])));
+                    if(block==null) {
+                        block = new SampleBlock(blockStart,resolution);
+                        block.decode(cursor.value(), blockStart);
+                        if(block.removeBefore(until)) {
+                            if(block.size==0) store.delete(key);
+                            else store.put(key, block.encode(codec));
+                        }
+                    }
+                    else {
+                        block.removeBefore(until);
+                    }
+                    found = cursor.next();
+                }
+            }
+            finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /** Deletes all entries before until */
+    public void deleteUntil(int until) throws DatabaseException {
+        if(blocks) {
+            int straddling = blockStartOf(until);
+            synchronized(openBlocks) {
+                openBlocks.headMap(Long.valueOf(blockKey(straddling,(byte)0))).clear();
+            }
+            store.deleteRange(keyBytes(0,(byte)0), keyBytes(straddling,(byte)0));
+            if(straddling < until) trimBlocks(straddling, until);
+        }
+        else if(mtuMajor) {
+            if(store instanceof PartitionedStore) ((PartitionedStore)store).dropBefore(until);
+            deleteChannelRanges(0, until);
+        }
+        else {
+            store.deleteRange(keyBytes(0,(byte)0), keyBytes(until,(byte)0));
+        }
+    }
+
+    // for mtu-major keys, deletes from (inclusive) to (exclusive) for each MTU
+    private void deleteChannelRanges(int from, int to) throws DatabaseException {
+        for(byte mtu = 0; mtu < maxForMTU.length; mtu++) {
+            store.deleteRange(keyBytes(from, mtu), keyBytes(to, mtu));
+        }
+    }
+
     class DeleteUntil implements Runnable {
         private final Main main;
         private final int until;
@@ -507,53 +1577,12 @@ public class TimeSeriesDatabase {
             if(!main.isRunning) return; 
             log.trace("Deleting in database " + resolution);
             try {
-                Cursor cursor = openCursor();
-                try {
-                    DatabaseEntry key = new DatabaseEntry();
-                    DatabaseEntry readDataEntry = new DatabaseEntry();
-                    readDataEntry.setPartial(0,0,true);
-                    key = keyEntry(0,(byte)0);
-                    OperationStatus status = cursor.getSearchKeyRange(key, readDataEntry, LockMode.READ_UNCOMMITTED);
-                    if (status != OperationStatus.NOTFOUND) {
-                        int lastPrintedTimestamp = 0;
-                        int interval = 86400;
-                        if(resolution >= 3600) interval = 864000;
-                        int timestamp = 0;
-                        while(main.isRunning && status==OperationStatus.SUCCESS) {
-                            byte[] buf = key.getData();
-                            timestamp = intOfBytes(buf,0);
-                            if(timestamp<until) {
-                                //log.info("Deleting " + Main.dateString(timestamp));
-                                status = cursor.delete();
-                                if(lastPrintedTimestamp==0) lastPrintedTimestamp = timestamp;
-                                else if(timestamp / interval > lastPrintedTimestamp / interval) {
-                                    lastPrintedTimestamp = timestamp;
-                                    log.trace("Deleted until " + Util.dateString(timestamp) + " in database " + resolution);
-                                }
-                                if(status==OperationStatus.SUCCESS) status = cursor.getNext(key, readDataEntry, LockMode.READ_UNCOMMITTED);
-                            }
-                            else break;
-                        }
-                        if(status!=OperationStatus.SUCCESS) {
-                            log.error("Unexpected status around " + Util.dateString(timestamp) + " in database " + resolution);
-                        }
-                    }
+                deleteUntil(until);
 
 //                     Delete everything after 2030
-                    log.trace("Deleting after 2030");
-                    key = keyEntry(1894000000,(byte)0);
-                    status = cursor.getSearchKeyRange(key, readDataEntry, LockMode.READ_UNCOMMITTED);
-                    while(status==OperationStatus.SUCCESS) {
-                        byte[] buf = key.getData();
-                        int timestamp = intOfBytes(buf,0);
-                        log.trace("Deleting " + Util.dateString(timestamp));
-                        status = cursor.delete();
-                        if(status==OperationStatus.SUCCESS) status = cursor.getNext(key, readDataEntry, LockMode.READ_UNCOMMITTED);
-                    }
-                }
-                finally {
-                    cursor.close();
-                }
+                log.trace("Deleting after 2030");
+                if(mtuMajor) deleteChannelRanges(1894000000, Integer.MAX_VALUE);
+                else store.deleteRange(keyBytes(1894000000,(byte)0), null);
             }
             catch (DatabaseException e) {
                 log.error("Error deleting",e);
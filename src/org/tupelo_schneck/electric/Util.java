@@ -104,4 +104,62 @@ public class Util {
         int offsetHourAgo = timeZone.getOffset(1000L*(timestamp-3600));
         return offsetHourAgo > offsetNow;
     }
+
+    /** 
+     * The earliest timestamp at which timeZone's clock shows the time GMT shows at local, as for the dates of a table; 
+     * within the hour repeated when clocks go back, the first, and within the hour skipped, as if before it 
+     */
+    public static int timestampFromLocal(TimeZone timeZone, int local) {
+        long rough = 1000L*local - timeZone.getRawOffset();
+        int res = Integer.MAX_VALUE;
+        int fallback = Integer.MAX_VALUE;
+        for(long millis : new long[] { rough - 2*3600*1000, rough + 2*3600*1000 }) {
+            int offset = timeZone.getOffset(millis);
+            int timestamp = local - offset/1000;
+            if(timeZone.getOffset(1000L*timestamp)==offset) res = Math.min(res, timestamp);
+            fallback = Math.min(fallback, timestamp);
+        }
+        return res==Integer.MAX_VALUE ? fallback : res;
+    }
+
+    // year, month (from 1), day, hour, minute, second in GMT of millis, without a Calendar
+    private static int[] gmtFields(long millis) {
+        long seconds = millis / 1000;
+        if(millis % 1000 < 0) seconds--;
+        long days = seconds / 86400;
+        int secondOfDay = (int)(seconds % 86400);
+        if(secondOfDay < 0) {
+            secondOfDay += 86400;
+            days--;
+        }
+        // proleptic Gregorian date from days since 1970-01-01, by 400-year eras starting in March
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra/1460 + dayOfEra/36524 - dayOfEra/146096) / 365;
+        long dayOfYear = dayOfEra - (365*yearOfEra + yearOfEra/4 - yearOfEra/100);
+        long mp = (5*dayOfYear + 2) / 153;
+        int day = (int)(dayOfYear - (153*mp + 2)/5 + 1);
+        int month = (int)(mp < 10 ? mp + 3 : mp - 9);
+        int year = (int)(yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+        return new int[] { year, month, day, secondOfDay / 3600, secondOfDay / 60 % 60, secondOfDay % 60 };
+    }
+
+    /** Appends the GMT date of millis as JavaScript Date arguments, "year,month,day,hours,minutes,seconds", months from 0 */
+    public static void appendDateFields(StringBuilder sb, long millis) {
+        int[] fields = gmtFields(millis);
+        sb.append(fields[0]).append(',').append(fields[1] - 1).append(',').append(fields[2]).append(',')
+        .append(fields[3]).append(',').append(fields[4]).append(',').append(fields[5]);
+    }
+
+    /** Appends the GMT date of millis as "yyyy-MM-dd HH:mm:ss" */
+    public static void appendDateTime(StringBuilder sb, long millis) {
+        int[] fields = gmtFields(millis);
+        sb.append(fields[0]);
+        for(int i = 1; i < 6; i++) {
+            sb.append(i < 3 ? '-' : i == 3 ? ' ' : ':');
+            if(fields[i] < 10) sb.append('0');
+            sb.append(fields[i]);
+        }
+    }
 }
@@ -43,13 +43,13 @@ import org.tupelo_schneck.electric.DatabaseManager;
 import org.tupelo_schneck.electric.Importer;
 import org.tupelo_schneck.electric.Main;
 import org.tupelo_schneck.electric.Options;
+import org.tupelo_schneck.electric.Sample;
+import org.tupelo_schneck.electric.SampleBatch;
 import org.tupelo_schneck.electric.Servlet;
 import org.tupelo_schneck.electric.Triple;
 import org.tupelo_schneck.electric.Util;
 
-import com.sleepycat.je.Cursor;
 import com.sleepycat.je.DatabaseException;
-import com.sleepycat.je.StatsConfig;
 
 public class CurrentCostImporter implements Importer, SerialPortEventListener {
     static {
@@ -62,8 +62,6 @@ public class CurrentCostImporter implements Importer, SerialPortEventListener {
     private static final int TIME_OUT = 5000;
     private static final int[] SERIAL_SPEEDS = new int[] { 57600, 9600, 2400 }; 
     private static final int MAX_FAILS = 5;
-    private static final long ENVIRONMENT_SYNC_INTERVAL = 60*1000;
-    private static final long STATS_DUMP_INTERVAL = 5*60*1000;
 
     private final Main main;
     private final DatabaseManager databaseManager;
@@ -83,9 +81,6 @@ public class CurrentCostImporter implements Importer, SerialPortEventListener {
     private InputStream input;
     private StringBuilder sb;
     private int fails;
-
-    private long latestStatsDump;
-    private long latestSync;
     
     public CurrentCostImporter(Main main, Options options, DatabaseManager databaseManager, Servlet servlet, CatchUp catchUp) {
         this.main = main;
@@ -232,8 +227,8 @@ public class CurrentCostImporter implements Importer, SerialPortEventListener {
                 modelVerified = true;
                 String message = sb.substring(startPos, endPos+6);
                 sb.delete(0,endPos+6);
-                List<Triple> triples = currentCostParse(message);
-                processTriples(triples);
+                SampleBatch samples = currentCostParse(message);
+                processSamples(samples);
             } 
             else {                
                 sb.delete(0,startPos);
@@ -246,7 +241,7 @@ public class CurrentCostImporter implements Importer, SerialPortEventListener {
     private static final Pattern channelPattern = Pattern.compile("<ch([123])>\\s*+<watts>([^<]*+)</watts>\\s*+</ch\\1>");
     private static final Pattern temperaturePattern = Pattern.compile("<tmpr(F?+)>([^<]*+)</tmpr\\1>");
 
-    private List<Triple> currentCostParse(String msg) {
+    private SampleBatch currentCostParse(String msg) {
         int timestamp = (int)(System.currentTimeMillis()/1000); // TODO use displayed time?
 
         int sensor = 0;
@@ -261,7 +256,7 @@ public class CurrentCostImporter implements Importer, SerialPortEventListener {
 
         if(sensor > maxSensor) return null;
 
-        List<Triple> res = null;
+        SampleBatch res = null;
 
         m = channelPattern.matcher(msg);
         boolean found = false;
@@ -270,15 +265,13 @@ public class CurrentCostImporter implements Importer, SerialPortEventListener {
             ch[Integer.parseInt(m.group(1))-1] = Integer.parseInt(m.group(2));
         }
         if(found) {
-            res = new ArrayList<Triple>();
+            res = new SampleBatch(numberOfClamps);
             if(sumClamps) {
-                Triple triple = new Triple(timestamp,(byte)sensor,Integer.valueOf(ch[0]+ch[1]+ch[2]),null,null);
-                res.add(triple);
+                res.add(timestamp,(byte)sensor,Sample.POWER,ch[0]+ch[1]+ch[2],0,0);
             }
             else {
                 for(int i = 0; i < numberOfClamps; i++) {
-                    Triple triple = new Triple(timestamp,(byte)(sensor*numberOfClamps+i),Integer.valueOf(ch[i]),null,null);
-                    res.add(triple);
+                    res.add(timestamp,(byte)(sensor*numberOfClamps+i),Sample.POWER,ch[i],0,0);
                 }
             }
         }
@@ -290,39 +283,28 @@ public class CurrentCostImporter implements Importer, SerialPortEventListener {
                 tmpr = Integer.parseInt(m.group(2));
                 fahrenheit = "F".equals(m.group(1));
                 // TODO temperature
-                // if(res==null) res = new ArrayList<Triple>();
+                // if(res==null) res = new SampleBatch();
             }
         }
 
         return res;
     }
 
-    private void processTriples(List<Triple> triples) {
-        if(triples == null || triples.isEmpty()) return;
+    private void processSamples(SampleBatch samples) {
+        if(samples == null || samples.isEmpty()) return;
 
         List<Triple.Key> changes = new ArrayList<Triple.Key>();
         boolean changed = false;
 
-        int timestamp = 0;
-        Cursor cursor = null;
+        int timestamp = samples.timestamp(samples.size()-1);
         try {
             if(!main.isRunning) return;
-            cursor = databaseManager.secondsDb.openCursor();
-            for(Triple triple : triples) {
-                if(!main.isRunning) return;
-                timestamp = triple.timestamp;
-                if (databaseManager.secondsDb.putIfChanged(cursor, triple)) {
-                    changed = true;
-                    changes.add(new Triple.Key(timestamp,triple.mtu));
-                }
-            }
+            changed = databaseManager.secondsDb.putIfChanged(samples, changes)!=null;
+            databaseManager.durability.written(changes.size());
         }
         catch(DatabaseException e) {
             e.printStackTrace();
         }
-        finally {
-            if(cursor!=null) try { cursor.close(); } catch (Exception e) { e.printStackTrace(); }
-        }
 
         if(changed) {
             log.trace("Current Cost data at " + Util.dateString(timestamp));
@@ -331,25 +313,8 @@ public class CurrentCostImporter implements Importer, SerialPortEventListener {
                 servlet.setMaximumIfNewer(timestamp);
             }
             catchUp.setMaximumIfNewer(timestamp);
+            catchUp.publish(samples);
             catchUp.notifyChanges(changes, false);
-
-            synchronized(this) {
-                long now = System.currentTimeMillis();
-                if(now - latestSync > ENVIRONMENT_SYNC_INTERVAL) {
-                    try {
-                        databaseManager.environment.sync();
-                        latestSync = now;
-                        log.trace("Environment synced.");
-                        if(now - latestStatsDump > STATS_DUMP_INTERVAL) {
-                            log.trace(databaseManager.environment.getStats(StatsConfig.DEFAULT).toString());
-                            latestStatsDump = now;
-                        }
-                    }
-                    catch(DatabaseException e) {
-                        log.debug("Exception syncing environment: " + e);
-                    }
-                }
-            }
         }
     }
 
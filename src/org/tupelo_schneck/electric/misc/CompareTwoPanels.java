@@ -27,7 +27,6 @@ import java.io.PrintStream;
 import org.tupelo_schneck.electric.DatabaseManager;
 import org.tupelo_schneck.electric.Main;
 import org.tupelo_schneck.electric.Options;
-import org.tupelo_schneck.electric.Triple;
 import org.tupelo_schneck.electric.TimeSeriesDatabase.ReadIterator;
 import org.tupelo_schneck.electric.Util;
 
@@ -66,14 +65,13 @@ public class CompareTwoPanels {
             ReadIterator iter = databaseManager.secondsDb.read((int)(new GregorianCalendar(2011,6-1,18,0,0,0).getTimeInMillis()/1000),
                     (int)(new GregorianCalendar(2011,8-1,1,0,0,0).getTimeInMillis()/1000));
             try {
-                while(iter.hasNext()) {
-                    Triple t = iter.next();
-                    if(t.power==null) continue;
-                   // if(t.mtu < 2) continue;
-                    int power = t.power.intValue();
-                    if(t.timestamp % 86400 == 0) System.out.println(Util.dateString(t.timestamp));
-                    total[t.mtu]+=power;
-                    count[t.mtu]++;
+                while(iter.advance()) {
+                    if(!iter.hasPower()) continue;
+                   // if(iter.mtu() < 2) continue;
+                    int power = iter.power();
+                    if(iter.timestamp() % 86400 == 0) System.out.println(Util.dateString(iter.timestamp()));
+                    total[iter.mtu()]+=power;
+                    count[iter.mtu()]++;
                 }
             }
             finally {
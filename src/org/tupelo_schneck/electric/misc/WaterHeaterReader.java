@@ -27,7 +27,6 @@ import java.io.PrintStream;
 import org.tupelo_schneck.electric.DatabaseManager;
 import org.tupelo_schneck.electric.Main;
 import org.tupelo_schneck.electric.Options;
-import org.tupelo_schneck.electric.Triple;
 import org.tupelo_schneck.electric.TimeSeriesDatabase.ReadIterator;
 import org.tupelo_schneck.electric.Util;
 
@@ -77,28 +76,28 @@ public class WaterHeaterReader {
             ReadIterator iter = databaseManager.secondsDb.read((int)(new GregorianCalendar(2011,1-1,1,0,0,0).getTimeInMillis()/1000),
                     (int)(new GregorianCalendar(2011,2-1,1,0,0,0).getTimeInMillis()/1000));
             try {
-                while(iter.hasNext()) {
-                    Triple t = iter.next();
-                    if(t.power==null) continue;
-                    if(t.mtu >= 2) continue;
-                    int power = t.power.intValue();
-                    if(t.timestamp % 86400 == 0) System.out.println(Util.dateString(t.timestamp));
-                    total[t.mtu]+=power;
-                    count[t.mtu]++;
+                while(iter.advance()) {
+                    if(!iter.hasPower()) continue;
+                    byte mtu = iter.mtu();
+                    if(mtu >= 2) continue;
+                    int power = iter.power();
+                    if(iter.timestamp() % 86400 == 0) System.out.println(Util.dateString(iter.timestamp()));
+                    total[mtu]+=power;
+                    count[mtu]++;
                     if(power > max) max = power;
                     
-                    if(on[t.mtu] && power < 20) {
-                        double av = usedSinceLastOff[t.mtu]/countSinceLastOff[t.mtu];
+                    if(on[mtu] && power < 20) {
+                        double av = usedSinceLastOff[mtu]/countSinceLastOff[mtu];
                         int bucket = (int)(av / 10.0);
                         if(bucket>=20) bucket = 19;
-                        histo[t.mtu][bucket]++;
-                        usedSinceLastOff[t.mtu] = 0;
-                        countSinceLastOff[t.mtu] = 0;
+                        histo[mtu][bucket]++;
+                        usedSinceLastOff[mtu] = 0;
+                        countSinceLastOff[mtu] = 0;
                     }
                     
-                    on[t.mtu] = power >= 20;
-                    usedSinceLastOff[t.mtu] += power;
-                    countSinceLastOff[t.mtu] ++;
+                    on[mtu] = power >= 20;
+                    usedSinceLastOff[mtu] += power;
+                    countSinceLastOff[mtu] ++;
                 }
             }
             finally {
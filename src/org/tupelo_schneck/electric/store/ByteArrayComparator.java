@@ -0,0 +1,39 @@
+/*
+This file is part of
+"it's electric": software for storing and viewing home energy monitoring data
+Copyright (C) 2009--2015 Robert R. Tupelo-Schneck <schneck@gmail.com>
+http://tupelo-schneck.org/its-electric
+
+"it's electric" is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+"it's electric" is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with "it's electric", as legal/COPYING-agpl.txt.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.tupelo_schneck.electric.store;
+
+import java.util.Comparator;
+
+/** Orders byte arrays as unsigned bytes, shorter first on a common prefix, as JE orders keys */
+public class ByteArrayComparator implements Comparator<byte[]> {
+    public static final ByteArrayComparator INSTANCE = new ByteArrayComparator();
+
+    @Override
+    public int compare(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for(int i = 0; i < n; i++) {
+            int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if(diff!=0) return diff;
+        }
+        return a.length - b.length;
+    }
+}
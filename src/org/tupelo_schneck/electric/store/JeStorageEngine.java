@@ -0,0 +1,213 @@
+/*
+This file is part of
+"it's electric": software for storing and viewing home energy monitoring data
+Copyright (C) 2009--2015 Robert R. Tupelo-Schneck <schneck@gmail.com>
+http://tupelo-schneck.org/its-electric
+
+"it's electric" is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+"it's electric" is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with "it's electric", as legal/COPYING-agpl.txt.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.tupelo_schneck.electric.store;
+
+import java.util.List;
+
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.CursorConfig;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.DatabaseException;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+
+/** Stores as Berkeley DB JE databases in a non-transactional environment, which is closed with the engine */
+public class JeStorageEngine implements StorageEngine {
+    public static final String NAME = "je";
+
+    private final Environment environment;
+    private final DatabaseConfig config;
+
+    public JeStorageEngine(Environment environment, boolean readOnly) {
+        this.environment = environment;
+        config = new DatabaseConfig();
+        config.setAllowCreate(true);
+        config.setReadOnly(readOnly);
+    }
+
+    @Override
+    public Store open(String name) throws DatabaseException {
+        return new JeStore(environment.openDatabase(null, name, config));
+    }
+
+    @Override
+    public List<String> getNames() throws DatabaseException {
+        return environment.getDatabaseNames();
+    }
+
+    @Override
+    public void remove(String name) throws DatabaseException {
+        environment.removeDatabase(null, name);
+    }
+
+    @Override
+    public void rename(String from, String to) throws DatabaseException {
+        environment.renameDatabase(null, from, to);
+    }
+
+    @Override
+    public void sync() throws DatabaseException {
+        // writes to the log are enough for recovery; checkpoints are left to JE
+        environment.flushLog(true);
+    }
+
+    @Override
+    public void close() {
+        environment.close();
+    }
+
+    private static void checkStatus(OperationStatus status) throws DatabaseException {
+        if(status!=OperationStatus.SUCCESS) {
+            throw new DatabaseException("Unexpected status " + status) {};
+        }
+    }
+
+    private static class JeStore implements Store {
+        private final Database database;
+
+        JeStore(Database database) {
+            this.database = database;
+        }
+
+        @Override
+        public byte[] get(byte[] key) throws DatabaseException {
+            DatabaseEntry data = new DatabaseEntry();
+            OperationStatus status = database.get(null, new DatabaseEntry(key), data, LockMode.READ_UNCOMMITTED);
+            if(status==OperationStatus.NOTFOUND) return null;
+            checkStatus(status);
+            return data.getData();
+        }
+
+        @Override
+        public void put(byte[] key, byte[] value) throws DatabaseException {
+            checkStatus(database.put(null, new DatabaseEntry(key), new DatabaseEntry(value)));
+        }
+
+        @Override
+        public boolean putNoOverwrite(byte[] key, byte[] value) throws DatabaseException {
+            OperationStatus status = database.putNoOverwrite(null, new DatabaseEntry(key), new DatabaseEntry(value));
+            if(status==OperationStatus.KEYEXIST) return false;
+            checkStatus(status);
+            return true;
+        }
+
+        @Override
+        public boolean delete(byte[] key) throws DatabaseException {
+            OperationStatus status = database.delete(null, new DatabaseEntry(key));
+            if(status==OperationStatus.NOTFOUND) return false;
+            checkStatus(status);
+            return true;
+        }
+
+        @Override
+        public void deleteRange(byte[] from, byte[] to) throws DatabaseException {
+            Cursor cursor = database.openCursor(null, CursorConfig.READ_UNCOMMITTED);
+            try {
+                DatabaseEntry key = new DatabaseEntry(from);
+                DatabaseEntry data = new DatabaseEntry();
+                data.setPartial(0,0,true);
+                OperationStatus status = cursor.getSearchKeyRange(key, data, LockMode.READ_UNCOMMITTED);
+                while(status==OperationStatus.SUCCESS && !Thread.currentThread().isInterrupted()) {
+                    if(to!=null && ByteArrayComparator.INSTANCE.compare(key.getData(), to) >= 0) break;
+                    status = cursor.delete();
+                    if(status==OperationStatus.SUCCESS) status = cursor.getNext(key, data, LockMode.READ_UNCOMMITTED);
+                }
+                if(status!=OperationStatus.NOTFOUND) checkStatus(status);
+            }
+            finally {
+                cursor.close();
+            }
+        }
+
+        @Override
+        public StoreCursor openCursor() throws DatabaseException {
+            return new JeCursor(database.openCursor(null, CursorConfig.READ_UNCOMMITTED));
+        }
+
+        @Override
+        public void close() {
+            database.close();
+        }
+    }
+
+    private static class JeCursor implements StoreCursor {
+        private final Cursor cursor;
+        private DatabaseEntry key = new DatabaseEntry();
+        private final DatabaseEntry data = new DatabaseEntry();
+
+        JeCursor(Cursor cursor) {
+            this.cursor = cursor;
+        }
+
+        private boolean found(OperationStatus status) throws DatabaseException {
+            if(status==OperationStatus.NOTFOUND) return false;
+            checkStatus(status);
+            return true;
+        }
+
+        @Override
+        public boolean seek(byte[] searchKey) throws DatabaseException {
+            key = new DatabaseEntry(searchKey);
+            return found(cursor.getSearchKeyRange(key, data, LockMode.READ_UNCOMMITTED));
+        }
+
+        @Override
+        public boolean last() throws DatabaseException {
+            return found(cursor.getLast(key, data, LockMode.READ_UNCOMMITTED));
+        }
+
+        @Override
+        public boolean next() throws DatabaseException {
+            return found(cursor.getNext(key, data, LockMode.READ_UNCOMMITTED));
+        }
+
+        @Override
+        public boolean prev() throws DatabaseException {
+            return found(cursor.getPrev(key, data, LockMode.READ_UNCOMMITTED));
+        }
+
+        @Override
+        public byte[] key() {
+            return key.getData();
+        }
+
+        @Override
+        public byte[] value() {
+            return data.getData();
+        }
+
+        // READ_UNCOMMITTED cursors hold no locks; just drop the last entry
+        @Override
+        public void reset() {
+            key.setData(null);
+            data.setData(null);
+        }
+
+        @Override
+        public void close() {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+This file is part of
+"it's electric": software for storing and viewing home energy monitoring data
+Copyright (C) 2009--2015 Robert R. Tupelo-Schneck <schneck@gmail.com>
+http://tupelo-schneck.org/its-electric
+
+"it's electric" is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+"it's electric" is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with "it's electric", as legal/COPYING-agpl.txt.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.tupelo_schneck.electric.store;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Stores held only in memory, for tests and benchmarks; everything is lost when the process exits */
+public class MemoryStorageEngine implements StorageEngine {
+    public static final String NAME = "memory";
+
+    private final Map<String,MemoryStore> stores = new HashMap<String,MemoryStore>();
+
+    @Override
+    public synchronized Store open(String name) {
+        MemoryStore store = stores.get(name);
+        if(store==null) {
+            store = new MemoryStore();
+            stores.put(name, store);
+        }
+        return store;
+    }
+
+    @Override
+    public synchronized List<String> getNames() {
+        return new ArrayList<String>(stores.keySet());
+    }
+
+    @Override
+    public synchronized void remove(String name) {
+        stores.remove(name);
+    }
+
+    @Override
+    public synchronized void rename(String from, String to) {
+        MemoryStore store = stores.remove(from);
+        if(store!=null) stores.put(to, store);
+    }
+
+    @Override
+    public void sync() {
+    }
+
+    @Override
+    public synchronized void close() {
+        stores.clear();
+    }
+
+    private static class MemoryStore extends SkipListStore<byte[]> {
+        @Override
+        byte[] valueOf(byte[] value) {
+            return value;
+        }
+
+        @Override
+        public void put(byte[] key, byte[] value) {
+            index.put(key.clone(), value.clone());
+        }
+
+        @Override
+        public boolean putNoOverwrite(byte[] key, byte[] value) {
+            if(index.containsKey(key)) return false;
+            return index.putIfAbsent(key.clone(), value.clone())==null;
+        }
+
+        @Override
+        public boolean delete(byte[] key) {
+            return index.remove(key)!=null;
+        }
+
+        @Override
+        public void deleteRange(byte[] from, byte[] to) {
+            range(from, to).clear();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
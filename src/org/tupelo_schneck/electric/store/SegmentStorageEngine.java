@@ -0,0 +1,421 @@
+/*
+This file is part of
+"it's electric": software for storing and viewing home energy monitoring data
+Copyright (C) 2009--2015 Robert R. Tupelo-Schneck <schneck@gmail.com>
+http://tupelo-schneck.org/its-electric
+
+"it's electric" is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+"it's electric" is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with "it's electric", as legal/COPYING-agpl.txt.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.tupelo_schneck.electric.store;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.sleepycat.je.DatabaseException;
+
+/**
+ * Stores as append-only logs of memory-mapped segment files, one directory per store,
+ * with all keys indexed in memory.  Writes never update in place, so there is no B-tree
+ * to maintain; the oldest segment is deleted once nothing in it is live, and is compacted
+ * into the newest when most of the log is dead.
+ */
+public class SegmentStorageEngine implements StorageEngine {
+    public static final String NAME = "mmap";
+
+    private static final Log log = LogFactory.getLog(SegmentStorageEngine.class);
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final String SUFFIX = ".seg";
+
+    // record: type byte, key length, value length, CRC32 of type, key, and value; then key and value.
+    // A type of 0 marks the end of the log in a segment.
+    private static final int HEADER = 13;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    // the value is the upper limit
+    private static final byte DELETE_RANGE = 3;
+    private static final byte DELETE_FROM = 4;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final File directory;
+    private final boolean readOnly;
+    private final int segmentSize;
+    private final Map<String,SegmentStore> openStores = new HashMap<String,SegmentStore>();
+
+    public SegmentStorageEngine(File directory, boolean readOnly) {
+        this(directory, readOnly, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public SegmentStorageEngine(File directory, boolean readOnly, int segmentSize) {
+        this.directory = directory;
+        this.readOnly = readOnly;
+        this.segmentSize = segmentSize;
+    }
+
+    private static DatabaseException wrap(IOException e) {
+        return new DatabaseException(e.toString(), e) {};
+    }
+
+    @Override
+    public synchronized Store open(String name) throws DatabaseException {
+        if(openStores.containsKey(name)) {
+            throw new DatabaseException("Store " + name + " already open") {};
+        }
+        SegmentStore store = new SegmentStore(name, new File(directory, name));
+        openStores.put(name, store);
+        return store;
+    }
+
+    @Override
+    public List<String> getNames() {
+        List<String> res = new ArrayList<String>();
+        File[] dirs = directory.listFiles();
+        if(dirs==null) return res;
+        for(File dir : dirs) {
+            if(dir.isDirectory()) res.add(dir.getName());
+        }
+        return res;
+    }
+
+    @Override
+    public synchronized void remove(String name) throws DatabaseException {
+        if(openStores.containsKey(name)) {
+            throw new DatabaseException("Store " + name + " is open") {};
+        }
+        File dir = new File(directory, name);
+        File[] files = dir.listFiles();
+        if(files!=null) {
+            for(File file : files) file.delete();
+        }
+        if(!dir.delete()) {
+            throw new DatabaseException("Unable to remove " + dir) {};
+        }
+    }
+
+    @Override
+    public synchronized void rename(String from, String to) throws DatabaseException {
+        if(openStores.containsKey(from)) {
+            throw new DatabaseException("Store " + from + " is open") {};
+        }
+        if(!new File(directory, from).renameTo(new File(directory, to))) {
+            throw new DatabaseException("Unable to rename " + from + " to " + to) {};
+        }
+    }
+
+    @Override
+    public synchronized void sync() {
+        for(SegmentStore store : openStores.values()) store.sync();
+    }
+
+    @Override
+    public synchronized void close() {
+        for(SegmentStore store : new ArrayList<SegmentStore>(openStores.values())) store.close();
+    }
+
+    private static class Segment {
+        final int number;
+        final File file;
+        final MappedByteBuffer buffer;
+        // where the next record goes
+        int end;
+        // bytes of records that are still current
+        long live;
+
+        Segment(int number, File file, MappedByteBuffer buffer) {
+            this.number = number;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private static class Location {
+        final Segment segment;
+        final int offset;
+        final int length;
+
+        Location(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static byte[] bytesAt(ByteBuffer buffer, int offset, int length) {
+        byte[] res = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.get(res);
+        return res;
+    }
+
+    private class SegmentStore extends SkipListStore<Location> {
+        private final String name;
+        private final File dir;
+        // oldest first; the last is written to
+        private final List<Segment> segments = new ArrayList<Segment>();
+        private final CRC32 crc = new CRC32();
+        private boolean compacting;
+        private boolean closed;
+
+        SegmentStore(String name, File dir) throws DatabaseException {
+            this.name = name;
+            this.dir = dir;
+            if(!readOnly) dir.mkdirs();
+            File[] files = dir.listFiles(new FileFilter() {
+                @Override
+                public boolean accept(File file) {
+                    return file.getName().endsWith(SUFFIX);
+                }
+            });
+            if(files==null) files = new File[0];
+            Arrays.sort(files);
+            try {
+                for(int i = 0; i < files.length; i++) {
+                    String fileName = files[i].getName();
+                    int number = Integer.parseInt(fileName.substring(0, fileName.length() - SUFFIX.length()));
+                    Segment segment = map(number, files[i], !readOnly && i==files.length-1);
+                    segments.add(segment);
+                    replay(segment);
+                }
+                if(!readOnly && segments.isEmpty()) {
+                    segments.add(newSegment(1));
+                }
+            }
+            catch(IOException e) {
+                throw wrap(e);
+            }
+        }
+
+        private Segment map(int number, File file, boolean writable) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                long size = writable ? Math.max(channel.size(), segmentSize) : channel.size();
+                return new Segment(number, file, channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, size));
+            }
+            finally {
+                // the mapping stays valid
+                raf.close();
+            }
+        }
+
+        private Segment newSegment(int number) throws IOException {
+            return map(number, new File(dir, String.format("%08d", Integer.valueOf(number)) + SUFFIX), true);
+        }
+
+        private Segment active() throws DatabaseException {
+            if(readOnly) throw new DatabaseException("Store " + name + " is read-only") {};
+            if(closed) throw new DatabaseException("Store " + name + " is closed") {};
+            return segments.get(segments.size()-1);
+        }
+
+        private int checksum(byte type, byte[] key, byte[] value) {
+            crc.reset();
+            crc.update(type);
+            crc.update(key);
+            crc.update(value);
+            return (int)crc.getValue();
+        }
+
+        // rebuilds the index from the records of a segment
+        private void replay(Segment segment) {
+            ByteBuffer buffer = segment.buffer;
+            int limit = buffer.capacity();
+            int pos = 0;
+            while(pos + HEADER <= limit) {
+                byte type = buffer.get(pos);
+                if(type==0) break;
+                int keyLength = buffer.getInt(pos + 1);
+                int valueLength = buffer.getInt(pos + 5);
+                if(keyLength < 0 || valueLength < 0 || (long)pos + HEADER + keyLength + valueLength > limit) {
+                    log.warn("Truncated record in " + segment.file + " at " + pos);
+                    break;
+                }
+                byte[] key = bytesAt(buffer, pos + HEADER, keyLength);
+                byte[] value = bytesAt(buffer, pos + HEADER + keyLength, valueLength);
+                if(checksum(type, key, value)!=buffer.getInt(pos + 9)) {
+                    log.warn("Bad checksum in " + segment.file + " at " + pos);
+                    break;
+                }
+                apply(type, key, value, segment, pos);
+                pos += HEADER + keyLength + valueLength;
+            }
+            segment.end = pos;
+        }
+
+        private void apply(byte type, byte[] key, byte[] value, Segment segment, int pos) {
+            if(type==PUT) {
+                Location old = index.put(key, new Location(segment, pos + HEADER + key.length, value.length));
+                if(old!=null) release(key, old);
+                segment.live += HEADER + key.length + value.length;
+            }
+            else if(type==DELETE) {
+                Location old = index.remove(key);
+                if(old!=null) release(key, old);
+            }
+            else {
+                Iterator<Map.Entry<byte[],Location>> iter = range(key, type==DELETE_RANGE ? value : null).entrySet().iterator();
+                while(iter.hasNext()) {
+                    Map.Entry<byte[],Location> entry = iter.next();
+                    release(entry.getKey(), entry.getValue());
+                    iter.remove();
+                }
+            }
+        }
+
+        private void release(byte[] key, Location old) {
+            old.segment.live -= HEADER + key.length + old.length;
+        }
+
+        // call while synchronized
+        private void append(byte type, byte[] key, byte[] value) throws DatabaseException {
+            int length = HEADER + key.length + value.length;
+            if(length > segmentSize) throw new DatabaseException("Record of " + length + " bytes too large for segment") {};
+            Segment segment = active();
+            try {
+                if(segment.end + length > segment.buffer.capacity()) {
+                    segment.buffer.force();
+                    segment = newSegment(segment.number + 1);
+                    segments.add(segment);
+                    if(!compacting) compact();
+                }
+            }
+            catch(IOException e) {
+                throw wrap(e);
+            }
+            int pos = segment.end;
+            ByteBuffer view = segment.buffer.duplicate();
+            view.position(pos);
+            view.put(type).putInt(key.length).putInt(value.length).putInt(checksum(type, key, value));
+            view.put(key).put(value);
+            segment.end = pos + length;
+            apply(type, key, value, segment, pos);
+            dropDeadSegments();
+        }
+
+        private void dropDeadSegments() {
+            while(segments.size() > 1 && segments.get(0).live==0) {
+                Segment segment = segments.remove(0);
+                if(!segment.file.delete()) log.warn("Unable to delete " + segment.file);
+            }
+        }
+
+        // While most of the log is dead, moves what is live in the oldest segment to the newest, and deletes it.
+        // Only the oldest segment is compacted, so deletions recorded in it no longer matter.
+        private void compact() throws DatabaseException {
+            compacting = true;
+            try {
+                compactOldest();
+            }
+            finally {
+                compacting = false;
+            }
+        }
+
+        private void compactOldest() throws DatabaseException {
+            while(segments.size() > 2) {
+                long total = 0;
+                long live = 0;
+                for(Segment segment : segments) {
+                    total += segment.end;
+                    live += segment.live;
+                }
+                if(total < 2 * live + segmentSize) return;
+                Segment oldest = segments.get(0);
+                ByteBuffer buffer = oldest.buffer;
+                int pos = 0;
+                while(pos < oldest.end) {
+                    byte type = buffer.get(pos);
+                    int keyLength = buffer.getInt(pos + 1);
+                    int valueLength = buffer.getInt(pos + 5);
+                    if(type==PUT) {
+                        byte[] key = bytesAt(buffer, pos + HEADER, keyLength);
+                        Location current = index.get(key);
+                        if(current!=null && current.segment==oldest && current.offset==pos + HEADER + keyLength) {
+                            append(PUT, key, bytesAt(buffer, current.offset, valueLength));
+                        }
+                    }
+                    pos += HEADER + keyLength + valueLength;
+                }
+                oldest.live = 0;
+                dropDeadSegments();
+            }
+        }
+
+        @Override
+        byte[] valueOf(Location location) {
+            return bytesAt(location.segment.buffer, location.offset, location.length);
+        }
+
+        @Override
+        public synchronized void put(byte[] key, byte[] value) throws DatabaseException {
+            append(PUT, key.clone(), value);
+        }
+
+        @Override
+        public synchronized boolean putNoOverwrite(byte[] key, byte[] value) throws DatabaseException {
+            if(index.containsKey(key)) return false;
+            append(PUT, key.clone(), value);
+            return true;
+        }
+
+        @Override
+        public synchronized boolean delete(byte[] key) throws DatabaseException {
+            if(!index.containsKey(key)) return false;
+            append(DELETE, key, EMPTY);
+            return true;
+        }
+
+        @Override
+        public synchronized void deleteRange(byte[] from, byte[] to) throws DatabaseException {
+            if(range(from, to).isEmpty()) return;
+            if(to==null) append(DELETE_FROM, from, EMPTY);
+            else append(DELETE_RANGE, from, to);
+        }
+
+        synchronized void sync() {
+            if(closed || readOnly || segments.isEmpty()) return;
+            segments.get(segments.size()-1).buffer.force();
+        }
+
+        @Override
+        public void close() {
+            sync();
+            synchronized(this) {
+                closed = true;
+            }
+            synchronized(SegmentStorageEngine.this) {
+                openStores.remove(name);
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+This file is part of
+"it's electric": software for storing and viewing home energy monitoring data
+Copyright (C) 2009--2015 Robert R. Tupelo-Schneck <schneck@gmail.com>
+http://tupelo-schneck.org/its-electric
+
+"it's electric" is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+"it's electric" is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with "it's electric", as legal/COPYING-agpl.txt.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.tupelo_schneck.electric.store;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.sleepycat.je.DatabaseException;
+
+/** A store whose keys are all held in memory, in a skip list so that cursors need no locking */
+abstract class SkipListStore<V> implements Store {
+    final ConcurrentSkipListMap<byte[],V> index = new ConcurrentSkipListMap<byte[],V>(ByteArrayComparator.INSTANCE);
+
+    abstract byte[] valueOf(V v) throws DatabaseException;
+
+    // the keys from from up to to (null for no upper limit)
+    Map<byte[],V> range(byte[] from, byte[] to) {
+        if(to==null) return index.tailMap(from);
+        if(ByteArrayComparator.INSTANCE.compare(from, to) >= 0) return index.subMap(from, from);
+        return index.subMap(from, to);
+    }
+
+    @Override
+    public byte[] get(byte[] key) throws DatabaseException {
+        V v = index.get(key);
+        if(v==null) return null;
+        return valueOf(v);
+    }
+
+    @Override
+    public StoreCursor openCursor() {
+        return new SkipListCursor();
+    }
+
+    private class SkipListCursor implements StoreCursor {
+        private Map.Entry<byte[],V> entry;
+
+        private boolean moveTo(Map.Entry<byte[],V> newEntry) {
+            entry = newEntry;
+            return entry!=null;
+        }
+
+        @Override
+        public boolean seek(byte[] key) {
+            return moveTo(index.ceilingEntry(key));
+        }
+
+        @Override
+        public boolean last() {
+            return moveTo(index.lastEntry());
+        }
+
+        @Override
+        public boolean next() {
+            if(entry==null) return false;
+            return moveTo(index.higherEntry(entry.getKey()));
+        }
+
+        @Override
+        public boolean prev() {
+            if(entry==null) return false;
+            return moveTo(index.lowerEntry(entry.getKey()));
+        }
+
+        @Override
+        public byte[] key() {
+            return entry.getKey();
+        }
+
+        @Override
+        public byte[] value() throws DatabaseException {
+            return valueOf(entry.getValue());
+        }
+
+        @Override
+        public void reset() {
+            entry = null;
+        }
+
+        @Override
+        public void close() {
+            entry = null;
+        }
+    }
+}
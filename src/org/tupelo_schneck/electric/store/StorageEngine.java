@@ -0,0 +1,43 @@
+/*
+This file is part of
+"it's electric": software for storing and viewing home energy monitoring data
+Copyright (C) 2009--2015 Robert R. Tupelo-Schneck <schneck@gmail.com>
+http://tupelo-schneck.org/its-electric
+
+"it's electric" is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+"it's electric" is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with "it's electric", as legal/COPYING-agpl.txt.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.tupelo_schneck.electric.store;
+
+import java.util.List;
+
+import com.sleepycat.je.DatabaseException;
+
+/** A collection of named stores.  Stores must be closed before being removed or renamed. */
+public interface StorageEngine {
+    /** Creates the store if needed, unless the engine is read-only */
+    Store open(String name) throws DatabaseException;
+
+    List<String> getNames() throws DatabaseException;
+
+    void remove(String name) throws DatabaseException;
+
+    void rename(String from, String to) throws DatabaseException;
+
+    /** Makes all writes durable */
+    void sync() throws DatabaseException;
+
+    void close();
+}
@@ -0,0 +1,49 @@
+/*
+This file is part of
+"it's electric": software for storing and viewing home energy monitoring data
+Copyright (C) 2009--2015 Robert R. Tupelo-Schneck <schneck@gmail.com>
+http://tupelo-schneck.org/its-electric
+
+"it's electric" is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+"it's electric" is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with "it's electric", as legal/COPYING-agpl.txt.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.tupelo_schneck.electric.store;
+
+import com.sleepycat.je.DatabaseException;
+
+/**
+ * An ordered map from byte-string keys, compared as unsigned bytes, to byte-string values.
+ * Implementations are safe for concurrent use; cursors see concurrent changes, as with JE's READ_UNCOMMITTED.
+ * Callers may reuse the arrays they pass in, so implementations copy any they keep.
+ */
+public interface Store {
+    /** Returns null if not found */
+    byte[] get(byte[] key) throws DatabaseException;
+
+    void put(byte[] key, byte[] value) throws DatabaseException;
+
+    /** Returns false, changing nothing, if the key is already present */
+    boolean putNoOverwrite(byte[] key, byte[] value) throws DatabaseException;
+
+    /** Returns false if not found */
+    boolean delete(byte[] key) throws DatabaseException;
+
+    /** Deletes all keys at least from and less than to (null for no upper limit); may stop early if the thread is interrupted */
+    void deleteRange(byte[] from, byte[] to) throws DatabaseException;
+
+    StoreCursor openCursor() throws DatabaseException;
+
+    void close();
+}
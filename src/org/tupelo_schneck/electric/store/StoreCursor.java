@@ -0,0 +1,46 @@
+/*
+This file is part of
+"it's electric": software for storing and viewing home energy monitoring data
+Copyright (C) 2009--2015 Robert R. Tupelo-Schneck <schneck@gmail.com>
+http://tupelo-schneck.org/its-electric
+
+"it's electric" is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+"it's electric" is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with "it's electric", as legal/COPYING-agpl.txt.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.tupelo_schneck.electric.store;
+
+import com.sleepycat.je.DatabaseException;
+
+/** A position in a {@link Store}.  Each move returns false, leaving the cursor unpositioned, if there is no such entry. */
+public interface StoreCursor {
+    /** Moves to the first key at least the given key */
+    boolean seek(byte[] key) throws DatabaseException;
+
+    boolean last() throws DatabaseException;
+
+    boolean next() throws DatabaseException;
+
+    boolean prev() throws DatabaseException;
+
+    byte[] key();
+
+    /** The value as of when the cursor moved to the entry */
+    byte[] value() throws DatabaseException;
+
+    /** Unpositions the cursor, releasing anything held for the current entry, so that it can be reused */
+    void reset();
+
+    void close();
+}
@@ -32,6 +32,7 @@ import java.util.Iterator;
 
 import org.apache.commons.codec.binary.Base64;
 import org.tupelo_schneck.electric.Options;
+import org.tupelo_schneck.electric.Sample;
 import org.tupelo_schneck.electric.Triple;
 import org.tupelo_schneck.electric.Util;
 
@@ -49,7 +50,8 @@ public class ImportIterator implements Iterator<Triple> {
 
     private byte[] line;
     private volatile boolean closed;
-    private Triple pushback;
+    private final Sample pushback = new Sample();
+    private boolean hasPushback;
     private int inDSTOverlap; // 0 not, 1 first part, 2 second part
     private int previousTimestamp;
 
@@ -75,13 +77,13 @@ public class ImportIterator implements Iterator<Triple> {
         getNextLine();
         
         // skip the first timestamp, in case we see only part of multiple values
-        if(!closed) {
-            Triple first = nextFromLine();
-            Triple next = first;
-            while(next!=null && next.timestamp == first.timestamp) {
-                next = nextFromLine();
-            }
-            pushback = next;
+        Sample first = new Sample();
+        if(!closed && nextFromLine(first)) {
+            boolean more;
+            do {
+                more = nextFromLine(pushback);
+            } while(more && pushback.timestamp == first.timestamp);
+            hasPushback = more;
             
             if(!"ted-pro".equals(options.device) && Util.inDSTOverlap(timeZone, first.timestamp)) {
                 int now = (int)(System.currentTimeMillis()/1000);
@@ -142,7 +144,7 @@ public class ImportIterator implements Iterator<Triple> {
     
     @Override
     public boolean hasNext() {
-        return pushback!=null || !closed;
+        return hasPushback || !closed;
     }
 
     /** The opposite of TimeSeriesDatabase.intOfBytes */
@@ -162,28 +164,28 @@ public class ImportIterator implements Iterator<Triple> {
         return res;
     }
 
-    private Triple nextFromLine() {
-        if(closed) return null;
+    private boolean nextFromLine(Sample sample) {
+        if(closed) return false;
         byte[] decoded = base64.decode(line);
-        if (decoded == null) return null;
+        if (decoded == null) return false;
         if ("ted-pro".equals(options.device)) {
-            return tedProNextFromLine(decoded);
+            return tedProNextFromLine(decoded, sample);
         } else {
-            return ted5000NextFromLine(decoded);
+            return ted5000NextFromLine(decoded, sample);
         }
     }
     
-    private Triple tedProNextFromLine(byte[] decoded) {    
-        if (decoded[0] != (byte)0xA4) return null;
-        if (!checksumChecks(decoded)) return null;
-        if (decoded.length < ((mtu < options.mtus) ? 16 : 14)) return null;
+    private boolean tedProNextFromLine(byte[] decoded, Sample sample) {    
+        if (decoded[0] != (byte)0xA4) return false;
+        if (!checksumChecks(decoded)) return false;
+        if (decoded.length < ((mtu < options.mtus) ? 16 : 14)) return false;
         int timestamp = intOfBytes(decoded, 1);
         previousTimestamp = timestamp;
-        Integer power = Integer.valueOf(intOfBytes(decoded, 5));
-        Integer voltage = (useVoltage && mtu < options.mtus) ? Integer.valueOf(unsignedShortOfBytes(decoded,13)) : null;
-        Triple res = new Triple(timestamp,mtu,power,voltage,null);
+        sample.reset(timestamp, mtu);
+        sample.setPower(intOfBytes(decoded, 5));
+        if(useVoltage && mtu < options.mtus) sample.setVoltage(unsignedShortOfBytes(decoded,13));
         getNextLine();
-        return res;
+        return true;
     }
     
     private static boolean checksumChecks(byte[] decoded) {
@@ -194,17 +196,16 @@ public class ImportIterator implements Iterator<Triple> {
         return sum == decoded[decoded.length - 1];
     }
     
-    private Triple ted5000NextFromLine(byte[] decoded) {    
-        if(decoded.length<16) return null;
+    private boolean ted5000NextFromLine(byte[] decoded, Sample sample) {    
+        if(decoded.length<16) return false;
         if((0x00FF & decoded[0]) < 9) {
             // TED5000 uses sentinel value 2005-05-05 05:05:05.  
             // Here we skip anything before 2009.
             getNextLine();
-            return next();
+            return nextFromLine(sample);
         }
         cal.set(2000+(0x00FF & decoded[0]), decoded[1]-1, decoded[2], decoded[3], decoded[4], decoded[5]);
-        Integer power = Integer.valueOf(intOfBytes(decoded,6));
-        Integer voltage = useVoltage ? Integer.valueOf(unsignedShortOfBytes(decoded,14)) : null;
+        int power = intOfBytes(decoded,6);
         int timestamp = (int)(cal.getTimeInMillis() / 1000);
         if(inDSTOverlap==2 && timestamp > previousTimestamp) inDSTOverlap = 1;
         if(inDSTOverlap==1) {
@@ -212,47 +213,58 @@ public class ImportIterator implements Iterator<Triple> {
             else inDSTOverlap = 0;
         }
         previousTimestamp = timestamp;
-        Triple res = new Triple(timestamp,mtu,power,voltage,null);
+        sample.reset(timestamp, mtu);
+        sample.setPower(power);
+        if(useVoltage) sample.setVoltage(unsignedShortOfBytes(decoded,14));
         getNextLine();
-        return res;
+        return true;
     }
 
-    private Triple privateNext() {
-        if(pushback!=null) {
-            Triple res = pushback;
-            pushback = null;
-            return res;
+    private boolean privateNext(Sample sample) {
+        if(hasPushback) {
+            sample.set(pushback);
+            hasPushback = false;
+            return true;
         }
-        if(!closed) return nextFromLine();
-        return null;
+        if(!closed) return nextFromLine(sample);
+        return false;
     }
     
     @Override
     public Triple next() {
-        Triple first = privateNext();
-        if(first==null) return null;
-        int timestamp = first.timestamp;
-        int power = first.power.intValue();
-        int voltage = (useVoltage && first.voltage != null) ? first.voltage.intValue() : 0;
+        Sample sample = new Sample();
+        if(!next(sample)) return null;
+        return sample.toTriple();
+    }
+
+    /** Fills sample with the next second, averaging multiple values; returns false if there is none */
+    public boolean next(Sample sample) {
+        if(!privateNext(sample)) return false;
+        int timestamp = sample.timestamp;
+        int power = sample.power;
+        int voltage = (useVoltage && sample.hasVoltage()) ? sample.voltage : 0;
         int count = 1;
         while(true) {
-            Triple next = privateNext();
-            if(next==null || next.timestamp != timestamp) {
-                pushback = next;
+            boolean more = privateNext(pushback);
+            if(!more || pushback.timestamp != timestamp) {
+                hasPushback = more;
                 // skip the last timestamp, in case we see only part of multiple values
-                if(next==null) {
+                if(!more) {
                     close();
-                    return null;
+                    return false;
                 }
                 break;
             }
             else {
                 count++;
-                power += next.power.intValue();
-                voltage += (useVoltage && next.voltage != null) ? next.voltage.intValue() : 0;
+                power += pushback.power;
+                voltage += (useVoltage && pushback.hasVoltage()) ? pushback.voltage : 0;
             }
         }
-        if(count==1) return first;
-        else return new Triple(timestamp, first.mtu, Integer.valueOf(power/count), useVoltage ? Integer.valueOf(voltage/count) : null, null);
+        if(count > 1) {
+            sample.power = power/count;
+            if(useVoltage) sample.setVoltage(voltage/count);
+        }
+        return true;
     }
 }
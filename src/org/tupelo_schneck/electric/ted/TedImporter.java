@@ -37,13 +37,14 @@ import org.tupelo_schneck.electric.DatabaseManager;
 import org.tupelo_schneck.electric.Importer;
 import org.tupelo_schneck.electric.Main;
 import org.tupelo_schneck.electric.Options;
+import org.tupelo_schneck.electric.Sample;
+import org.tupelo_schneck.electric.SampleBatch;
 import org.tupelo_schneck.electric.Servlet;
+import org.tupelo_schneck.electric.TimeSeriesDatabase;
 import org.tupelo_schneck.electric.Triple;
 import org.tupelo_schneck.electric.Util;
 
-import com.sleepycat.je.Cursor;
 import com.sleepycat.je.DatabaseException;
-import com.sleepycat.je.StatsConfig;
 
 public class TedImporter implements Importer {
     private Log log = LogFactory.getLog(TedImporter.class);
@@ -104,40 +105,30 @@ public class TedImporter implements Importer {
     }
     
 
-    private static class MinAndMax {
-        final int min;
-        final int max;
-        MinAndMax(int min, int max) {
-            this.min = min;
-            this.max = max;
-        }
-    }
-    
-    private MinAndMax changesFromImport(int count, byte mtu, boolean oldOnly) {
+    private TimeSeriesDatabase.Changes changesFromImport(int count, byte mtu, boolean oldOnly, List<Triple.Key> changedKeys) {
         if(!main.isRunning) return null;
 
-        boolean changed = false;
-        int minChange = Integer.MAX_VALUE;
-        int maxChange = 0;
+        TimeSeriesDatabase.Changes changes = null;
 
         log.trace("Importing " + count + " seconds for MTU " + mtu);
         ImportIterator iter = null;
-        Cursor cursor = null;
         try {
             iter = new ImportIterator(options, mtu, count);
-            cursor = databaseManager.secondsDb.openCursor();
+            SampleBatch samples = new SampleBatch(count);
+            Sample sample = new Sample();
             while(iter.hasNext()) {
                 if(!main.isRunning) return null;
 
-                Triple triple = iter.next();
-                if(triple==null) break;
-                int max = maxSecondForMTU[triple.mtu];
-                if(oldOnly && max > 0 && triple.timestamp > max) continue;
-                if (databaseManager.secondsDb.putIfChanged(cursor, triple)) {
-                    changed = true;
-                    if(triple.timestamp < minChange) minChange = triple.timestamp;
-                    if(triple.timestamp > maxChange) maxChange = triple.timestamp;
-                }
+                if(!iter.next(sample)) break;
+                int max = maxSecondForMTU[sample.mtu];
+                if(oldOnly && max > 0 && sample.timestamp > max) continue;
+                samples.add(sample);
+            }
+            if(!main.isRunning) return null;
+            changes = databaseManager.secondsDb.putIfChanged(samples, changedKeys);
+            if(changes!=null) {
+                databaseManager.durability.written(changes.count);
+                catchUp.publish(samples);
             }
         }
         catch(Exception e) {
@@ -145,12 +136,11 @@ public class TedImporter implements Importer {
         }
         finally {
             if(iter!=null) try { iter.close(); } catch (Exception e) { e.printStackTrace(); }
-            if(cursor!=null) try { cursor.close(); } catch (Exception e) { e.printStackTrace(); }
         }
 
-        if(changed) {
-            log.trace("Put from " + Util.dateString(minChange) + " to " + Util.dateString(maxChange) + ".");
-            return new MinAndMax(minChange, maxChange);
+        if(changes!=null) {
+            log.trace("Put from " + Util.dateString(changes.min) + " to " + Util.dateString(changes.max) + ".");
+            return changes;
         }
         else {
             log.trace("No new data.");
@@ -198,13 +188,12 @@ public class TedImporter implements Importer {
             for(byte mtu = 0; mtu < options.mtus + options.spyders; mtu++) {
                 if(!main.isRunning) return;
                 
-                MinAndMax minAndMax = changesFromImport(count,mtu,longImport && options.importInterval > 0);
+                TimeSeriesDatabase.Changes minAndMax = changesFromImport(count,mtu,longImport && options.importInterval > 0,changes);
 
                 if(minAndMax==null) continue;
                 
                 if(minAndMax.min < newMin) newMin = minAndMax.min;
                 newMaxForMTU[mtu] = minAndMax.max;
-                changes.add(new Triple.Key(minAndMax.min,mtu));
             }
             int[] maxSeconds = newMaxForMTU.clone();
             Arrays.sort(maxSeconds);
@@ -235,17 +224,7 @@ public class TedImporter implements Importer {
                 maxSecondForMTU = newMaxForMTU;
             }
             
-            if(longImport || options.longImportInterval==0) {
-                try {
-                    databaseManager.environment.sync();
-                    log.trace("Environment synced.");
-                    log.trace(databaseManager.environment.getStats(StatsConfig.DEFAULT).toString());
-                }
-                catch(DatabaseException e) {
-                    log.debug("Exception syncing environment: " + e);
-                }
-            }
-            else {
+            if(!longImport && options.longImportInterval!=0) {
                 if(importInterleaver!=null) importInterleaver.countDown();
             }
         }
@@ -270,34 +249,24 @@ public class TedImporter implements Importer {
             boolean changed = false;
 
             VoltAmpereFetcher fetcher = new VoltAmpereFetcher(options);
-            List<Triple> triples = fetcher.doImport();
+            SampleBatch samples = fetcher.doImport();
 
-            if(triples.isEmpty()) return;
+            if(samples.isEmpty()) return;
             
-            int timestamp = 0;
-            Cursor cursor = null;
+            int timestamp = samples.timestamp(samples.size()-1);
             try {
                 if(!main.isRunning) return;
-                cursor = databaseManager.secondsDb.openCursor();
-                for(Triple triple : triples) {
-                    if(!main.isRunning) return;
-                    timestamp = triple.timestamp;
-                    if (databaseManager.secondsDb.putIfChanged(cursor, triple)) {
-                        changed = true;
-                        changes.add(new Triple.Key(timestamp,triple.mtu));
-                    }
-                }
+                changed = databaseManager.secondsDb.putIfChanged(samples, changes)!=null;
+                databaseManager.durability.written(changes.size());
             }
             catch(DatabaseException e) {
                 e.printStackTrace();
             }
-            finally {
-                if(cursor!=null) try { cursor.close(); } catch (Exception e) { e.printStackTrace(); }
-            }
             
             if(changed) {
                 log.trace("kVA data at " + Util.dateString(timestamp));
                 latestVoltAmperesTimestamp = timestamp;
+                catchUp.publish(samples);
                 catchUp.notifyChanges(changes, true);
             }
         }
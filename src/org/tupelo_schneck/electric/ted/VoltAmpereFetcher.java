@@ -28,14 +28,13 @@ import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Scanner;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.tupelo_schneck.electric.Options;
-import org.tupelo_schneck.electric.Triple;
+import org.tupelo_schneck.electric.Sample;
+import org.tupelo_schneck.electric.SampleBatch;
 import org.tupelo_schneck.electric.Util;
 
 import com.ibm.icu.util.GregorianCalendar;
@@ -178,52 +177,54 @@ public class VoltAmpereFetcher {
         return timestamp;
     }
     
-    private Triple nextKVA(int timestamp) {
+    private boolean nextKVA(int timestamp, Sample sample) {
         if ("ted-pro".equals(options.device)) {
-            return tedProNextKVA(timestamp);
+            return tedProNextKVA(timestamp, sample);
         } else {
-            return ted5000NextKVA(timestamp);
+            return ted5000NextKVA(timestamp, sample);
         }
     }
     
-    private Triple ted5000NextKVA(int timestamp) {
+    private boolean ted5000NextKVA(int timestamp, Sample sample) {
         String mtuChunk = this.scanner.findWithinHorizon(mtuChunkPattern, 4096);
-        if(mtuChunk==null) return null;
+        if(mtuChunk==null) return false;
         try {
             Matcher m = mtuNumberPattern.matcher(mtuChunk);
-            if(!m.find()) return null;
+            if(!m.find()) return false;
             byte mtu = Byte.parseByte(m.group(1));
             m.usePattern(kvaPattern);
-            if(!m.find()) return null;
+            if(!m.find()) return false;
             int kva = Integer.parseInt(m.group(1));
-            return new Triple(timestamp,(byte)(mtu-1),null,null,Integer.valueOf(kva));
+            sample.reset(timestamp,(byte)(mtu-1)).setVoltAmperes(kva);
+            return true;
         }
         catch(NumberFormatException e) {
-            return null;
+            return false;
         }
     }
     
-    private Triple tedProNextKVA(int timestamp) {
+    private boolean tedProNextKVA(int timestamp, Sample sample) {
         String mtuChunk = this.scanner.findWithinHorizon(tedProMtuPattern, 4096);
-        if(mtuChunk==null) return null;
+        if(mtuChunk==null) return false;
         try {
             Matcher m = tedProMtuPattern.matcher(mtuChunk);
-            if(!m.matches()) return null;
+            if(!m.matches()) return false;
             byte mtu = Byte.parseByte(m.group(1));
             String kvaChunk = this.scanner.findWithinHorizon(kvaPattern, 4096);
             m = kvaPattern.matcher(kvaChunk);
-            if(!m.matches()) return null;
+            if(!m.matches()) return false;
             int kva = Integer.parseInt(m.group(1));
-            return new Triple(timestamp,(byte)(mtu-1),null,null,Integer.valueOf(kva));
+            sample.reset(timestamp,(byte)(mtu-1)).setVoltAmperes(kva);
+            return true;
         }
         catch(NumberFormatException e) {
-            return null;
+            return false;
         }
 
     }
     
-    public List<Triple> doImport() {
-        List<Triple> res = new ArrayList<Triple>();
+    public SampleBatch doImport() {
+        SampleBatch res = new SampleBatch(mtus);
         try {
             connect();
         }
@@ -234,10 +235,10 @@ public class VoltAmpereFetcher {
             int timestamp = gatewayTime();
             if(timestamp==0) return res;
             
+            Sample sample = new Sample();
             for(int i = 0; i < mtus; i++) {
-                Triple triple = nextKVA(timestamp);
-                if(triple==null || triple.mtu >= mtus) return res;
-                res.add(triple);
+                if(!nextKVA(timestamp, sample) || sample.mtu >= mtus) return res;
+                res.add(sample);
             }
             
             return res;
@@ -5,5 +5,8 @@ itsElectric.configure({
    initialZoom: 4*60*60,
    realTime: true, // set false to prevent automatic update when viewing latest time
    realTimeUpdateInterval: 60000,
-   partialRange: false // when true, graph only includes points near zoomed-in region
+   live: true, // with realTime, wait on the server for new rows and add them, instead of reloading every interval
+   partialRange: false, // when true, graph only includes points near zoomed-in region
+   binary: true, // set false to load data as Google Visualization JSON, as from servers before the binary endpoint
+   downsample: 'minmax' // 'minmax' keeps the peaks of finer data, 'lttb' its shape; null for plain averages
 });
\ No newline at end of file
@@ -64,6 +64,9 @@ ItsElectric.prototype.configure = function(config) {
     this.realTimeUpdateInterval = config.realTimeUpdateInterval;
     this.hasVoltage = config.hasVoltage;
     this.hasKVA = config.hasKVA;
+    this.binary = config.binary;
+    this.downsample = config.downsample;
+    this.live = config.live;
 }
 
 ItsElectric.prototype.init = function() {
@@ -99,6 +102,7 @@ ItsElectric.prototype.queryURL = function() {
     else {
       queryURL = queryURL + this.queryPath;
     }
+    if(this.binary) queryURL = queryURL + ItsElectric.binarySuffix;
     var extendChar = '?';
     queryURL = queryURL + extendChar + 'extraPoints=2';
     extendChar = '&';
@@ -140,6 +144,11 @@ ItsElectric.prototype.queryURL = function() {
                    'resolution=' + this.resolution;
         extendChar = '&';
     }
+    if(this.downsample) {
+        queryURL = queryURL + extendChar +
+                   'downsample=' + this.downsample;
+        extendChar = '&';
+    }
     return queryURL;
 };
 
@@ -175,13 +184,15 @@ ItsElectric.prototype.requery = function() {
 	this.requeryTimeoutId = null;
 	clearTimeout(this.realTimeUpdateTimeoutId);
 	this.realTimeUpdateTimeoutId = null;
+    this.abortLiveUpdate();
     if(this.querying) {
         this.pendingQuery = true;
         return;
     }
     this.querying = true;
     this.pendingQuery = false;
-    this.query = new google.visualization.Query(this.queryURL());
+    if(this.binary) this.query = new ItsElectric.BinaryQuery(this.queryURL());
+    else this.query = new google.visualization.Query(this.queryURL());
     if(this.busyId) document.getElementById(this.busyId).style.display="";
     this.query.setTimeout(120);
     var self = this;
@@ -189,6 +200,161 @@ ItsElectric.prototype.requery = function() {
     delete this.query;
 };
 
+// Loads a table from the binary endpoint, the query path with ".bin", which sends the same table 
+// as little-endian typed arrays; see BinaryOutput in Servlet.java.
+// Used in place of google.visualization.Query, answering with the parts of a QueryResponse used here.
+ItsElectric.binarySuffix = ".bin";
+ItsElectric.binaryMagic = 0x31424549;
+ItsElectric.littleEndian = new Uint8Array(new Uint32Array([1]).buffer)[0] == 1;
+
+ItsElectric.BinaryQuery = function(url) {
+    this.url = url;
+    this.timeout = 0;
+};
+
+ItsElectric.BinaryQuery.prototype.setTimeout = function(seconds) {
+    this.timeout = seconds;
+};
+
+ItsElectric.BinaryQuery.prototype.send = function(callback) {
+    var xhr = new XMLHttpRequest();
+    xhr.open('GET', this.url, true);
+    xhr.responseType = 'arraybuffer';
+    if(this.timeout) xhr.timeout = this.timeout * 1000;
+    xhr.onload = function() {
+        if(xhr.status != 200) {
+            callback(new ItsElectric.BinaryResponse(null, 'Error ' + xhr.status, xhr.statusText));
+            return;
+        }
+        var data;
+        try {
+            data = ItsElectric.decodeBinaryTable(xhr.response);
+        }
+        catch(e) {
+            callback(new ItsElectric.BinaryResponse(null, 'Bad response', '' + e));
+            return;
+        }
+        callback(new ItsElectric.BinaryResponse(data));
+    };
+    xhr.onerror = function() {
+        callback(new ItsElectric.BinaryResponse(null, 'Request failed', ''));
+    };
+    xhr.ontimeout = function() {
+        callback(new ItsElectric.BinaryResponse(null, 'Request timed out', ''));
+    };
+    xhr.send();
+};
+
+ItsElectric.BinaryResponse = function(data, message, detailedMessage) {
+    this.data = data;
+    this.message = message;
+    this.detailedMessage = detailedMessage;
+};
+
+ItsElectric.BinaryResponse.prototype.isError = function() {
+    return this.data == null;
+};
+
+ItsElectric.BinaryResponse.prototype.getMessage = function() {
+    return this.message;
+};
+
+ItsElectric.BinaryResponse.prototype.getDetailedMessage = function() {
+    return this.detailedMessage;
+};
+
+ItsElectric.BinaryResponse.prototype.getDataTable = function() {
+    return this.data;
+};
+
+ItsElectric.decodeBinaryTable = function(buffer) {
+    var view = new DataView(buffer);
+    if(buffer.byteLength < 8 || view.getUint32(0, true) != ItsElectric.binaryMagic) throw 'not a binary table';
+    var headerLength = view.getInt32(4, true);
+    var header = JSON.parse(ItsElectric.decodeUTF8(new Uint8Array(buffer, 8, headerLength)));
+    var offset = 8 + ItsElectric.padded(headerLength);
+    var numRows = header.rows;
+    var bitmapLength = ItsElectric.padded((numRows + 7) >> 3);
+    var times = ItsElectric.typedArray(buffer, view, offset, numRows, false);
+    offset += 4 * numRows;
+    var cols = [{id: 'Date', label: 'Date', type: 'datetime'}];
+    var values = [];
+    var nulls = [];
+    var floats = [];
+    for(var j = 0; j < header.cols.length; j++) {
+        var col = header.cols[j];
+        cols.push({id: col.label, label: col.label, type: 'number'});
+        floats.push(col.type == 'float32');
+        values.push(ItsElectric.typedArray(buffer, view, offset, numRows, floats[j]));
+        offset += 4 * numRows;
+        nulls.push(new Uint8Array(buffer, offset, bitmapLength));
+        offset += bitmapLength;
+    }
+    var rows = new Array(numRows);
+    for(var i = 0; i < numRows; i++) {
+        var row = new Array(values.length + 1);
+        row[0] = ItsElectric.serverLocalDate(times[i]);
+        var bit = 1 << (i & 7);
+        for(var j = 0; j < values.length; j++) {
+            if(nulls[j][i >> 3] & bit) row[j+1] = null;
+            // a float32 back to the decimal the server had
+            else if(floats[j]) row[j+1] = parseFloat(values[j][i].toPrecision(7));
+            else row[j+1] = values[j][i];
+        }
+        rows[i] = row;
+    }
+    var data = new google.visualization.DataTable({cols: cols, p: header.p});
+    data.addRows(rows);
+    return data;
+};
+
+// count int32s or float32s at offset, copied only if this platform is big-endian
+ItsElectric.typedArray = function(buffer, view, offset, count, floats) {
+    if(ItsElectric.littleEndian) {
+        return floats ? new Float32Array(buffer, offset, count) : new Int32Array(buffer, offset, count);
+    }
+    var res = floats ? new Float32Array(count) : new Int32Array(count);
+    for(var i = 0; i < count; i++) {
+        res[i] = floats ? view.getFloat32(offset + 4*i, true) : view.getInt32(offset + 4*i, true);
+    }
+    return res;
+};
+
+ItsElectric.padded = function(length) {
+    return (length + 3) & ~3;
+};
+
+ItsElectric.decodeUTF8 = function(bytes) {
+    if(window.TextDecoder) return new TextDecoder('utf-8').decode(bytes);
+    var s = '';
+    for(var i = 0; i < bytes.length; i++) s += String.fromCharCode(bytes[i]);
+    return decodeURIComponent(escape(s));
+};
+
+// the date whose local time reads as the server's local time given in seconds, as with new Date(year,month,...) in the JSON;
+// the client's offset is nearly always that of the date before, and the same an hour before
+ItsElectric.localOffset = 0;
+ItsElectric.serverLocalDate = function(seconds) {
+    var millis = seconds * 1000;
+    for(var tries = 0; tries < 2; tries++) {
+        var d = new Date(millis + ItsElectric.localOffset * 60000);
+        var offset = d.getTimezoneOffset();
+        if(offset == ItsElectric.localOffset) {
+            if(new Date(d.getTime() - 3600000).getTimezoneOffset() == offset) return d;
+            break;
+        }
+        ItsElectric.localOffset = offset;
+    }
+    // near a change of the client's offset, where a time may be skipped or repeated; let the browser choose
+    d = new Date(millis);
+    return new Date(d.getUTCFullYear(), d.getUTCMonth(), d.getUTCDate(), d.getUTCHours(), d.getUTCMinutes(), d.getUTCSeconds());
+};
+
+// the server's local time given by a date from serverLocalDate, in seconds
+ItsElectric.serverLocalSeconds = function(date) {
+    return Date.UTC(date.getFullYear(), date.getMonth(), date.getDate(), date.getHours(), date.getMinutes(), date.getSeconds()) / 1000;
+};
+
 ItsElectric.prototype.requeryAfter = function(n) {
     var self = this;
     this.requeryTimeoutId = setTimeout(function(){self.requery();},n);
@@ -311,6 +477,8 @@ ItsElectric.prototype.handleQueryResponse = function(response) {
         this.minimum = rangeStart;
     }
     var rangeEnd = numRows==0 ? 0 : data.getValue(numRows-1,0).getTime()
+    // live updates follow the last row sent, before rows are added at either end below
+    this.liveAfter = numRows==0 ? null : ItsElectric.serverLocalSeconds(data.getValue(numRows-1,0));
 
     // Make this.maximum be the time at which client's local time is the same clock time as the server's maximum
     this.timeZoneOffset = parseInt(data.getTableProperty('timeZoneOffset'));
@@ -333,7 +501,8 @@ ItsElectric.prototype.handleQueryResponse = function(response) {
             data.setValue(0,i,numRows==0 ? 0 : data.getValue(1,i));
         }
     }
-    if(this.maximum!=0 && (numRows==0 || this.maximum > rangeEnd)) {
+    this.padded = this.maximum!=0 && (numRows==0 || this.maximum > rangeEnd);
+    if(this.padded) {
         var newRow = data.addRow();
         data.setValue(newRow,0,new Date(this.maximum));
         for(var i = 1; i < numCols; i++) {
@@ -492,7 +661,9 @@ ItsElectric.prototype.readyHandler = function(e) {
 
 ItsElectric.prototype.setRealTimeUpdater = function() {
     var self = this;
-    this.realTimeUpdateTimeoutId = setTimeout(function(){self.realTimeUpdate();},Math.max(this.currentResolution*1000,this.realTimeUpdateInterval));
+    // the server holds live updates until there are new rows
+    var delay = this.usesLiveUpdates() ? 1 : Math.max(this.currentResolution*1000,this.realTimeUpdateInterval);
+    this.realTimeUpdateTimeoutId = setTimeout(function(){self.realTimeUpdate();},delay);
 }
 
 ItsElectric.prototype.rangeChangeHandler = function(e) {
@@ -583,6 +754,112 @@ ItsElectric.prototype.realTimeUpdate = function() {
         }
     }
     if(!this.querying) {
+        if(this.usesLiveUpdates()) this.liveUpdate();
+        else this.requery();
+    }
+};
+
+// Live updates: the query path with ".live" answers, once the server has any, with the rows after a time at the 
+// current resolution (see doGetLive in Servlet.java), which are appended to the table in place of requerying.
+ItsElectric.liveSuffix = ".live";
+
+ItsElectric.prototype.usesLiveUpdates = function() {
+    return this.live && this.data && !this.delta && this.liveAfter != null;
+};
+
+ItsElectric.prototype.liveURL = function() {
+    var liveURL = this.datasourceURL;
+    if(liveURL.charAt(liveURL.length-1)=='/' && this.queryPath.charAt(0)=='/') {
+      liveURL = liveURL + this.queryPath.substring(1);
+    }
+    else {
+      liveURL = liveURL + this.queryPath;
+    }
+    return liveURL + ItsElectric.liveSuffix + '?after=' + this.liveAfter + '&resolution=' + this.currentResolution;
+};
+
+ItsElectric.prototype.liveUpdate = function() {
+    var self = this;
+    var xhr = new XMLHttpRequest();
+    xhr.open('GET', this.liveURL(), true);
+    xhr.onload = function() {
+        if(self.liveRequest != xhr) return;
+        self.liveRequest = null;
+        var update = null;
+        if(xhr.status == 200) {
+            try {
+                update = JSON.parse(xhr.responseText);
+            }
+            catch(e) {
+            }
+        }
+        if(update) self.handleLiveUpdate(update);
+        else self.requeryAfter(Math.max(self.currentResolution*1000,self.realTimeUpdateInterval));
+    };
+    xhr.onerror = function() {
+        if(self.liveRequest != xhr) return;
+        self.liveRequest = null;
+        self.requeryAfter(Math.max(self.currentResolution*1000,self.realTimeUpdateInterval));
+    };
+    this.liveRequest = xhr;
+    xhr.send();
+};
+
+ItsElectric.prototype.abortLiveUpdate = function() {
+    if(!this.liveRequest) return;
+    var xhr = this.liveRequest;
+    this.liveRequest = null;
+    xhr.abort();
+};
+
+ItsElectric.prototype.handleLiveUpdate = function(update) {
+    // a requery under way starts them again
+    if(this.querying || !this.data) return;
+    var data = this.data;
+    var numCols = data.getNumberOfColumns();
+    if(update.rows.length > 0 && update.rows[0].length != numCols) {
         this.requery();
+        return;
+    }
+    var atMaximum = this.range && this.range.end.getTime() == this.maximum;
+    var oldMaximum = this.maximum;
+    var added = false;
+    for(var i = 0; i < update.rows.length; i++) {
+        var row = update.rows[i];
+        if(row[0] <= this.liveAfter) continue;
+        if(!added && this.padded) {
+            data.removeRow(data.getNumberOfRows() - 1);
+            this.padded = false;
+        }
+        row[0] = ItsElectric.serverLocalDate(row[0]);
+        data.addRow(row);
+        added = true;
+    }
+    if(added) this.liveAfter = ItsElectric.serverLocalSeconds(data.getValue(data.getNumberOfRows()-1,0));
+
+    this.timeZoneOffset = update.timeZoneOffset;
+    this.maximum = update.maximum*1000 - this.timeZoneOffset*1000;
+    var numRows = data.getNumberOfRows();
+    var rangeEnd = data.getValue(numRows-1,0).getTime();
+    if(this.padded) {
+        data.setValue(numRows-1,0,new Date(this.maximum));
+    }
+    else if(this.maximum > rangeEnd) {
+        var newRow = data.addRow();
+        data.setValue(newRow,0,new Date(this.maximum));
+        for(var i = 1; i < numCols; i++) {
+            data.setValue(newRow,i,data.getValue(newRow-1,i));
+        }
+        this.padded = true;
+    }
+    if(!added && this.maximum == oldMaximum) {
+        this.setRealTimeUpdater();
+        return;
     }
+    if(atMaximum) {
+        var size = this.range.end.getTime() - this.range.start.getTime();
+        this.range.start.setTime(this.maximum - size);
+        this.range.end.setTime(this.maximum);
+    }
+    this.redraw();
 };